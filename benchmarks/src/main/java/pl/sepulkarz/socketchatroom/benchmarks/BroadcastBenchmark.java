@@ -0,0 +1,67 @@
+package pl.sepulkarz.socketchatroom.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.transport.BinaryMessageCodec;
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+import pl.sepulkarz.socketchatroom.net.transport.MessageView;
+import pl.sepulkarz.socketchatroom.server.net.ChatRoom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of a single broadcast message to all the clients of a chat room, either as a decoded {@code Message} or
+ * relayed as a received binary frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    private int recipients;
+
+    private ChatRoom chatRoom;
+    private ClientData sender;
+    private Message message;
+    private ByteBuffer frame;
+    private MessageView view;
+
+    @Setup
+    public void setUp() throws IOException {
+        chatRoom = ChatRooms.populated(recipients - 1);
+        sender = ChatRooms.join(chatRoom, "sender");
+        message = new Message.Builder().from("sender").to(Message.BROADCAST).text("Hello everybody, how are you " +
+                "doing today?").build();
+        frame = BinaryMessageCodec.INSTANCE.encode(message);
+        view = new MessageView(chatRoom.getNames());
+    }
+
+    @Benchmark
+    public void broadcast() throws IOException {
+        chatRoom.handle(sender, message);
+    }
+
+    @Benchmark
+    public void relay() throws IOException, ParseException {
+        BinaryMessageCodec.INSTANCE.decode(frame.duplicate(), view);
+        chatRoom.handle(sender, view);
+    }
+
+}
@@ -0,0 +1,73 @@
+package pl.sepulkarz.socketchatroom.benchmarks;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.transport.BinaryMessageCodec;
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+import pl.sepulkarz.socketchatroom.net.transport.Handshake;
+import pl.sepulkarz.socketchatroom.net.transport.OutboundQueue;
+import pl.sepulkarz.socketchatroom.net.transport.SocketConnection;
+import pl.sepulkarz.socketchatroom.server.net.ChatRoom;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builds chat rooms full of clients connected through {@link DiscardingSocket}s. Their outbound queues are drained
+ * on the sending thread, so the benchmarks measure the whole path from routing to the socket's output stream.
+ */
+final class ChatRooms {
+
+    private static final Executor SAME_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private ChatRooms() {
+    }
+
+    /**
+     * Creates a chat room with the given number of clients, all using the binary codec. Logging is turned off, as
+     * the server logs every message at INFO level and would measure the console instead.
+     *
+     * @param clients The number of clients.
+     * @return The chat room.
+     */
+    static ChatRoom populated(int clients) throws IOException {
+        Logger.getLogger("").setLevel(Level.OFF);
+        ChatRoom chatRoom = new ChatRoom();
+        for (int i = 0; i < clients; i++) {
+            join(chatRoom, "guest" + i);
+        }
+        return chatRoom;
+    }
+
+    /**
+     * Logs a new client in, offering the binary codec.
+     */
+    static ClientData join(ChatRoom chatRoom, String name) throws IOException {
+        return join(chatRoom, name, false);
+    }
+
+    /**
+     * Logs a new client in, offering the binary codec and, if asked to, support for the chat room state snapshot.
+     */
+    static ClientData join(ChatRoom chatRoom, String name, boolean state) throws IOException {
+        ClientData client = new ClientData(new SocketConnection(new DiscardingSocket(), new OutboundQueue(Integer
+                .MAX_VALUE, OutboundQueue.OverflowPolicy.DROP_NEWEST), SAME_THREAD));
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        options.put(Handshake.CODEC, BinaryMessageCodec.INSTANCE.getName());
+        if (state) {
+            options.put(Handshake.FEATURES, Handshake.FEATURE_STATE);
+        }
+        chatRoom.handle(client, new Message.Builder().type(Message.Type.HELLO).from(name).text(Handshake.format
+                (options)).build());
+        return client;
+    }
+
+}
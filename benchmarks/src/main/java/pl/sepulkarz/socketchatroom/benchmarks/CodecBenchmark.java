@@ -0,0 +1,67 @@
+package pl.sepulkarz.socketchatroom.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.transport.Handshake;
+import pl.sepulkarz.socketchatroom.net.transport.MessageCodec;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of a typical chat message with every codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CodecBenchmark {
+
+    @Param({"text", "binary"})
+    private String codecName;
+
+    private MessageCodec codec;
+    private Message message;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setUp() {
+        codec = Handshake.chooseCodec(codecName);
+        message = buildMessage();
+        encoded = codec.encode(message);
+    }
+
+    @Benchmark
+    public Message build() {
+        return buildMessage();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return codec.encode(message);
+    }
+
+    @Benchmark
+    public Message decode() throws ParseException {
+        return codec.decode(encoded.duplicate());
+    }
+
+    private static Message buildMessage() {
+        return new Message.Builder().from("guest42").to(Message.BROADCAST).text("Hello everybody, how are you doing " +
+                "today?").build();
+    }
+
+}
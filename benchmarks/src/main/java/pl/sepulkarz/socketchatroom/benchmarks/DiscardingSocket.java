@@ -0,0 +1,44 @@
+package pl.sepulkarz.socketchatroom.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * An in-memory stand-in for a client's socket: there is nothing to read and everything written is discarded.
+ */
+class DiscardingSocket extends Socket {
+
+    private final InputStream input = new ByteArrayInputStream(new byte[0]);
+    private final OutputStream output = new OutputStream() {
+        @Override
+        public void write(int b) {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            written += len;
+        }
+    };
+    private long written;
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * @return Number of bytes written so far.
+     */
+    long getWritten() {
+        return written;
+    }
+
+}
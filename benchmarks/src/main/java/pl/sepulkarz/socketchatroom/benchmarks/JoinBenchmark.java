@@ -0,0 +1,51 @@
+package pl.sepulkarz.socketchatroom.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+import pl.sepulkarz.socketchatroom.server.net.ChatRoom;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client joining and leaving a crowded chat room: name check, acknowledgement, informing everybody else and
+ * telling the newcomer who is present - with a {@code JOINED} message per client or a single chat room state.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class JoinBenchmark {
+
+    @Param({"1000", "10000"})
+    private int clients;
+
+    @Param({"false", "true"})
+    private boolean state;
+
+    private ChatRoom chatRoom;
+
+    @Setup
+    public void setUp() throws IOException {
+        chatRoom = ChatRooms.populated(clients);
+    }
+
+    @Benchmark
+    public void joinAndLeave() throws IOException {
+        ClientData newcomer = ChatRooms.join(chatRoom, "newcomer", state);
+        chatRoom.leave(newcomer);
+    }
+
+}
@@ -9,7 +9,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Chat room client. Creates communicator and welcome window.
+ * Chat room client. Creates communicator and welcome window. Parameters: server address and, optionally, port.
  */
 public class Client {
 
@@ -20,7 +20,8 @@ public class Client {
 			System.out.println("Please provide server address as a parameter.");
 		} else {
 			try {
-				new WelcomeFrame(new Communicator(args[0], Connection.DEFAULT_PORT));
+				int port = args.length > 1 ? Integer.parseInt(args[1]) : Connection.DEFAULT_PORT;
+				new WelcomeFrame(new Communicator(args[0], port));
 			} catch (IOException e) {
 				LOGGER.log(Level.SEVERE, "Could not create connection", e);
 			}
@@ -2,33 +2,55 @@ package pl.sepulkarz.socketchatroom.client.gui;
 
 import pl.sepulkarz.socketchatroom.client.net.Communicator;
 import pl.sepulkarz.socketchatroom.client.net.IMessageListener;
+import pl.sepulkarz.socketchatroom.net.data.ChatRoomState;
 import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.data.PresenceDelta;
+import pl.sepulkarz.socketchatroom.net.data.UserMatches;
 
 import javax.swing.*;
 import javax.swing.border.LineBorder;
-import javax.swing.text.DefaultCaret;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.ResourceBundle;
 import java.util.Set;
 
 /**
  * Main window of the chat room. It has the events frame where messages and information about joining and leaving of
  * others is displayed, guest list frame and edit box + button for entering messages.
+ * <p>
+ * The events frame keeps only the last {@code -Dsocketchatroom.transcriptLines} lines and renders only the visible
+ * ones. Events update the window through an {@link UpdateBatcher}, so a busy room can't flood the event dispatch
+ * thread.
+ * <p>
+ * Pressing Tab after {@code @} and the beginning of a name asks the server for the names starting with it and
+ * completes the mention as far as the matches agree.
  */
 public class ChatRoomFrame extends JFrame implements IMessageListener {
 
     private static final ResourceBundle RESOURCE_BUNDLE = ResourceBundle.getBundle("strings");
 
+    private static final int TRANSCRIPT_LINES = Integer.getInteger("socketchatroom.transcriptLines", 10000);
+
     static Set<String> privateChats = new HashSet<String>();
     private Communicator communicator;
-    private JTextArea textArea;
+    private TranscriptModel transcript;
+    private JList<String> transcriptList;
+    private UpdateBatcher updates;
     private JList<String> guestList;
     private SortedListModel<String> guestListModel;
     private JTextField messageField;
     private JButton sendButton;
+    /**
+     * Text of the message field when the names for a mention were asked for, {@code null} if no answer is awaited.
+     * Like the positions of the mention's prefix below, used only by the event dispatch thread.
+     */
+    private String mentionQuery;
+    private int mentionStart;
+    private int mentionEnd;
 
     public ChatRoomFrame(Communicator communicator) {
         this.communicator = communicator;
@@ -44,16 +66,29 @@ public class ChatRoomFrame extends JFrame implements IMessageListener {
                 .getConnection()
                 .getRemoteAddress()));
         setPreferredSize(new Dimension(800, 600));
-        textArea = new JTextArea();
-        textArea.setEditable(false);
-        textArea.setBorder(new LineBorder(Color.BLACK));
-        textArea.setWrapStyleWord(true);
-        textArea.setLineWrap(true);
-        DefaultCaret caret = (DefaultCaret) textArea.getCaret();
-        caret.setUpdatePolicy(DefaultCaret.ALWAYS_UPDATE);
-        JScrollPane scrollPane = new JScrollPane();
-        scrollPane.setViewportView(textArea);
+        transcript = new TranscriptModel(TRANSCRIPT_LINES);
+        transcriptList = new JList<String>(transcript);
+        transcriptList.setBorder(new LineBorder(Color.BLACK));
+        transcriptList.setCellRenderer(new TranscriptCellRenderer());
+        // With fixed cell sizes the list lays out and paints only the visible rows, however many there are. The
+        // width is smaller than any viewport, so the list stretches to the viewport's width.
+        transcriptList.setFixedCellHeight(transcriptList.getFontMetrics(transcriptList.getFont()).getHeight() + 2);
+        transcriptList.setFixedCellWidth(1);
+        final JScrollPane scrollPane = new JScrollPane();
+        scrollPane.setViewportView(transcriptList);
         add(scrollPane, BorderLayout.CENTER);
+        updates = new UpdateBatcher(new Runnable() {
+            @Override
+            public void run() {
+                JScrollBar scrollBar = scrollPane.getVerticalScrollBar();
+                boolean following = scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum();
+                transcript.fireAdded();
+                // Keep showing the newest lines, unless the user has scrolled up to read older ones.
+                if (following && transcript.getSize() > 0) {
+                    transcriptList.ensureIndexIsVisible(transcript.getSize() - 1);
+                }
+            }
+        });
         guestListModel = new SortedListModel<String>();
         guestList = new JList<String>(guestListModel);
         guestList.setCellRenderer(new GuestListCellRenderer());
@@ -91,17 +126,20 @@ public class ChatRoomFrame extends JFrame implements IMessageListener {
         ActionListener userEnteredMessageListener = new UserEnteredMessageListener();
         messageField.addActionListener(userEnteredMessageListener);
         sendButton.addActionListener(userEnteredMessageListener);
+        // Tab completes mentions instead of moving the focus.
+        messageField.setFocusTraversalKeysEnabled(false);
+        messageField.addKeyListener(new MentionCompletionListener());
         UserStartedPrivateChatListener pcal = new UserStartedPrivateChatListener();
         guestList.addMouseListener(pcal);
     }
 
     @Override
     public void messageArrived(final Message message) {
-        SwingUtilities.invokeLater(new Runnable() {
+        updates.post(new Runnable() {
             @Override
             public void run() {
                 if (message.isBroadcast()) {
-                    textArea.append(String.format(RESOURCE_BUNDLE.getString("format.message"), message.getDate(),
+                    transcript.add(String.format(RESOURCE_BUNDLE.getString("format.message"), message.getDate(),
                             message.getFrom(), message.getText()));
                 } else {
                     if (!privateChats.contains(message.getFrom())) {
@@ -115,10 +153,10 @@ public class ChatRoomFrame extends JFrame implements IMessageListener {
 
     @Override
     public void joined(final Date when, final String who) {
-        SwingUtilities.invokeLater(new Runnable() {
+        updates.post(new Runnable() {
             @Override
             public void run() {
-                textArea.append(String.format(RESOURCE_BUNDLE.getString("format.joined"), when, who));
+                transcript.add(String.format(RESOURCE_BUNDLE.getString("format.joined"), when, who));
                 guestListModel.addElement(who);
             }
         });
@@ -126,15 +164,127 @@ public class ChatRoomFrame extends JFrame implements IMessageListener {
 
     @Override
     public void left(final Date when, final String who) {
-        SwingUtilities.invokeLater(new Runnable() {
+        updates.post(new Runnable() {
             @Override
             public void run() {
-                textArea.append(String.format(RESOURCE_BUNDLE.getString("format.left"), when, who));
+                transcript.add(String.format(RESOURCE_BUNDLE.getString("format.left"), when, who));
                 guestListModel.removeElement(who);
             }
         });
     }
 
+    @Override
+    public void presenceDelta(final PresenceDelta delta) {
+        updates.post(new Runnable() {
+            @Override
+            public void run() {
+                List<String> joined = new ArrayList<String>();
+                List<String> left = new ArrayList<String>();
+                for (PresenceDelta.Change change : delta.getChanges()) {
+                    String who = change.getName();
+                    // Changes already known from the chat room state aren't announced again.
+                    if (change.isJoined() && !guestListModel.contains(who)) {
+                        transcript.add(String.format(RESOURCE_BUNDLE.getString("format.joined"), change.getDate(),
+                                who));
+                        joined.add(who);
+                    } else if (!change.isJoined() && guestListModel.contains(who)) {
+                        transcript.add(String.format(RESOURCE_BUNDLE.getString("format.left"), change.getDate(),
+                                who));
+                        left.add(who);
+                    }
+                }
+                guestListModel.apply(joined, left);
+            }
+        });
+    }
+
+    @Override
+    public void throttled(final long retryAfterMillis) {
+        updates.post(new Runnable() {
+            @Override
+            public void run() {
+                transcript.add(String.format(RESOURCE_BUNDLE.getString("format.throttled"), new Date(),
+                        retryAfterMillis));
+            }
+        });
+    }
+
+    @Override
+    public void usersFound(final UserMatches matches) {
+        updates.post(new Runnable() {
+            @Override
+            public void run() {
+                completeMention(matches.getNames());
+            }
+        });
+    }
+
+    /**
+     * Completes the mention the names were asked for, unless the message has changed since. A single match is
+     * completed whole, several as far as they agree and listed in the events frame.
+     */
+    private void completeMention(List<String> names) {
+        String text = messageField.getText();
+        if (mentionQuery == null || !mentionQuery.equals(text) || names.isEmpty()) {
+            mentionQuery = null;
+            return;
+        }
+        mentionQuery = null;
+        String completion = names.size() == 1 ? names.get(0) + " " : commonPrefix(names);
+        if (completion.length() > mentionEnd - mentionStart) {
+            messageField.setText(text.substring(0, mentionStart) + completion + text.substring(mentionEnd));
+            messageField.setCaretPosition(mentionStart + completion.length());
+        }
+        if (names.size() > 1) {
+            transcript.add(String.format(RESOURCE_BUNDLE.getString("format.mentions"), new Date(), names));
+        }
+    }
+
+    /**
+     * @return The longest beginning shared by all the names, regardless of case, as the first name has it.
+     */
+    private static String commonPrefix(List<String> names) {
+        String first = names.get(0);
+        int length = first.length();
+        for (String name : names) {
+            while (!name.regionMatches(true, 0, first, 0, length)) {
+                length--;
+            }
+        }
+        return first.substring(0, length);
+    }
+
+    @Override
+    public void chatRoomState(final ChatRoomState state) {
+        final List<String> names = new ArrayList<String>(state.getMembers().size());
+        for (ChatRoomState.Member member : state.getMembers()) {
+            names.add(member.getName());
+        }
+        updates.post(new Runnable() {
+            @Override
+            public void run() {
+                transcript.add(String.format(RESOURCE_BUNDLE.getString("format.state"), new Date(), names.size(),
+                        names));
+                guestListModel.addAll(names);
+            }
+        });
+    }
+
+    /**
+     * Shows the whole line as a tool tip, as lines too long for the window are cut.
+     */
+    private static class TranscriptCellRenderer extends DefaultListCellRenderer {
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected,
+                                                      boolean cellHasFocus) {
+            Component c = super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+            setToolTipText((String) value);
+            return c;
+        }
+
+    }
+
     /**
      * Handles user's intention to send a message to general public.
      */
@@ -148,6 +298,31 @@ public class ChatRoomFrame extends JFrame implements IMessageListener {
         }
     }
 
+    /**
+     * Asks for the names to complete the mention before the caret when Tab is pressed.
+     */
+    private class MentionCompletionListener extends KeyAdapter {
+        @Override
+        public void keyPressed(KeyEvent e) {
+            if (e.getKeyCode() != KeyEvent.VK_TAB || e.getModifiersEx() != 0) {
+                return;
+            }
+            e.consume();
+            String text = messageField.getText();
+            int caret = messageField.getCaretPosition();
+            int start = caret;
+            while (start > 0 && !Character.isWhitespace(text.charAt(start - 1))) {
+                start--;
+            }
+            if (start < caret && text.charAt(start) == '@' && communicator.queryUsers(text.substring(start + 1,
+                    caret))) {
+                mentionQuery = text;
+                mentionStart = start + 1;
+                mentionEnd = caret;
+            }
+        }
+    }
+
     /**
      * Handles the intention of starting a private chat.
      */
@@ -0,0 +1,182 @@
+package pl.sepulkarz.socketchatroom.client.gui;
+
+/**
+ * Sorted set (in natural order) with access by index: an AVL tree whose nodes know the size of their subtrees.
+ * Finding, adding and removing an element, as well as finding the element at an index, take O(log n) - unlike
+ * iterating a {@code TreeSet} up to the index.
+ *
+ * @param <T> Type of the element.
+ */
+class IndexedTreeSet<T> {
+
+    private Node<T> root;
+
+    int size() {
+        return size(root);
+    }
+
+    /**
+     * @return Index of the element or -1 if it's not in the set.
+     */
+    int indexOf(T element) {
+        int index = 0;
+        Node<T> node = root;
+        while (node != null) {
+            int comparison = compare(element, node.element);
+            if (comparison < 0) {
+                node = node.left;
+            } else if (comparison > 0) {
+                index += size(node.left) + 1;
+                node = node.right;
+            } else {
+                return index + size(node.left);
+            }
+        }
+        return -1;
+    }
+
+    T get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+        }
+        Node<T> node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                node = node.right;
+            } else {
+                return node.element;
+            }
+        }
+    }
+
+    /**
+     * @return Index of the added element or -1 if it was already in the set.
+     */
+    int add(T element) {
+        if (indexOf(element) >= 0) {
+            return -1;
+        }
+        root = insert(root, element);
+        return indexOf(element);
+    }
+
+    /**
+     * @return Index the removed element had or -1 if it wasn't in the set.
+     */
+    int remove(T element) {
+        int index = indexOf(element);
+        if (index >= 0) {
+            root = delete(root, element);
+        }
+        return index;
+    }
+
+    private Node<T> insert(Node<T> node, T element) {
+        if (node == null) {
+            return new Node<T>(element);
+        }
+        if (compare(element, node.element) < 0) {
+            node.left = insert(node.left, element);
+        } else {
+            node.right = insert(node.right, element);
+        }
+        return balance(node);
+    }
+
+    private Node<T> delete(Node<T> node, T element) {
+        int comparison = compare(element, node.element);
+        if (comparison < 0) {
+            node.left = delete(node.left, element);
+        } else if (comparison > 0) {
+            node.right = delete(node.right, element);
+        } else {
+            if (node.left == null) {
+                return node.right;
+            }
+            if (node.right == null) {
+                return node.left;
+            }
+            // Replace with the successor, which is then removed from the right subtree.
+            Node<T> successor = node.right;
+            while (successor.left != null) {
+                successor = successor.left;
+            }
+            node.element = successor.element;
+            node.right = delete(node.right, successor.element);
+        }
+        return balance(node);
+    }
+
+    private Node<T> balance(Node<T> node) {
+        update(node);
+        int balance = height(node.left) - height(node.right);
+        if (balance > 1) {
+            if (height(node.left.left) < height(node.left.right)) {
+                node.left = rotateLeft(node.left);
+            }
+            return rotateRight(node);
+        }
+        if (balance < -1) {
+            if (height(node.right.right) < height(node.right.left)) {
+                node.right = rotateRight(node.right);
+            }
+            return rotateLeft(node);
+        }
+        return node;
+    }
+
+    private Node<T> rotateRight(Node<T> node) {
+        Node<T> left = node.left;
+        node.left = left.right;
+        left.right = node;
+        update(node);
+        update(left);
+        return left;
+    }
+
+    private Node<T> rotateLeft(Node<T> node) {
+        Node<T> right = node.right;
+        node.right = right.left;
+        right.left = node;
+        update(node);
+        update(right);
+        return right;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(T o1, T o2) {
+        return ((Comparable<? super T>) o1).compareTo(o2);
+    }
+
+    private static void update(Node<?> node) {
+        node.height = Math.max(height(node.left), height(node.right)) + 1;
+        node.size = size(node.left) + size(node.right) + 1;
+    }
+
+    private static int height(Node<?> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static int size(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static class Node<T> {
+
+        private T element;
+        private Node<T> left;
+        private Node<T> right;
+        private int height = 1;
+        private int size = 1;
+
+        private Node(T element) {
+            this.element = element;
+        }
+
+    }
+
+}
@@ -2,7 +2,10 @@ package pl.sepulkarz.socketchatroom.client.gui;
 
 import pl.sepulkarz.socketchatroom.client.net.Communicator;
 import pl.sepulkarz.socketchatroom.client.net.IMessageListener;
+import pl.sepulkarz.socketchatroom.net.data.ChatRoomState;
 import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.data.PresenceDelta;
+import pl.sepulkarz.socketchatroom.net.data.UserMatches;
 
 import javax.swing.*;
 import javax.swing.border.LineBorder;
@@ -97,6 +100,30 @@ public class PrivateChatFrame extends JFrame implements IMessageListener {
         // Do nothing, the main window takes care of that
     }
 
+    @Override
+    public void chatRoomState(ChatRoomState state) {
+        // Do nothing, the main window takes care of that
+    }
+
+    @Override
+    public void presenceDelta(PresenceDelta delta) {
+        for (PresenceDelta.Change change : delta.getChanges()) {
+            if (!change.isJoined()) {
+                left(change.getDate(), change.getName());
+            }
+        }
+    }
+
+    @Override
+    public void throttled(long retryAfterMillis) {
+        // Do nothing, the main window takes care of that
+    }
+
+    @Override
+    public void usersFound(UserMatches matches) {
+        // Do nothing, the main window takes care of that
+    }
+
     @Override
     public void left(final Date when, final String who) {
         if (!interlocutor.equals(who)) {
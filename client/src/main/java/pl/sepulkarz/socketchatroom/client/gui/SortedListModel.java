@@ -1,42 +1,79 @@
 package pl.sepulkarz.socketchatroom.client.gui;
 
 import javax.swing.*;
-import java.util.Iterator;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Collection;
+import java.util.Collections;
 
 /**
- * List model that maintains natural order. Minimal necessary implementation.
+ * List model that maintains natural order. Elements are kept in an {@link IndexedTreeSet}, so the list can render
+ * any row in O(log n), and every change is reported as the exact interval added or removed - the list keeps its
+ * selection and repaints only what has moved.
  *
  * @param <T> Type of the element.
  */
 public class SortedListModel<T> extends AbstractListModel<T> {
 
-    private SortedSet<T> model = new TreeSet<T>();
+    private final IndexedTreeSet<T> model = new IndexedTreeSet<T>();
 
     @Override
     public int getSize() {
         return model.size();
     }
 
-    public T getElementAt(int index, Iterator<T> iterator) {
-        T element = iterator.next();
-        return index == 0 ? element : getElementAt(index - 1, iterator);
-    }
-
     @Override
     public T getElementAt(int index) {
-        return getElementAt(index, model.iterator());
+        return model.get(index);
     }
 
     public void addElement(T element) {
-        model.add(element);
-        fireContentsChanged(this, 0, model.size());
+        int index = model.add(element);
+        if (index >= 0) {
+            fireIntervalAdded(this, index, index);
+        }
+    }
+
+    public void addAll(Collection<T> elements) {
+        apply(elements, Collections.<T>emptyList());
     }
 
     public void removeElement(T element) {
-        model.remove(element);
-        fireContentsChanged(this, 0, model.size());
+        int index = model.remove(element);
+        if (index >= 0) {
+            fireIntervalRemoved(this, index, index);
+        }
+    }
+
+    public void removeAll(Collection<T> elements) {
+        apply(Collections.<T>emptyList(), elements);
+    }
+
+    /**
+     * Removes and adds many elements at once. Filling an empty list fires a single event, otherwise every change
+     * fires its own.
+     *
+     * @param added   Elements to add, those already present are skipped.
+     * @param removed Elements to remove, those not present are skipped.
+     */
+    public void apply(Collection<T> added, Collection<T> removed) {
+        for (T element : removed) {
+            removeElement(element);
+        }
+        if (model.size() == 0) {
+            for (T element : added) {
+                model.add(element);
+            }
+            if (model.size() > 0) {
+                fireIntervalAdded(this, 0, model.size() - 1);
+            }
+        } else {
+            for (T element : added) {
+                addElement(element);
+            }
+        }
+    }
+
+    public boolean contains(T element) {
+        return model.indexOf(element) >= 0;
     }
 
 }
@@ -0,0 +1,87 @@
+package pl.sepulkarz.socketchatroom.client.gui;
+
+import javax.swing.*;
+
+/**
+ * Lines of a chat transcript in a ring buffer of fixed capacity - once it is full, every new line replaces the
+ * oldest one, so a busy room can't make the client run out of memory. Lines are added silently and the list is told
+ * about all of them at once by {@link #fireAdded()}. Meant for the event dispatch thread only.
+ */
+class TranscriptModel extends AbstractListModel<String> {
+
+    private final String[] lines;
+    /**
+     * Position of the oldest line in the buffer.
+     */
+    private int first;
+    private int size;
+    /**
+     * Lines added since the list was last told about them.
+     */
+    private int added;
+    private boolean evicted;
+
+    /**
+     * @param capacity Maximum number of lines kept.
+     */
+    TranscriptModel(int capacity) {
+        this.lines = new String[capacity];
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return lines[(first + index) % lines.length];
+    }
+
+    /**
+     * Adds the text, a line per row.
+     *
+     * @param text The text, possibly with line breaks.
+     */
+    void add(String text) {
+        int start = 0;
+        int end;
+        while ((end = text.indexOf('\n', start)) >= 0) {
+            addLine(text.substring(start, end));
+            start = end + 1;
+        }
+        if (start < text.length()) {
+            addLine(text.substring(start));
+        }
+    }
+
+    /**
+     * Notifies the list of the lines added since the last call.
+     */
+    void fireAdded() {
+        if (evicted) {
+            // Every row has moved up.
+            fireContentsChanged(this, 0, size - 1);
+        } else if (added > 0) {
+            fireIntervalAdded(this, size - added, size - 1);
+        }
+        added = 0;
+        evicted = false;
+    }
+
+    private void addLine(String line) {
+        if (size == lines.length) {
+            lines[first] = line;
+            first = (first + 1) % lines.length;
+            evicted = true;
+        } else {
+            lines[(first + size) % lines.length] = line;
+            size++;
+            added++;
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package pl.sepulkarz.socketchatroom.client.gui;
+
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects window updates posted by any thread and runs them on the event dispatch thread - all the waiting ones
+ * together, at most once per frame interval. A busy room then costs the event dispatch thread one repaint per frame
+ * instead of one task per message.
+ */
+class UpdateBatcher {
+
+    /**
+     * About 25 frames per second.
+     */
+    static final int FRAME_MILLIS = 40;
+
+    private final Queue<Runnable> updates = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Timer timer;
+
+    /**
+     * @param afterBatch Run on the event dispatch thread after every batch of updates.
+     */
+    UpdateBatcher(final Runnable afterBatch) {
+        timer = new Timer(FRAME_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                // Reset first, so updates posted from now on schedule another batch.
+                scheduled.set(false);
+                Runnable update;
+                while ((update = updates.poll()) != null) {
+                    update.run();
+                }
+                afterBatch.run();
+            }
+        });
+        timer.setRepeats(false);
+        // A coalescing timer would drop a firing due while the previous batch still runs, and nothing would restart it.
+        timer.setCoalesce(false);
+    }
+
+    /**
+     * Schedules an update. Can be called from any thread.
+     *
+     * @param update Run on the event dispatch thread within a frame interval.
+     */
+    void post(Runnable update) {
+        updates.add(update);
+        if (scheduled.compareAndSet(false, true)) {
+            // Starting only adds the timer to the shared, synchronized timer queue, so any thread may do it.
+            timer.start();
+        }
+    }
+
+}
@@ -1,17 +1,28 @@
 package pl.sepulkarz.socketchatroom.client.net;
 
+import pl.sepulkarz.socketchatroom.net.data.ChatRoomState;
 import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.data.PresenceDelta;
+import pl.sepulkarz.socketchatroom.net.data.UserMatches;
 import pl.sepulkarz.socketchatroom.net.transport.ClientData;
 import pl.sepulkarz.socketchatroom.net.transport.Connection;
+import pl.sepulkarz.socketchatroom.net.transport.DeflateContext;
+import pl.sepulkarz.socketchatroom.net.transport.Handshake;
+import pl.sepulkarz.socketchatroom.net.transport.MessageCodec;
+import pl.sepulkarz.socketchatroom.net.transport.SocketConnection;
 
 import java.io.IOException;
 import java.net.Socket;
 import java.text.ParseException;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,22 +33,121 @@ public class Communicator {
 
     private final static Logger LOGGER = Logger.getLogger(Communicator.class.getName());
 
+    private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("socketchatroom.compression",
+            "true"));
+
+    /**
+     * Number of times to try connecting again after the connection broke, a second apart.
+     */
+    private static final int RESUME_ATTEMPTS = 5;
+    private static final long RESUME_DELAY_MILLIS = 1000;
+
+    /**
+     * Number of events that can wait for the listeners before reading from the server waits too, 0 to call the
+     * listeners on the reading thread.
+     */
+    private static final int DISPATCH_QUEUE_CAPACITY = Integer.getInteger("socketchatroom.dispatchQueueCapacity",
+            1024);
+
+    private final String serverAddress;
+    private final int serverPort;
     private ClientData client;
     private SenderThread senderThread;
-    private Set<IMessageListener> messageListeners = new HashSet<IMessageListener>();
-    private Set<ILoginListener> loginListeners = new HashSet<ILoginListener>();
+    private Thread senderThreadHandle;
+    /**
+     * Listeners are added and removed rarely, while every message is dispatched to them, so the sets are copied on
+     * write and iterated without locking.
+     */
+    private final Set<IMessageListener> messageListeners = new CopyOnWriteArraySet<IMessageListener>();
+    private final Set<ILoginListener> loginListeners = new CopyOnWriteArraySet<ILoginListener>();
+    private final Set<IRoomListener> roomListeners = new CopyOnWriteArraySet<IRoomListener>();
+    private final ListenerDispatcher dispatcher = new ListenerDispatcher(DISPATCH_QUEUE_CAPACITY);
+    private final Runnable loginSuccessful = new Runnable() {
+        @Override
+        public void run() {
+            for (ILoginListener loginListener : loginListeners) {
+                loginListener.loginSuccessful();
+            }
+        }
+    };
+    private final Runnable rejectedUserName = new Runnable() {
+        @Override
+        public void run() {
+            for (ILoginListener loginListener : loginListeners) {
+                loginListener.rejectedUserName();
+            }
+        }
+    };
+    private final Runnable connectionError = new Runnable() {
+        @Override
+        public void run() {
+            for (ILoginListener loginListener : loginListeners) {
+                loginListener.connectionError();
+            }
+        }
+    };
+    /**
+     * Released when the server replies to hello. The reply may switch codecs, so nothing else can be sent before.
+     */
+    private final Semaphore loginReply = new Semaphore(0);
+    /**
+     * Session the server keeps for this client, {@code null} if it doesn't.
+     */
+    private volatile String session;
+    /**
+     * Whether the server answers {@code Message.Type.USERS} queries.
+     */
+    private volatile boolean userQueries;
+    /**
+     * Number of messages received since logging in, which tells the server where to resume the session. Used only
+     * by the listener thread.
+     */
+    private long received;
+    /**
+     * Whether the connection broke and is being replaced. Messages to send wait meanwhile. Guarded by the
+     * communicator's lock, like {@code stopped}.
+     */
+    private boolean resuming;
+    /**
+     * Whether the listener thread has finished, for good.
+     */
+    private boolean stopped;
+    private volatile boolean leaving;
+    /**
+     * Whether the listeners have been told the connection is lost. Both threads may notice it, but it is reported
+     * once.
+     */
+    private final AtomicBoolean connectionLost = new AtomicBoolean();
 
     public Communicator(String serverAddress, int serverPort) throws IOException {
-        client = new ClientData(new Connection(new Socket(serverAddress, serverPort)));
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        client = new ClientData(new SocketConnection(new Socket(serverAddress, serverPort)));
+        dispatcher.start("listener-dispatch");
         new Thread(new ServerListenerThread()).start();
         senderThread = new SenderThread();
-        new Thread(senderThread).start();
+        senderThreadHandle = new Thread(senderThread);
+        senderThreadHandle.start();
     }
 
     public ClientData getClient() {
         return client;
     }
 
+    /**
+     * @return Number of events from the server waiting for the listeners.
+     */
+    public int getDispatchBacklog() {
+        return dispatcher.getBacklog();
+    }
+
+    /**
+     * @return The most events from the server ever found waiting for the listeners.
+     */
+    public int getMaxDispatchBacklog() {
+        return dispatcher.getMaxBacklog();
+    }
+
     public void addMessageListener(IMessageListener messageListener) {
         messageListeners.add(messageListener);
     }
@@ -54,8 +164,31 @@ public class Communicator {
         loginListeners.remove(loginListener);
     }
 
+    public void addRoomListener(IRoomListener roomListener) {
+        roomListeners.add(roomListener);
+    }
+
+    public void removeRoomListener(IRoomListener roomListener) {
+        roomListeners.remove(roomListener);
+    }
+
+    /**
+     * Asks the server to join the chat room, offering all the codecs and features this client supports and, unless
+     * {@code -Dsocketchatroom.compression=false} is set, compression.
+     */
     public void sendHello() {
-        senderThread.enqueueMessage(new Message.Builder().from(client.getName()).type(Message.Type.HELLO).build());
+        senderThread.enqueueMessage(new Message.Builder().from(client.getName()).type(Message.Type.HELLO).text
+                (Handshake.format(offer())).build());
+    }
+
+    private Map<String, String> offer() {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        options.put(Handshake.CODEC, Handshake.supportedCodecs());
+        options.put(Handshake.FEATURES, Handshake.supportedFeatures());
+        if (COMPRESSION) {
+            options.put(Handshake.COMPRESSION, DeflateContext.NAME);
+        }
+        return options;
     }
 
     public void sendMessageToAll(String text) {
@@ -67,55 +200,168 @@ public class Communicator {
         senderThread.enqueueMessage(new Message.Builder().from(client.getName()).to(to).text(text).build());
     }
 
+    /**
+     * Enters a room, creating it if nobody is there.
+     *
+     * @param room Name of the room, starting with {@code Message.ROOM_PREFIX}.
+     */
+    public void joinRoom(String room) {
+        senderThread.enqueueMessage(new Message.Builder().from(client.getName()).to(room).type(Message.Type.JOIN)
+                .build());
+    }
+
+    public void partRoom(String room) {
+        senderThread.enqueueMessage(new Message.Builder().from(client.getName()).to(room).type(Message.Type.PART)
+                .build());
+    }
+
+    /**
+     * Sends a message to the members of a room. Only members can do it.
+     *
+     * @param room Name of the room.
+     * @param text The text.
+     */
+    public void sendMessageToRoom(String room, String text) {
+        senderThread.enqueueMessage(new Message.Builder().from(client.getName()).to(room).text(text).build());
+    }
+
+    /**
+     * Asks the server for the names starting with a prefix, regardless of case. The answer goes to {@link
+     * IMessageListener#usersFound}.
+     *
+     * @param prefix Beginning of the names.
+     * @return {@code false} if the server can't answer, being older than this client.
+     */
+    public boolean queryUsers(String prefix) {
+        if (!userQueries) {
+            return false;
+        }
+        senderThread.enqueueMessage(UserMatches.query(prefix));
+        return true;
+    }
+
+    /**
+     * Leaves the chat room for good. If the server keeps a session for this client, it is told so with a {@code
+     * Message.Type.LEFT} message - otherwise it would wait for the client to come back.
+     */
     public void leaveChatRoom() {
         LOGGER.info("Leaving. Goodbye!");
-        try {
-            client.getConnection().shutdownStreams();
-        } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "Problem with shutting down streams socket", e);
+        leaving = true;
+        // The listener closes the connection under the same lock once the server hangs up.
+        synchronized (this) {
+            try {
+                if (client.getConnection().isPossibleToWrite()) {
+                    if (session != null && !resuming) {
+                        client.getConnection().send(new Message.Builder().from(client.getName()).type(Message
+                                .Type.LEFT).build());
+                    }
+                    client.getConnection().shutdownStreams();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Problem with shutting down streams socket", e);
+            }
+        }
+    }
+
+    /**
+     * Tells the login listeners the connection is lost, unless they have been told already.
+     */
+    private void reportConnectionLost() {
+        if (connectionLost.compareAndSet(false, true)) {
+            dispatcher.dispatch(connectionError);
         }
     }
 
+    /**
+     * Receives messages from the server and hands them over to the listeners, see {@link ListenerDispatcher}. When
+     * the connection breaks while the server keeps a session for this client, it connects again and resumes the
+     * session, the server sending the messages missed meanwhile. Messages sent by this client while the connection
+     * was broken are lost.
+     */
     private class ServerListenerThread implements Runnable {
 
         @Override
         public void run() {
+            try {
+                do {
+                    receiveAll();
+                } while (reconnect());
+            } finally {
+                synchronized (Communicator.this) {
+                    stopped = true;
+                    Communicator.this.notifyAll();
+                }
+                loginReply.release();
+                // The writer thread may be waiting for a message that will never be sent.
+                senderThreadHandle.interrupt();
+                dispatcher.stop();
+            }
+        }
+
+        /**
+         * Handles messages until the connection closes, then closes it.
+         */
+        private void receiveAll() {
             try {
                 Message message;
                 // Work until socket is closed.
                 while ((message = client.getConnection().receive()) != null) {
-                    Date date = message.getDate();
-                    String from = message.getFrom();
                     switch (message.getType()) {
                         case JOINED:
-                            for (IMessageListener messageListener : messageListeners) {
-                                messageListener.joined(date, from);
-                            }
-                            break;
                         case NORMAL:
-                            for (IMessageListener messageListener : messageListeners) {
-                                messageListener.messageArrived(message);
-                            }
-                            break;
                         case LEFT:
-                            for (IMessageListener messageListener : messageListeners) {
-                                messageListener.left(date, from);
-                            }
+                        case JOIN:
+                        case PART:
+                            dispatcher.dispatch(new Delivery(message, null));
+                            break;
+                        case CHAT_ROOM_STATE:
+                            dispatcher.dispatch(new Delivery(message, ChatRoomState.fromMessage(message)));
+                            break;
+                        case PRESENCE_DELTA:
+                            dispatcher.dispatch(new Delivery(message, PresenceDelta.fromMessage(message)));
+                            break;
+                        case THROTTLED:
+                            dispatcher.dispatch(new Delivery(message, retryAfterMillis(message)));
+                            break;
+                        case USERS:
+                            dispatcher.dispatch(new Delivery(message, UserMatches.fromMessage(message)));
                             break;
                         case LOGIN_SUCCESSFUL:
-                            for (ILoginListener loginListener : loginListeners) {
-                                loginListener.loginSuccessful();
+                            // Everything after the acknowledgement uses the codec and compression chosen by the server.
+                            Map<String, String> options = Handshake.parse(message.getText());
+                            MessageCodec codec = Handshake.chooseCodec(options.get(Handshake.CODEC));
+                            client.getConnection().switchCodec(codec != null ? codec : client.getConnection()
+                                    .getCodec(), Handshake.hasDeflate(options));
+                            userQueries = Handshake.hasFeature(options, Handshake.FEATURE_USERS);
+                            if (resumed()) {
+                                break;
                             }
+                            session = options.get(Handshake.SESSION);
+                            received = 0;
+                            loginReply.release();
+                            dispatcher.dispatch(loginSuccessful);
+                            break;
+                        case PING:
+                            senderThread.enqueueMessage(new Message.Builder().type(Message.Type.PONG).build());
                             break;
                         case REJECTED_USER_NAME:
-                            for (ILoginListener loginListener : loginListeners) {
-                                loginListener.rejectedUserName();
+                            if (isResuming()) {
+                                LOGGER.warning("Server refused to resume the session");
+                                session = null;
+                                // The connection closes and there is no session left, so it is reported as lost.
+                                client.getConnection().shutdownStreams();
+                                break;
                             }
+                            loginReply.release();
+                            dispatcher.dispatch(rejectedUserName);
                             break;
                         default:
                             LOGGER.log(Level.WARNING, "Unrecognized message " + message);
                             break;
                     }
+                    if (message.getType() != Message.Type.LOGIN_SUCCESSFUL) {
+                        received++;
+                    }
                 }
             } catch (IOException e) {
                 LOGGER.log(Level.SEVERE, "Socket reading failure", e);
@@ -125,6 +371,8 @@ public class Communicator {
                 try {
                     // Wait for the writer thread if it's still writing to socket.
                     synchronized (Communicator.this) {
+                        // Messages sent from now on wait for the session to be resumed, if it can be.
+                        resuming = session != null && !leaving;
                         client.getConnection().close();
                     }
                 } catch (IOException e) {
@@ -132,6 +380,155 @@ public class Communicator {
                 }
             }
         }
+
+        /**
+         * Connects to the server again after the connection broke and asks it to resume the session, if there is
+         * one.
+         *
+         * @return Whether the request was sent on a new connection.
+         */
+        private boolean reconnect() {
+            if (!isResuming()) {
+                if (!leaving) {
+                    // The server closed the connection, or it broke, and there is no session to resume.
+                    reportConnectionLost();
+                }
+                return false;
+            }
+            for (int attempt = 1; attempt <= RESUME_ATTEMPTS && !leaving; attempt++) {
+                try {
+                    Thread.sleep(RESUME_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                Map<String, String> options = offer();
+                options.put(Handshake.SESSION, session);
+                options.put(Handshake.SEQUENCE, Long.toString(received));
+                try {
+                    Connection connection = new SocketConnection(new Socket(serverAddress, serverPort));
+                    connection.send(new Message.Builder().from(client.getName()).type(Message.Type.HELLO).text
+                            (Handshake.format(options)).build());
+                    synchronized (Communicator.this) {
+                        client.setConnection(connection);
+                    }
+                    LOGGER.info(String.format("Connected again, resuming the session after %d messages", received));
+                    return true;
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Connecting again failed, attempt " + attempt, e);
+                }
+            }
+            if (!leaving) {
+                reportConnectionLost();
+            }
+            return false;
+        }
+
+        /**
+         * @return How long a {@code Message.Type.THROTTLED} message asks to wait, 0 if it doesn't say.
+         */
+        private long retryAfterMillis(Message message) {
+            try {
+                return Long.parseLong(message.getText());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Throttled without a valid time to wait: " + message.getText());
+                return 0;
+            }
+        }
+
+        private boolean isResuming() {
+            synchronized (Communicator.this) {
+                return resuming;
+            }
+        }
+
+        /**
+         * @return Whether the session has been resumed just now, letting the waiting messages go.
+         */
+        private boolean resumed() {
+            synchronized (Communicator.this) {
+                if (!resuming) {
+                    return false;
+                }
+                resuming = false;
+                Communicator.this.notifyAll();
+            }
+            LOGGER.info("Session resumed");
+            return true;
+        }
+    }
+
+    /**
+     * A message from the server for the listeners, its content parsed by the listener thread already.
+     */
+    private class Delivery implements Runnable {
+
+        private final Message message;
+        /**
+         * {@link ChatRoomState}, {@link PresenceDelta}, {@link UserMatches} or the retry time of {@code
+         * Message.Type.THROTTLED}.
+         */
+        private final Object content;
+
+        private Delivery(Message message, Object content) {
+            this.message = message;
+            this.content = content;
+        }
+
+        @Override
+        public void run() {
+            Date date = message.getDate();
+            String from = message.getFrom();
+            switch (message.getType()) {
+                case JOINED:
+                    for (IMessageListener messageListener : messageListeners) {
+                        messageListener.joined(date, from);
+                    }
+                    break;
+                case NORMAL:
+                    for (IMessageListener messageListener : messageListeners) {
+                        messageListener.messageArrived(message);
+                    }
+                    break;
+                case LEFT:
+                    for (IMessageListener messageListener : messageListeners) {
+                        messageListener.left(date, from);
+                    }
+                    break;
+                case CHAT_ROOM_STATE:
+                    for (IMessageListener messageListener : messageListeners) {
+                        messageListener.chatRoomState((ChatRoomState) content);
+                    }
+                    break;
+                case PRESENCE_DELTA:
+                    for (IMessageListener messageListener : messageListeners) {
+                        messageListener.presenceDelta((PresenceDelta) content);
+                    }
+                    break;
+                case JOIN:
+                    for (IRoomListener roomListener : roomListeners) {
+                        roomListener.joinedRoom(date, message.getTo(), from);
+                    }
+                    break;
+                case PART:
+                    for (IRoomListener roomListener : roomListeners) {
+                        roomListener.partedRoom(date, message.getTo(), from);
+                    }
+                    break;
+                case THROTTLED:
+                    for (IMessageListener messageListener : messageListeners) {
+                        messageListener.throttled((Long) content);
+                    }
+                    break;
+                case USERS:
+                    for (IMessageListener messageListener : messageListeners) {
+                        messageListener.usersFound((UserMatches) content);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
     }
 
     /**
@@ -143,26 +540,48 @@ public class Communicator {
 
         @Override
         public void run() {
-            while (client.getConnection().isPossibleToWrite()) {
+            while (!isStopped()) {
                 try {
+                    Message sent = null;
+                    Message message = messagesToSend.take();
                     // Listener thread could close the connection in the meantime, so we synchronize and check the
-                    // possibility of writing again.
+                    // possibility of writing again. Waiting for a message happens outside, so that the listener
+                    // thread can close the connection while there is nothing to send.
                     synchronized (Communicator.this) {
+                        while (resuming && !stopped) {
+                            Communicator.this.wait();
+                        }
                         if (client.getConnection().isPossibleToWrite()) {
-                            client.getConnection().send(messagesToSend.take());
+                            sent = message;
+                            client.getConnection().send(sent);
                         }
                     }
+                    if (sent != null && sent.getType() == Message.Type.HELLO) {
+                        loginReply.acquire();
+                    }
                 } catch (IOException e) {
-                    LOGGER.log(Level.SEVERE, "Problem with connection", e);
-                    for (ILoginListener loginListener : loginListeners) {
-                        loginListener.connectionError();
+                    if (session != null && !leaving) {
+                        // The listener thread notices too and resumes the session.
+                        LOGGER.log(Level.WARNING, "Message lost, the connection broke", e);
+                    } else {
+                        LOGGER.log(Level.SEVERE, "Problem with connection", e);
+                        reportConnectionLost();
                     }
                 } catch (InterruptedException e) {
-                    LOGGER.log(Level.SEVERE, "Thread interrupted", e);
+                    // Being interrupted after the listener thread has finished is the normal way to stop.
+                    if (!isStopped()) {
+                        LOGGER.log(Level.SEVERE, "Thread interrupted", e);
+                    }
                 }
             }
         }
 
+        private boolean isStopped() {
+            synchronized (Communicator.this) {
+                return stopped;
+            }
+        }
+
         /**
          * Enqueue message to send. The implementation is thread-safe as it delegates to {@code BlockingQueue}.
          *
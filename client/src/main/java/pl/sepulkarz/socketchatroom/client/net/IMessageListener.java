@@ -1,6 +1,9 @@
 package pl.sepulkarz.socketchatroom.client.net;
 
+import pl.sepulkarz.socketchatroom.net.data.ChatRoomState;
 import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.data.PresenceDelta;
+import pl.sepulkarz.socketchatroom.net.data.UserMatches;
 
 import java.util.Date;
 
@@ -33,4 +36,35 @@ public interface IMessageListener {
      */
     void left(Date when, String who);
 
+    /**
+     * Snapshot of everyone present, this client included, received right after login instead of a {@code joined}
+     * call per client.
+     *
+     * @param state The chat room state.
+     */
+    void chatRoomState(ChatRoomState state);
+
+    /**
+     * Clients that joined or left recently, received instead of separate {@code joined} and {@code left} calls.
+     * Changes right after login may repeat what the chat room state already said.
+     *
+     * @param delta The changes, in order.
+     */
+    void presenceDelta(PresenceDelta delta);
+
+    /**
+     * The server is dropping this client's messages, as they come too fast. Only the first dropped message is
+     * reported, until one gets through again.
+     *
+     * @param retryAfterMillis Time until the server would accept a message again.
+     */
+    void throttled(long retryAfterMillis);
+
+    /**
+     * The server's answer to {@link Communicator#queryUsers}.
+     *
+     * @param matches Names starting with the prefix asked for.
+     */
+    void usersFound(UserMatches matches);
+
 }
@@ -0,0 +1,29 @@
+package pl.sepulkarz.socketchatroom.client.net;
+
+import java.util.Date;
+
+/**
+ * Listener interface for room membership. Messages sent to rooms arrive at {@link IMessageListener}, addressed to the
+ * room.
+ */
+public interface IRoomListener {
+
+    /**
+     * Client joined a room. Having joined a room, this client learns about every other member this way too.
+     *
+     * @param when Date of the event.
+     * @param room The name of the room.
+     * @param who  The name of the client.
+     */
+    void joinedRoom(Date when, String room, String who);
+
+    /**
+     * Client parted a room.
+     *
+     * @param when Date of the event.
+     * @param room The name of the room.
+     * @param who  The name of the client.
+     */
+    void partedRoom(Date when, String room, String who);
+
+}
@@ -0,0 +1,137 @@
+package pl.sepulkarz.socketchatroom.client.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Calls the listeners of a {@link Communicator} on a thread of its own, so that reading from the server never waits
+ * for them. Events are handed over through a bounded queue: when the listeners fall a whole queue behind, reading
+ * waits for them, and the server queues the rest. The dispatch thread takes all the events waiting at once, up to a
+ * batch, so a burst of messages costs it a single wake-up.
+ */
+class ListenerDispatcher implements Runnable {
+
+    private final static Logger LOGGER = Logger.getLogger(ListenerDispatcher.class.getName());
+
+    /**
+     * Maximum number of events taken from the queue at once.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Put after the last event, to stop the thread once everything before has been dispatched.
+     */
+    private static final Runnable STOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * {@code null} if events are dispatched on the thread that fires them.
+     */
+    private final BlockingQueue<Runnable> events;
+    private final List<Runnable> batch = new ArrayList<Runnable>(BATCH_SIZE);
+    private final AtomicInteger backlog = new AtomicInteger();
+    private volatile int maxBacklog;
+
+    /**
+     * @param capacity Number of events that can wait, 0 to call the listeners on the thread firing the events.
+     */
+    ListenerDispatcher(int capacity) {
+        this.events = capacity > 0 ? new ArrayBlockingQueue<Runnable>(capacity) : null;
+    }
+
+    void start(String name) {
+        if (events != null) {
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Hands an event over to the dispatch thread, waiting while the queue is full.
+     *
+     * @param event Calls the listeners.
+     */
+    void dispatch(Runnable event) {
+        if (events == null) {
+            run(event);
+            return;
+        }
+        backlog.incrementAndGet();
+        try {
+            events.put(event);
+        } catch (InterruptedException e) {
+            backlog.decrementAndGet();
+            LOGGER.log(Level.WARNING, "Event not dispatched", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the dispatch thread once the events fired so far have been dispatched.
+     */
+    void stop() {
+        if (events != null) {
+            try {
+                events.put(STOP);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return Number of events waiting to be dispatched.
+     */
+    int getBacklog() {
+        return backlog.get();
+    }
+
+    /**
+     * @return The most events ever found waiting by the dispatch thread.
+     */
+    int getMaxBacklog() {
+        return maxBacklog;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                batch.add(events.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            events.drainTo(batch, BATCH_SIZE - 1);
+            int waiting = backlog.get();
+            if (waiting > maxBacklog) {
+                maxBacklog = waiting;
+            }
+            for (Runnable event : batch) {
+                if (event == STOP) {
+                    return;
+                }
+                run(event);
+                backlog.decrementAndGet();
+            }
+            batch.clear();
+        }
+    }
+
+    private static void run(Runnable event) {
+        try {
+            event.run();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Listener failure", e);
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package pl.sepulkarz.socketchatroom.client.gui;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+public class IndexedTreeSetTest {
+
+    private IndexedTreeSet<Integer> set;
+
+    @Before
+    public void setUp() {
+        set = new IndexedTreeSet<Integer>();
+    }
+
+    @Test
+    public void addReturnsIndexInSortedOrder() {
+        assertEquals(0, set.add(20));
+        assertEquals(0, set.add(10));
+        assertEquals(2, set.add(30));
+        assertEquals(1, set.add(15));
+        assertEquals(-1, set.add(15));
+        assertEquals(4, set.size());
+    }
+
+    @Test
+    public void removeReturnsIndexTheElementHad() {
+        for (int i = 0; i < 10; i++) {
+            set.add(i);
+        }
+        assertEquals(5, set.remove(5));
+        assertEquals(-1, set.remove(5));
+        assertEquals(0, set.remove(0));
+        assertEquals(7, set.remove(9));
+        assertEquals(7, set.size());
+    }
+
+    @Test
+    public void indexesShiftAfterRemovingInnerNodes() {
+        for (int i = 1; i <= 15; i++) {
+            set.add(i);
+        }
+        // In a balanced tree of 15 elements 8 is the root and 4 and 12 have two children each.
+        set.remove(8);
+        set.remove(4);
+        set.remove(12);
+        assertContents(1, 2, 3, 5, 6, 7, 9, 10, 11, 13, 14, 15);
+    }
+
+    @Test
+    public void matchesSortedListAfterRandomRemovals() {
+        Random random = new Random(42);
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            int element = random.nextInt(2000);
+            expected.add(element);
+            set.add(element);
+        }
+        List<Integer> shuffled = new ArrayList<Integer>(expected);
+        Collections.shuffle(shuffled, random);
+        for (Integer element : shuffled.subList(0, shuffled.size() / 2)) {
+            assertEquals(expected.headSet(element).size(), set.remove(element));
+            expected.remove(element);
+        }
+        List<Integer> sorted = new ArrayList<Integer>(expected);
+        assertEquals(sorted.size(), set.size());
+        for (int i = 0; i < sorted.size(); i++) {
+            assertEquals(sorted.get(i), set.get(i));
+            assertEquals(i, set.indexOf(sorted.get(i)));
+        }
+        for (Integer removed : shuffled.subList(0, shuffled.size() / 2)) {
+            assertEquals(-1, set.indexOf(removed));
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getPastTheEndFailsAfterRemoval() {
+        set.add(1);
+        set.add(2);
+        set.remove(2);
+        set.get(1);
+    }
+
+    private void assertContents(Integer... elements) {
+        assertEquals(elements.length, set.size());
+        for (int i = 0; i < elements.length; i++) {
+            assertEquals(elements[i], set.get(i));
+            assertEquals(i, set.indexOf(elements[i]));
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+package pl.sepulkarz.socketchatroom.net.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Snapshot of the chat room sent to a client right after it joins, instead of one {@code Message.Type.JOINED}
+ * message per present client. It travels as the text of a {@code Message.Type.CHAT_ROOM_STATE} message: members in
+ * the order they joined, each written as the join time in milliseconds, {@code :} and the name, separated with tabs.
+ * Tabs, line breaks and backslashes in names are escaped with a backslash. This type is immutable.
+ */
+public class ChatRoomState {
+
+    static final char SEPARATOR = '\t';
+
+    private final List<Member> members;
+
+    public ChatRoomState(List<Member> members) {
+        this.members = Collections.unmodifiableList(new ArrayList<Member>(members));
+    }
+
+    /**
+     * @return Members of the chat room, in the order they joined.
+     */
+    public List<Member> getMembers() {
+        return members;
+    }
+
+    public Message toMessage() {
+        StringBuilder builder = new StringBuilder(members.size() * 24);
+        for (Member member : members) {
+            if (builder.length() > 0) {
+                builder.append(SEPARATOR);
+            }
+            builder.append(member.getJoinedDate().getTime()).append(':');
+            escape(member.getName(), builder);
+        }
+        return new Message.Builder().type(Message.Type.CHAT_ROOM_STATE).text(builder.toString()).build();
+    }
+
+    /**
+     * Reads the snapshot from the text of a {@code Message.Type.CHAT_ROOM_STATE} message.
+     *
+     * @param message The message.
+     * @return The snapshot.
+     * @throws IllegalArgumentException When the text is malformed.
+     */
+    public static ChatRoomState fromMessage(Message message) {
+        List<Member> members = new ArrayList<Member>();
+        String text = message.getText();
+        int start = 0;
+        while (text != null && start < text.length()) {
+            int colon = text.indexOf(':', start);
+            if (colon < 0) {
+                throw new IllegalArgumentException("Malformed chat room state: " + text);
+            }
+            long joined = Long.parseLong(text.substring(start, colon));
+            StringBuilder name = new StringBuilder();
+            int end = unescape(text, colon + 1, name);
+            members.add(new Member(name.toString(), new Date(joined)));
+            start = end + 1;
+        }
+        return new ChatRoomState(members);
+    }
+
+    static void escape(String name, StringBuilder builder) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == SEPARATOR) {
+                builder.append("\\t");
+            } else if (c == '\n') {
+                builder.append("\\n");
+            } else if (c == '\\') {
+                builder.append("\\\\");
+            } else {
+                builder.append(c);
+            }
+        }
+    }
+
+    /**
+     * @return Index of the separator ending the name, or the length of the text.
+     */
+    static int unescape(String text, int start, StringBuilder name) {
+        int i = start;
+        for (; i < text.length() && text.charAt(i) != SEPARATOR; i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char escaped = text.charAt(++i);
+                name.append(escaped == 't' ? SEPARATOR : escaped == 'n' ? '\n' : escaped);
+            } else {
+                name.append(c);
+            }
+        }
+        return i;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[ChatRoomState|members:%d]", members.size());
+    }
+
+    /**
+     * A client present in the chat room.
+     */
+    public static class Member {
+
+        private final String name;
+        private final Date joinedDate;
+
+        public Member(String name, Date joinedDate) {
+            this.name = name;
+            this.joinedDate = joinedDate;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Date getJoinedDate() {
+            return joinedDate;
+        }
+
+    }
+
+}
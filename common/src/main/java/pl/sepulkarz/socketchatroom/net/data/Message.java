@@ -11,6 +11,11 @@ public class Message {
      * Broadcast indication should be stored in {@code to} field.
      */
     public static String BROADCAST = "!BROADCAST";
+    /**
+     * Names of rooms start with this prefix, so they can't be mistaken for names of clients. A message to a room goes
+     * to its members only.
+     */
+    public static final String ROOM_PREFIX = "#";
     private Date date;
     private Type type;
     private String from;
@@ -49,13 +54,32 @@ public class Message {
         return BROADCAST.equals(to);
     }
 
+    public boolean isToRoom() {
+        return isRoom(to);
+    }
+
+    public static boolean isRoom(String name) {
+        return name != null && name.length() > ROOM_PREFIX.length() && name.startsWith(ROOM_PREFIX);
+    }
+
     @Override
     public String toString() {
         return String.format("[Message|date:%tc|type:%s|from:%s|to:%s|text:%s]", date, type, from, to, text);
     }
 
+    /**
+     * {@code JOIN} and {@code PART} carry the room in {@code to}. Clients send them to enter or leave a room; the
+     * server sends them to the room's members, from the client that entered or left. {@code CHAT_ROOM_STATE} carries
+     * a {@link ChatRoomState} and {@code PRESENCE_DELTA} a {@link PresenceDelta}. {@code CLAIM} is only sent between
+     * servers of a federation, asking the server a name belongs to whether it is free. A {@code PING} is answered with
+     * a {@code PONG}, proving the connection is alive. {@code THROTTLED} tells a client that its messages are being
+     * dropped for coming too fast; the text holds the number of milliseconds until it may send again. A client with
+     * a resumable session sends {@code LEFT} when it leaves for good. A client sends {@code USERS} with a prefix as
+     * its text to look up names starting with it; the server answers with {@link UserMatches}.
+     */
     public enum Type {
-        NORMAL, HELLO, JOINED, LEFT, LOGIN_SUCCESSFUL, REJECTED_USER_NAME;
+        NORMAL, HELLO, JOINED, LEFT, LOGIN_SUCCESSFUL, REJECTED_USER_NAME, JOIN, PART, CHAT_ROOM_STATE, PRESENCE_DELTA,
+        CLAIM, PING, PONG, THROTTLED, USERS;
     }
 
     /**
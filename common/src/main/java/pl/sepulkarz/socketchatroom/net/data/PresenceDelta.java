@@ -0,0 +1,102 @@
+package pl.sepulkarz.socketchatroom.net.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Clients that joined or left the chat room during a short time, sent as one {@code Message.Type.PRESENCE_DELTA}
+ * message instead of a {@code JOINED} or {@code LEFT} message per client. The text lists the changes in order, each
+ * written as {@code +} (joined) or {@code -} (left), the time in milliseconds, {@code :} and the name, separated
+ * with tabs and escaped like in {@link ChatRoomState}. Applying a change twice has no further effect. This type is
+ * immutable.
+ */
+public class PresenceDelta {
+
+    private final List<Change> changes;
+
+    public PresenceDelta(List<Change> changes) {
+        this.changes = Collections.unmodifiableList(new ArrayList<Change>(changes));
+    }
+
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    public Message toMessage() {
+        StringBuilder builder = new StringBuilder(changes.size() * 24);
+        for (Change change : changes) {
+            if (builder.length() > 0) {
+                builder.append(ChatRoomState.SEPARATOR);
+            }
+            builder.append(change.isJoined() ? '+' : '-').append(change.getDate().getTime()).append(':');
+            ChatRoomState.escape(change.getName(), builder);
+        }
+        return new Message.Builder().type(Message.Type.PRESENCE_DELTA).text(builder.toString()).build();
+    }
+
+    /**
+     * Reads the changes from the text of a {@code Message.Type.PRESENCE_DELTA} message.
+     *
+     * @param message The message.
+     * @return The delta.
+     * @throws IllegalArgumentException When the text is malformed.
+     */
+    public static PresenceDelta fromMessage(Message message) {
+        List<Change> changes = new ArrayList<Change>();
+        String text = message.getText();
+        int start = 0;
+        while (text != null && start < text.length()) {
+            int colon = text.indexOf(':', start);
+            char sign = text.charAt(start);
+            if (colon < 0 || (sign != '+' && sign != '-')) {
+                throw new IllegalArgumentException("Malformed presence delta: " + text);
+            }
+            long time = Long.parseLong(text.substring(start + 1, colon));
+            StringBuilder name = new StringBuilder();
+            int end = ChatRoomState.unescape(text, colon + 1, name);
+            changes.add(new Change(name.toString(), new Date(time), sign == '+'));
+            start = end + 1;
+        }
+        return new PresenceDelta(changes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[PresenceDelta|changes:%d]", changes.size());
+    }
+
+    /**
+     * A client that joined or left.
+     */
+    public static class Change {
+
+        private final String name;
+        private final Date date;
+        private final boolean joined;
+
+        public Change(String name, Date date, boolean joined) {
+            this.name = name;
+            this.date = date;
+            this.joined = joined;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        /**
+         * @return {@code true} if the client joined, {@code false} if it left.
+         */
+        public boolean isJoined() {
+            return joined;
+        }
+
+    }
+
+}
@@ -0,0 +1,79 @@
+package pl.sepulkarz.socketchatroom.net.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Names starting with a prefix, the server's answer to a {@code Message.Type.USERS} query, e.g. to complete a
+ * mention. Names match regardless of case and Unicode form. It travels as the text of a {@code Message.Type.USERS}
+ * message: the prefix asked for, then the names, separated with tabs and escaped like in {@link ChatRoomState}. This
+ * type is immutable.
+ */
+public class UserMatches {
+
+    private final String prefix;
+    private final List<String> names;
+
+    public UserMatches(String prefix, List<String> names) {
+        this.prefix = prefix;
+        this.names = Collections.unmodifiableList(new ArrayList<String>(names));
+    }
+
+    /**
+     * @return The prefix asked for, as the client wrote it.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return Matching names, ordered by their normalized form.
+     */
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * @param prefix Beginning of the names to look up.
+     * @return The query.
+     */
+    public static Message query(String prefix) {
+        return new Message.Builder().type(Message.Type.USERS).text(prefix).build();
+    }
+
+    public Message toMessage() {
+        StringBuilder builder = new StringBuilder(prefix.length() + names.size() * 12);
+        ChatRoomState.escape(prefix, builder);
+        for (String name : names) {
+            builder.append(ChatRoomState.SEPARATOR);
+            ChatRoomState.escape(name, builder);
+        }
+        return new Message.Builder().type(Message.Type.USERS).text(builder.toString()).build();
+    }
+
+    /**
+     * Reads the matches from the text of the server's {@code Message.Type.USERS} message.
+     *
+     * @param message The message.
+     * @return The matches.
+     */
+    public static UserMatches fromMessage(Message message) {
+        String text = message.getText() != null ? message.getText() : "";
+        StringBuilder prefix = new StringBuilder();
+        int start = ChatRoomState.unescape(text, 0, prefix) + 1;
+        List<String> names = new ArrayList<String>();
+        while (start <= text.length()) {
+            StringBuilder name = new StringBuilder();
+            start = ChatRoomState.unescape(text, start, name) + 1;
+            names.add(name.toString());
+        }
+        return new UserMatches(prefix.toString(), names);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[UserMatches|prefix:%s|names:%d]", prefix, names.size());
+    }
+
+}
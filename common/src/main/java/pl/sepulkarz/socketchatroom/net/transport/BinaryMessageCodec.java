@@ -0,0 +1,149 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+
+/**
+ * Compact binary protocol. Every message is a frame:
+ * <pre>
+ * int    length of the rest of the frame
+ * byte   type (ordinal of {@code Message.Type}, so new types must be appended)
+ * long   date in milliseconds since the epoch
+ * varint length of sender, followed by its UTF-8 bytes
+ * varint length of recipient, followed by its UTF-8 bytes
+ * varint length of text, followed by its UTF-8 bytes
+ * </pre>
+ * Varints hold 7 bits per byte, least significant group first, with the highest bit set on all but the last byte.
+ * Unlike the text protocol, any text - including line breaks - can be sent.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+    public static final BinaryMessageCodec INSTANCE = new BinaryMessageCodec();
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final Message.Type[] TYPES = Message.Type.values();
+    private static final int LENGTH_SIZE = 4;
+    private static final int MIN_FRAME_LENGTH = 1 + 8 + 3;
+
+    private final CodecTimings timings = new CodecTimings();
+
+    @Override
+    public String getName() {
+        return "binary";
+    }
+
+    @Override
+    public ByteBuffer encode(Message message) {
+        long startNanos = System.nanoTime();
+        byte[] from = bytes(message.getFrom());
+        byte[] to = bytes(message.getTo());
+        byte[] text = bytes(message.getText());
+        int frameLength = 1 + 8 + fieldLength(from) + fieldLength(to) + fieldLength(text);
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH_SIZE + frameLength);
+        buffer.putInt(frameLength);
+        buffer.put(message.getType() != null ? (byte) message.getType().ordinal() : -1);
+        buffer.putLong(message.getDate().getTime());
+        putBytes(buffer, from);
+        putBytes(buffer, to);
+        putBytes(buffer, text);
+        buffer.flip();
+        timings.encoded(startNanos);
+        return buffer;
+    }
+
+    @Override
+    public Message decode(ByteBuffer buffer) throws ParseException {
+        MessageView view = new MessageView(null);
+        return decode(buffer, view) ? view.toMessage() : null;
+    }
+
+    /**
+     * Locates the fields of the next frame without copying or decoding anything. On success the buffer position is
+     * moved past the frame, otherwise it is left untouched.
+     *
+     * @param buffer A buffer ready to be read from.
+     * @param view   The view to fill, valid until the buffer is modified.
+     * @return {@code false} if more bytes are needed.
+     * @throws ParseException When the bytes do not form a valid frame.
+     */
+    public boolean decode(ByteBuffer buffer, MessageView view) throws ParseException {
+        long startNanos = System.nanoTime();
+        int start = buffer.position();
+        if (buffer.remaining() < LENGTH_SIZE) {
+            return false;
+        }
+        int frameLength = buffer.getInt(start);
+        if (frameLength < MIN_FRAME_LENGTH || frameLength > Connection.MAX_MESSAGE_SIZE) {
+            throw new ParseException("Invalid frame length: " + frameLength, start);
+        }
+        if (buffer.remaining() < LENGTH_SIZE + frameLength) {
+            return false;
+        }
+        int end = start + LENGTH_SIZE + frameLength;
+        int position = start + LENGTH_SIZE;
+        int type = buffer.get(position++);
+        if (type < 0 || type >= TYPES.length) {
+            throw new ParseException("Unknown message type: " + type, start);
+        }
+        long time = buffer.getLong(position);
+        position += 8;
+        for (int field = MessageView.FROM; field <= MessageView.TEXT; field++) {
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (position >= end || shift > 28) {
+                    throw new ParseException("Invalid field length", position);
+                }
+                b = buffer.get(position++);
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (length < 0 || length > end - position) {
+                throw new ParseException("Invalid field length: " + length, position);
+            }
+            view.offsets[field] = position;
+            view.lengths[field] = length;
+            position += length;
+        }
+        if (position != end) {
+            throw new ParseException("Frame length mismatch", start);
+        }
+        view.reset(buffer, start, end, TYPES[type], time);
+        buffer.position(end);
+        timings.decoded(startNanos);
+        return true;
+    }
+
+    @Override
+    public CodecTimings getTimings() {
+        return timings;
+    }
+
+    private static byte[] bytes(String string) {
+        return string != null ? string.getBytes(CHARSET) : new byte[0];
+    }
+
+    private static int fieldLength(byte[] bytes) {
+        int length = bytes.length;
+        int size = 1;
+        while ((length >>>= 7) != 0) {
+            size++;
+        }
+        return size + bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        int length = bytes.length;
+        while ((length & ~0x7F) != 0) {
+            buffer.put((byte) ((length & 0x7F) | 0x80));
+            length >>>= 7;
+        }
+        buffer.put((byte) length);
+        buffer.put(bytes);
+    }
+
+}
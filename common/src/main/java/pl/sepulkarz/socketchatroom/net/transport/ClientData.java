@@ -1,15 +1,22 @@
 package pl.sepulkarz.socketchatroom.net.transport;
 
+import java.util.Collections;
 import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A representation of client with connection state and controller included.
  */
 public class ClientData {
 
-    private Connection connection;
+    private volatile Connection connection;
     private Date joinedDate;
     private String name;
+    /**
+     * Rooms the client is a member of.
+     */
+    private final Set<String> rooms = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     /**
      * Only connection is obligatory, other fields can be filled later.
@@ -24,6 +31,13 @@ public class ClientData {
         return connection;
     }
 
+    /**
+     * Replaces the connection, e.g. with a new one after the previous one broke.
+     */
+    public void setConnection(Connection connection) {
+        this.connection = connection;
+    }
+
     public Date getJoinedDate() {
         return joinedDate;
     }
@@ -40,6 +54,10 @@ public class ClientData {
         this.name = name;
     }
 
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
     @Override
     public String toString() {
         return String.format("[ClientData|connection:%s|name:%s|joinedDate:%s]", connection, name, joinedDate);
@@ -0,0 +1,30 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import pl.sepulkarz.socketchatroom.metrics.Histogram;
+
+/**
+ * Time spent by a codec on encoding and decoding single messages, in nanoseconds. Only complete messages are
+ * recorded - attempts to decode a message that hasn't fully arrived yet are not.
+ */
+public class CodecTimings {
+
+    private final Histogram encoding = new Histogram();
+    private final Histogram decoding = new Histogram();
+
+    void encoded(long startNanos) {
+        encoding.record(System.nanoTime() - startNanos);
+    }
+
+    void decoded(long startNanos) {
+        decoding.record(System.nanoTime() - startNanos);
+    }
+
+    public Histogram getEncoding() {
+        return encoding;
+    }
+
+    public Histogram getDecoding() {
+        return decoding;
+    }
+
+}
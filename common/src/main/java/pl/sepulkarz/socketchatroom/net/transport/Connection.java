@@ -2,49 +2,68 @@ package pl.sepulkarz.socketchatroom.net.transport;
 
 import pl.sepulkarz.socketchatroom.net.data.Message;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.net.SocketAddress;
-import java.text.DateFormat;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
-import java.util.Locale;
-import java.util.logging.Logger;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
- * The entry point to all client-server communication. This is essentially an implementation of text-based
- * communication protocol.
+ * The entry point to all client-server communication. Subclasses provide the transport, while the wire format is
+ * delegated to a {@link MessageCodec}.
  */
-public class Connection {
+public abstract class Connection {
 
     /**
      * In future versions this should be moved to configuration of client and server separately.
      */
     public static final int DEFAULT_PORT = 22222;
 
-    private final static Logger LOGGER = Logger.getLogger(Connection.class.getName());
+    /**
+     * A peer trying to send a bigger message is considered broken.
+     */
+    public static final int MAX_MESSAGE_SIZE = 1 << 20;
 
-    private final static DateFormat DATE_FORMATTER = DateFormat.getDateTimeInstance(
-            DateFormat.LONG,
-            DateFormat.LONG,
-            Locale.ROOT);
+    protected static final int INITIAL_BUFFER_SIZE = 1024;
 
-    private Socket socket;
-    private BufferedReader reader;
-    private PrintWriter writer;
+    protected volatile MessageCodec codec = TextMessageCodec.INSTANCE;
 
-    public Connection(Socket socket) throws IOException {
-        this.socket = socket;
-        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.writer = new PrintWriter(socket.getOutputStream());
-    }
+    /**
+     * Many threads may send to the same peer at once; this keeps their messages from interleaving and orders them
+     * with codec switches. A {@code ReentrantLock} rather than a monitor, so a virtual thread blocked on a slow socket
+     * doesn't pin its carrier thread.
+     */
+    protected final Lock writeLock = new ReentrantLock();
+
+    /**
+     * Compression of both directions, {@code null} unless it has been switched on.
+     */
+    protected volatile DeflateContext deflate;
+
+    /**
+     * Set under the write lock when the next message sent is the last one not compressed.
+     */
+    protected boolean deflateAfterNext;
+
+    /**
+     * Where every message sent is recorded, {@code null} if they aren't. Guarded by the write lock.
+     */
+    private ReplayBuffer replay;
+
+    /**
+     * {@code System.nanoTime()} of the last read that returned any bytes.
+     */
+    private volatile long lastReadNanos = System.nanoTime();
 
     /**
      * Reads from socket and reconstructs a message.
      *
-     * @return The reconstructed message.
+     * @return The reconstructed message or {@code null} when the peer has closed the connection.
      * @throws java.net.SocketException
      * @throws IOException              When readng fails. {@code java.net.SocketException} (more specialized
      *                                  exception) is thrown
@@ -52,22 +71,7 @@ public class Connection {
      *                                  thread.
      * @throws ParseException
      */
-    public Message receive() throws IOException, ParseException {
-        LOGGER.fine("Waiting for a message from " + socket);
-        String dateString = reader.readLine();
-        String type = reader.readLine();
-        String from = reader.readLine();
-        String to = reader.readLine();
-        String text = reader.readLine();
-        if (dateString != null && type != null) {
-            Message message = new Message.Builder().date(DATE_FORMATTER.parse(dateString)).type(Message.Type.valueOf
-                    (type)).from(from).to(to).text(text).build();
-            LOGGER.info(String.format("Message from %s received: %s", socket, message));
-            return message;
-        } else {
-            return null;
-        }
-    }
+    public abstract Message receive() throws IOException, ParseException;
 
     /**
      * Writes a message to socket.
@@ -76,37 +80,274 @@ public class Connection {
      * @throws IOException When writing fails.
      */
     public void send(Message message) throws IOException {
-        LOGGER.fine(String.format("Sending to %s unicast message: %s", socket, message));
-        writer.println(DATE_FORMATTER.format(message.getDate()));
-        writer.println(message.getType() != null ? message.getType() : "INVALID");
-        writer.println(message.getFrom() != null ? message.getFrom() : "");
-        writer.println(message.getTo() != null ? message.getTo() : "");
-        writer.println(message.getText() != null ? message.getText() : "");
-        writer.flush();
+        send(new OutboundMessage(message));
+    }
+
+    /**
+     * Writes a message to socket, reusing its encoding if it has already been sent to another connection with the
+     * same codec.
+     *
+     * @param message The message.
+     * @throws IOException When writing fails.
+     */
+    public abstract void send(OutboundMessage message) throws IOException;
+
+    /**
+     * @return The queue of messages waiting to be written or {@code null} if messages are written on the sending
+     * thread.
+     */
+    public OutboundQueue getOutboundQueue() {
+        return null;
+    }
+
+    public abstract void shutdownStreams() throws IOException;
+
+    public abstract void close() throws IOException;
+
+    /**
+     * Closes the connection on behalf of another thread than the reading one, which then cleans up as if the peer
+     * had closed it. This implementation simply closes it, waking the reading thread up.
+     *
+     * @throws IOException When closing fails.
+     */
+    public void abort() throws IOException {
+        close();
+    }
+
+    public abstract boolean isPossibleToWrite();
+
+    public abstract SocketAddress getRemoteAddress();
+
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return {@code System.nanoTime()} of the last time anything was read from the peer, or of the connection's
+     * creation.
+     */
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    /**
+     * Records that bytes have just been read. Called once per read rather than per message, so it costs a single
+     * volatile write however many messages arrive together.
+     */
+    protected void markRead() {
+        lastReadNanos = System.nanoTime();
+    }
+
+    /**
+     * @return The compression in use or {@code null}.
+     */
+    public DeflateContext getDeflate() {
+        return deflate;
+    }
+
+    /**
+     * Switches both directions to another codec. Meant for the side receiving the acknowledgement of a codec
+     * change, right after it has been received.
+     *
+     * @param codec The codec for all further messages.
+     */
+    public void switchCodec(MessageCodec codec) {
+        writeLock.lock();
+        try {
+            this.codec = codec;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Switches both directions to another codec and, optionally, to compression. Meant for the side receiving the
+     * acknowledgement of the change, on the thread reading from the connection, right after the acknowledgement has
+     * been received - anything read after it is decompressed.
+     *
+     * @param codec    The codec for all further messages.
+     * @param compress Whether all further bytes are compressed.
+     * @throws IOException When the bytes already read after the acknowledgement can't be decompressed.
+     */
+    public void switchCodec(MessageCodec codec, boolean compress) throws IOException {
+        writeLock.lock();
+        try {
+            this.codec = codec;
+            if (compress) {
+                deflate = new DeflateContext();
+                startDeflating();
+                startInflating();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a message with the current codec and switches both directions to another codec, so that no other
+     * message can be sent in between.
+     *
+     * @param message The last message sent with the current codec, acknowledging the change.
+     * @param codec   The codec for all further messages.
+     * @throws IOException When writing fails.
+     */
+    public void sendAndSwitchCodec(Message message, MessageCodec codec) throws IOException {
+        sendAndSwitchCodec(message, codec, false);
     }
 
-    public void shutdownStreams() throws IOException {
-        socket.shutdownInput();
-        socket.shutdownOutput();
+    /**
+     * Sends a message with the current codec and switches both directions to another codec and, optionally, to
+     * compression. Must be called by the thread reading from the connection, while the peer waits for the
+     * acknowledgement before sending anything else.
+     *
+     * @param message  The last message sent with the current codec and uncompressed, acknowledging the change.
+     * @param codec    The codec for all further messages.
+     * @param compress Whether all further bytes are compressed.
+     * @throws IOException When writing fails.
+     */
+    public void sendAndSwitchCodec(Message message, MessageCodec codec, boolean compress) throws IOException {
+        sendAndSwitchCodec(message, codec, compress, null);
     }
 
-    public void close() throws IOException {
-        writer.close();
-        reader.close();
-        socket.close();
+    /**
+     * Like {@link #sendAndSwitchCodec(Message, MessageCodec, boolean)}, but can also start recording all the messages
+     * sent after the acknowledgement, so that they can be sent again if the peer comes back on another connection,
+     * see {@link #resume}.
+     *
+     * @param replay Where to record the messages, {@code null} not to start recording.
+     */
+    public void sendAndSwitchCodec(Message message, MessageCodec codec, boolean compress, ReplayBuffer replay) throws
+            IOException {
+        writeLock.lock();
+        try {
+            if (compress) {
+                deflate = new DeflateContext();
+                deflateAfterNext = true;
+            }
+            send(message);
+            this.codec = codec;
+            if (compress) {
+                startInflating();
+            }
+            if (replay != null) {
+                this.replay = replay;
+            }
+        } finally {
+            writeLock.unlock();
+        }
     }
 
-    public boolean isPossibleToWrite() {
-        return !socket.isOutputShutdown();
+    /**
+     * Resumes the peer's session on this connection: takes the session over, then sends the acknowledgement like
+     * {@link #sendAndSwitchCodec(Message, MessageCodec, boolean)}, followed by the messages the peer missed, and
+     * records every message sent from then on. Nothing else can be sent in between, so messages sent to the peer
+     * while this runs, e.g. by whoever learns from taking over that they go to this connection now, follow the
+     * missed ones.
+     *
+     * @param message  The acknowledgement.
+     * @param codec    The codec for all further messages.
+     * @param compress Whether all further bytes are compressed.
+     * @param replay   Where to record the messages.
+     * @param takeOver Takes the session over, returning the messages missed, or {@code null} if it can't be resumed.
+     * @return Whether the session was resumed; nothing is sent if not.
+     * @throws IOException When writing fails.
+     */
+    public boolean resume(Message message, MessageCodec codec, boolean compress, ReplayBuffer replay,
+                          Supplier<List<OutboundMessage>> takeOver) throws IOException {
+        writeLock.lock();
+        try {
+            List<OutboundMessage> missed = takeOver.get();
+            if (missed == null) {
+                return false;
+            }
+            sendAndSwitchCodec(message, codec, compress);
+            for (OutboundMessage outbound : missed) {
+                send(outbound);
+            }
+            this.replay = replay;
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
     }
 
-    public SocketAddress getRemoteAddress() {
-        return socket.getRemoteSocketAddress();
+    /**
+     * Runs a task on the thread reading from the connection once a future completes, and only then handles whatever
+     * is read next - for a message whose handling waits for an answer from elsewhere. Must be called by the reading
+     * thread. This implementation simply blocks it until the future completes.
+     *
+     * @param future The awaited result.
+     * @param task   Handling to be finished, which checks the outcome of the future itself.
+     */
+    public void resumeWhenDone(CompletableFuture<?> future, Runnable task) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // The task finds out.
+        }
+        task.run();
+    }
+
+    /**
+     * Records a message that has just been sent, if recording has started. Called under the write lock.
+     */
+    protected void recordSent(OutboundMessage message) {
+        if (replay != null) {
+            replay.add(message);
+        }
+    }
+
+    /**
+     * Compresses everything sent from now on. Called under the write lock.
+     */
+    protected abstract void startDeflating();
+
+    /**
+     * Decompresses everything read from now on, including bytes already read but not decoded yet. Called by the
+     * thread reading from the connection.
+     *
+     * @throws IOException When the bytes already read can't be decompressed.
+     */
+    protected abstract void startInflating() throws IOException;
+
+    /**
+     * Moves the bytes left in a read buffer through decompression.
+     *
+     * @param readBuffer Buffer ready to be read from.
+     * @return Buffer with the decompressed bytes, ready to be read from.
+     * @throws IOException When the bytes can't be decompressed.
+     */
+    protected ByteBuffer inflateRemaining(ByteBuffer readBuffer) throws IOException {
+        byte[] compressed = new byte[readBuffer.remaining()];
+        readBuffer.get(compressed);
+        readBuffer.clear();
+        readBuffer = deflate.inflate(compressed, 0, compressed.length, readBuffer);
+        readBuffer.flip();
+        return readBuffer;
+    }
+
+    /**
+     * Makes room in a full read buffer by replacing it with a bigger one.
+     *
+     * @param buffer The buffer, ready to be written to.
+     * @return A buffer with the same contents and more space remaining.
+     * @throws IOException When the buffer would exceed {@code MAX_MESSAGE_SIZE}.
+     */
+    protected static ByteBuffer enlarge(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() >= MAX_MESSAGE_SIZE) {
+            throw new IOException("Message exceeds " + MAX_MESSAGE_SIZE + " bytes");
+        }
+        ByteBuffer enlarged = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_MESSAGE_SIZE));
+        buffer.flip();
+        enlarged.put(buffer);
+        return enlarged;
     }
 
     @Override
     public String toString() {
-        return String.format("[Connection|remoteAddress:%s]", socket.getRemoteSocketAddress());
+        return String.format("[%s|remoteAddress:%s]", getClass().getSimpleName(), getRemoteAddress());
     }
 
 }
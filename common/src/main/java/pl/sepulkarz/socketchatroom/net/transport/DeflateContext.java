@@ -0,0 +1,133 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of a connection, both directions being a single raw deflate stream each. Every write is
+ * finished with a sync flush, so the peer can decode all the messages written so far, while the dictionary is kept
+ * from message to message - chat messages repeat a lot of each other, so the stream compresses much better than
+ * separate messages would. The sending side belongs to the connection's writer and the receiving side to its reader.
+ */
+public class DeflateContext {
+
+    public static final String NAME = "deflate";
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private byte[] output = new byte[Connection.INITIAL_BUFFER_SIZE];
+    /**
+     * Written by the writer only, read by anyone for reporting.
+     */
+    private volatile long uncompressedBytes;
+    private volatile long compressedBytes;
+    private volatile long nanos;
+
+    /**
+     * Compresses messages into a buffer that is only valid until the next call. Writer only.
+     *
+     * @param messages Encoded messages, ready to be read from. Their positions are not moved.
+     * @param offset   Index of the first message.
+     * @param count    Number of messages.
+     * @return The compressed bytes, ready to be read from.
+     */
+    public ByteBuffer deflate(ByteBuffer[] messages, int offset, int count) {
+        long startNanos = System.nanoTime();
+        int length = 0;
+        int uncompressed = 0;
+        for (int i = offset; i < offset + count; i++) {
+            ByteBuffer message = messages[i];
+            deflater.setInput(message.array(), message.arrayOffset() + message.position(), message.remaining());
+            uncompressed += message.remaining();
+            length = deflate(length, Deflater.NO_FLUSH);
+        }
+        length = deflate(length, Deflater.SYNC_FLUSH);
+        uncompressedBytes += uncompressed;
+        compressedBytes += length;
+        nanos += System.nanoTime() - startNanos;
+        return ByteBuffer.wrap(output, 0, length);
+    }
+
+    public ByteBuffer deflate(ByteBuffer message) {
+        return deflate(new ByteBuffer[]{message}, 0, 1);
+    }
+
+    /**
+     * Decompresses bytes read from the peer. Reader only.
+     *
+     * @param compressed The bytes, all of which are consumed.
+     * @param offset     Index of the first byte.
+     * @param length     Number of bytes.
+     * @param target     Buffer ready to be written to.
+     * @return The target or, if it was too small, a bigger copy, ready to be written to.
+     * @throws IOException When the bytes are not a valid deflate stream or decompress to an oversized message.
+     */
+    public ByteBuffer inflate(byte[] compressed, int offset, int length, ByteBuffer target) throws IOException {
+        inflater.setInput(compressed, offset, length);
+        try {
+            while (true) {
+                int inflated = inflater.inflate(target.array(), target.arrayOffset() + target.position(), target
+                        .remaining());
+                target.position(target.position() + inflated);
+                if (target.hasRemaining()) {
+                    if (inflater.needsInput() || inflater.finished()) {
+                        return target;
+                    }
+                } else {
+                    target = Connection.enlarge(target);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data", e);
+        }
+    }
+
+    /**
+     * @return Number of bytes handed over to compression.
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /**
+     * @return Number of bytes the compression produced.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * @return Compressed size as a fraction of the original size, 1 if nothing has been compressed yet.
+     */
+    public double getRatio() {
+        long uncompressed = uncompressedBytes;
+        return uncompressed > 0 ? (double) compressedBytes / uncompressed : 1;
+    }
+
+    /**
+     * @return Time spent compressing, in nanoseconds.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Runs the deflater until it has taken all its input, growing the output array when needed.
+     */
+    private int deflate(int length, int flush) {
+        while (true) {
+            length += deflater.deflate(output, length, output.length - length, flush);
+            if (length < output.length) {
+                // With space left, the deflater has consumed its input and, if asked to, flushed.
+                return length;
+            }
+            byte[] enlarged = new byte[output.length * 2];
+            System.arraycopy(output, 0, enlarged, 0, length);
+            output = enlarged;
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Protocol options negotiated during login. The client lists what it supports in the text of its
+ * {@code Message.Type.HELLO} message and the server answers with its choice in the text of
+ * {@code Message.Type.LOGIN_SUCCESSFUL}. Options are written as {@code key=value} pairs separated with {@code ;}.
+ * Peers that don't know about an option simply ignore it, so an empty text means the original text protocol.
+ */
+public final class Handshake {
+
+    /**
+     * Codec to be used once login succeeds; a client may offer several, separated with {@code ,}.
+     */
+    public static final String CODEC = "codec";
+
+    /**
+     * Compression of everything after the acknowledgement, in both directions. The only one supported is
+     * {@code DeflateContext.NAME}.
+     */
+    public static final String COMPRESSION = "compression";
+
+    /**
+     * Optional protocol features, separated with {@code ,}. The client lists those it understands and the server
+     * answers with those it will use.
+     */
+    public static final String FEATURES = "features";
+
+    /**
+     * Feature: the client gets a single {@code Message.Type.CHAT_ROOM_STATE} snapshot on login, instead of a
+     * {@code Message.Type.JOINED} message per present client.
+     */
+    public static final String FEATURE_STATE = "state";
+
+    /**
+     * Feature: the client learns about clients joining and leaving from {@code Message.Type.PRESENCE_DELTA}
+     * messages, each collecting the changes of a short time, instead of {@code JOINED} and {@code LEFT} messages.
+     */
+    public static final String FEATURE_PRESENCE = "presence";
+
+    /**
+     * Feature: the client answers a {@code Message.Type.PING} with a {@code Message.Type.PONG}, so the server can tell
+     * an idle client from a dead connection.
+     */
+    public static final String FEATURE_PING = "ping";
+
+    /**
+     * Feature: a client whose connection breaks can come back on a new one within a short time and be sent the
+     * messages it missed, without having left the chat room in the meantime. The server names the client's session
+     * in the {@link #SESSION} option of the acknowledgement, and the client counts every message received after it.
+     * To come back, the client offers the session and the count in {@link #SEQUENCE}; the acknowledgement is then
+     * followed by the missed messages, or the hello is rejected if the session is gone. A client leaving for good
+     * sends {@code Message.Type.LEFT} first.
+     */
+    public static final String FEATURE_RESUME = "resume";
+
+    /**
+     * Feature: the server answers {@code Message.Type.USERS} queries, so the client can complete names without
+     * knowing everybody. Older servers don't know the message type, so clients only send it when this is agreed.
+     */
+    public static final String FEATURE_USERS = "users";
+
+    /**
+     * Token of a session that can be resumed.
+     */
+    public static final String SESSION = "session";
+
+    /**
+     * Number of messages the client has received in the session it resumes.
+     */
+    public static final String SEQUENCE = "sequence";
+
+    private static final String[] FEATURES_SUPPORTED = {FEATURE_STATE, FEATURE_PRESENCE, FEATURE_PING,
+            FEATURE_RESUME, FEATURE_USERS};
+
+    private static final MessageCodec[] CODECS = {BinaryMessageCodec.INSTANCE, TextMessageCodec.INSTANCE};
+
+    private Handshake() {
+    }
+
+    public static Map<String, String> parse(String text) {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        if (text != null) {
+            for (String option : text.split(";")) {
+                int separator = option.indexOf('=');
+                if (separator > 0) {
+                    options.put(option.substring(0, separator).trim(), option.substring(separator + 1).trim());
+                }
+            }
+        }
+        return options;
+    }
+
+    public static String format(Map<String, String> options) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(';');
+            }
+            builder.append(option.getKey()).append('=').append(option.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return Names of all supported codecs, the preferred one first.
+     */
+    public static String supportedCodecs() {
+        StringBuilder builder = new StringBuilder();
+        for (MessageCodec codec : CODECS) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(codec.getName());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return Names of all supported features.
+     */
+    public static String supportedFeatures() {
+        return formatFeatures(Arrays.asList(FEATURES_SUPPORTED));
+    }
+
+    /**
+     * @param features Names of features.
+     * @return Value of the {@link #FEATURES} option listing them.
+     */
+    public static String formatFeatures(List<String> features) {
+        StringBuilder builder = new StringBuilder();
+        for (String feature : features) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(feature);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param options Options as parsed by {@link #parse(String)}.
+     * @param feature Name of the feature.
+     * @return Whether the feature is listed in the options.
+     */
+    public static boolean hasFeature(Map<String, String> options, String feature) {
+        String features = options.get(FEATURES);
+        if (features != null) {
+            for (String name : features.split(",")) {
+                if (name.trim().equals(feature)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param options Options as parsed by {@link #parse(String)}.
+     * @return Whether deflate compression is offered or chosen.
+     */
+    public static boolean hasDeflate(Map<String, String> options) {
+        return DeflateContext.NAME.equals(options.get(COMPRESSION));
+    }
+
+    /**
+     * Chooses the first codec from the offer that is supported.
+     *
+     * @param offer Comma separated codec names, as sent by the peer, possibly {@code null}.
+     * @return The codec, or {@code null} if none of the offered codecs is supported.
+     */
+    public static MessageCodec chooseCodec(String offer) {
+        if (offer != null) {
+            for (String name : offer.split(",")) {
+                for (MessageCodec codec : CODECS) {
+                    if (codec.getName().equals(name.trim())) {
+                        return codec;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+}
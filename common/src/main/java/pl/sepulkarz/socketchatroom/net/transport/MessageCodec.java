@@ -0,0 +1,42 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+/**
+ * Wire format of the communication protocol. Implementations are stateless and thread-safe, so a single instance
+ * can be shared by all connections.
+ */
+public interface MessageCodec {
+
+    /**
+     * @return The name used to identify this codec.
+     */
+    String getName();
+
+    /**
+     * Serializes a message.
+     *
+     * @param message The message.
+     * @return A buffer ready to be read from, containing exactly one encoded message.
+     */
+    ByteBuffer encode(Message message);
+
+    /**
+     * Reconstructs a message from the buffer if it contains a complete one. On success the buffer position is moved
+     * past the consumed bytes, otherwise it is left untouched.
+     *
+     * @param buffer A buffer ready to be read from.
+     * @return The reconstructed message or {@code null} if more bytes are needed.
+     * @throws ParseException When the bytes do not form a valid message.
+     */
+    Message decode(ByteBuffer buffer) throws ParseException;
+
+    /**
+     * @return Time spent by this codec on encoding and decoding, shared by all its users.
+     */
+    CodecTimings getTimings();
+
+}
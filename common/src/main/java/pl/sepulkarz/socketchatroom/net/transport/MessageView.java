@@ -0,0 +1,146 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Date;
+
+/**
+ * A reusable, read-only view of a binary frame lying in a read buffer. Filling it with
+ * {@link BinaryMessageCodec#decode(ByteBuffer, MessageView)} only records where the fields are; strings are decoded
+ * when asked for. It is valid until the underlying buffer is modified, so it must not be kept - use
+ * {@link #copyFrame()} or {@link #toMessage()} for that.
+ */
+public class MessageView {
+
+    static final int FROM = 0;
+    static final int TO = 1;
+    static final int TEXT = 2;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final byte[] BROADCAST = Message.BROADCAST.getBytes(CHARSET);
+    private static final byte ROOM_PREFIX = Message.ROOM_PREFIX.getBytes(CHARSET)[0];
+
+    final int[] offsets = new int[3];
+    final int[] lengths = new int[3];
+    private final NameCache names;
+    private ByteBuffer buffer;
+    private int frameStart;
+    private int frameEnd;
+    private Message.Type type;
+    private long time;
+    private String to;
+
+    /**
+     * @param names Used to intern recipients' names, may be {@code null}.
+     */
+    public MessageView(NameCache names) {
+        this.names = names;
+    }
+
+    void reset(ByteBuffer buffer, int frameStart, int frameEnd, Message.Type type, long time) {
+        this.buffer = buffer;
+        this.frameStart = frameStart;
+        this.frameEnd = frameEnd;
+        this.type = type;
+        this.time = time;
+        this.to = null;
+    }
+
+    public Message.Type getType() {
+        return type;
+    }
+
+    /**
+     * @return Date of the message in milliseconds since the epoch.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public String getFrom() {
+        return string(FROM);
+    }
+
+    /**
+     * @return The recipient, interned if the view has a name cache.
+     */
+    public String getTo() {
+        if (to == null) {
+            to = names != null ? names.intern(buffer, offsets[TO], lengths[TO]) : string(TO);
+        }
+        return to;
+    }
+
+    public String getText() {
+        return string(TEXT);
+    }
+
+    /**
+     * Compares the recipient with {@code Message.BROADCAST} without decoding it.
+     */
+    public boolean isBroadcast() {
+        if (lengths[TO] != BROADCAST.length) {
+            return false;
+        }
+        for (int i = 0; i < BROADCAST.length; i++) {
+            if (buffer.get(offsets[TO] + i) != BROADCAST[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether the recipient is a room, see {@code Message.isToRoom()}, without decoding it.
+     */
+    public boolean isToRoom() {
+        return lengths[TO] > 1 && buffer.get(offsets[TO]) == ROOM_PREFIX;
+    }
+
+    /**
+     * @return Size of the whole frame in bytes.
+     */
+    public int getFrameLength() {
+        return frameEnd - frameStart;
+    }
+
+    /**
+     * @return A copy of the whole frame, ready to be read from.
+     */
+    public ByteBuffer copyFrame() {
+        byte[] copy = new byte[frameEnd - frameStart];
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + frameStart, copy, 0, copy.length);
+        } else {
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = buffer.get(frameStart + i);
+            }
+        }
+        return ByteBuffer.wrap(copy);
+    }
+
+    public Message toMessage() {
+        return new Message.Builder().date(new Date(time)).type(type).from(getFrom()).to(getTo()).text(getText())
+                .build();
+    }
+
+    private String string(int field) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offsets[field], lengths[field], CHARSET);
+        }
+        byte[] bytes = new byte[lengths[field]];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offsets[field] + i);
+        }
+        return new String(bytes, CHARSET);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[MessageView|date:%tc|type:%s|from:%s|to:%s|textLength:%d]", time, type, getFrom(),
+                getTo(), lengths[TEXT]);
+    }
+
+}
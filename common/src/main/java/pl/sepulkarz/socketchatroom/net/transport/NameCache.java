@@ -0,0 +1,95 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Interns user names decoded from UTF-8 bytes, so looking up a name that is already known allocates nothing. It is a
+ * direct-mapped cache: every name has one slot and a colliding name simply replaces it. Entries are immutable, so the
+ * cache can be shared by many threads without locking - at worst a thread misses an entry and decodes the name again.
+ */
+public class NameCache {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final Entry[] entries;
+    private final int mask;
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two.
+     */
+    public NameCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.entries = new Entry[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Makes sure a name is known, e.g. when a user logs in.
+     *
+     * @param name The name.
+     */
+    public void add(String name) {
+        byte[] bytes = name.getBytes(CHARSET);
+        int hash = hash(ByteBuffer.wrap(bytes), 0, bytes.length);
+        entries[hash & mask] = new Entry(hash, bytes, name);
+    }
+
+    /**
+     * Returns the name encoded in the buffer. Unknown names are decoded but not added, so that names nobody has
+     * logged in with, e.g. random recipients, can't push the known ones out.
+     *
+     * @param buffer The buffer; neither its position nor limit is used.
+     * @param offset Index of the first byte of the name.
+     * @param length Number of bytes.
+     * @return The canonical instance of the name, or a new one if the name is unknown.
+     */
+    public String intern(ByteBuffer buffer, int offset, int length) {
+        int hash = hash(buffer, offset, length);
+        Entry entry = entries[hash & mask];
+        if (entry != null && entry.hash == hash && entry.matches(buffer, offset, length)) {
+            return entry.name;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, CHARSET);
+    }
+
+    private static int hash(ByteBuffer buffer, int offset, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + buffer.get(offset + i);
+        }
+        // Spread the higher bits, as only the lower ones choose the slot.
+        return hash ^ (hash >>> 16);
+    }
+
+    private static class Entry {
+
+        private final int hash;
+        private final byte[] bytes;
+        private final String name;
+
+        private Entry(int hash, byte[] bytes, String name) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.name = name;
+        }
+
+        private boolean matches(ByteBuffer buffer, int offset, int length) {
+            if (bytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != buffer.get(offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,97 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A message on its way to one or more recipients. It is encoded at most once per codec, no matter how many
+ * connections it is sent to, so a broadcast costs one encoding plus a buffer write per recipient.
+ */
+public class OutboundMessage {
+
+    /**
+     * Only a few codecs exist, so encodings are kept in a small array rather than a map, which is cheaper to create
+     * for every message.
+     */
+    private static final int MAX_ENCODINGS = 4;
+
+    private final MessageCodec sourceCodec;
+    private final AtomicReferenceArray<Encoding> encodings = new AtomicReferenceArray<Encoding>(MAX_ENCODINGS);
+    private volatile Message message;
+
+    public OutboundMessage(Message message) {
+        this.sourceCodec = null;
+        this.message = message;
+    }
+
+    /**
+     * Creates a message to be forwarded as it was received. Recipients using the same codec get exactly these bytes;
+     * the {@code Message} itself is only reconstructed if some recipient needs another encoding.
+     *
+     * @param codec   The codec the bytes were encoded with.
+     * @param encoded A single encoded message, owned by this object from now on.
+     */
+    public OutboundMessage(MessageCodec codec, ByteBuffer encoded) {
+        this.sourceCodec = codec;
+        this.encodings.set(0, new Encoding(codec, encoded));
+    }
+
+    public Message getMessage() {
+        Message decoded = message;
+        if (decoded == null) {
+            try {
+                decoded = sourceCodec.decode(encodings.get(0).encoded.duplicate());
+            } catch (ParseException e) {
+                throw new IllegalStateException("Forwarded message can't be decoded", e);
+            }
+            message = decoded;
+        }
+        return decoded;
+    }
+
+    /**
+     * Returns the message encoded with the codec, encoding it on first use. The content is shared by all callers
+     * and must not be modified; only the returned buffer's position and limit are the caller's own.
+     *
+     * @param codec The codec of the recipient's connection.
+     * @return A buffer ready to be read from.
+     */
+    public ByteBuffer encode(MessageCodec codec) {
+        for (int i = 0; i < MAX_ENCODINGS; i++) {
+            Encoding encoding = encodings.get(i);
+            if (encoding == null) {
+                encoding = new Encoding(codec, codec.encode(getMessage()));
+                if (encodings.compareAndSet(i, null, encoding)) {
+                    return encoding.encoded.duplicate();
+                }
+                // Another thread has just taken the slot, perhaps with this very codec.
+                encoding = encodings.get(i);
+            }
+            if (encoding.codec == codec) {
+                return encoding.encoded.duplicate();
+            }
+        }
+        return codec.encode(getMessage());
+    }
+
+    @Override
+    public String toString() {
+        return getMessage().toString();
+    }
+
+    private static class Encoding {
+
+        private final MessageCodec codec;
+        private final ByteBuffer encoded;
+
+        private Encoding(MessageCodec codec, ByteBuffer encoded) {
+            this.codec = codec;
+            this.encoded = encoded;
+        }
+
+    }
+
+}
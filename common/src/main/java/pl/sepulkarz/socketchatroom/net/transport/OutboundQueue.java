@@ -0,0 +1,235 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import pl.sepulkarz.socketchatroom.metrics.Histogram;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of encoded messages waiting to be written to a connection. Any thread may add to it, but only the
+ * connection's single writer takes from it, so one slow client only ever fills up its own queue. What happens when
+ * the queue is full is decided by its {@link OverflowPolicy}.
+ * <p>
+ * The writer takes all the waiting messages at once with {@link #poll(ByteBuffer[])} and writes them with a single
+ * call, so a busy connection sends few large TCP segments instead of one small segment per message. Nothing waits
+ * for more messages to arrive - a batch is whatever has piled up during the previous write - and its size is capped,
+ * so the first message of a big backlog isn't held back much either.
+ */
+public class OutboundQueue {
+
+    /**
+     * Length of the arrays passed to {@link #poll(ByteBuffer[])}, the most messages written at once.
+     */
+    public static final int MAX_BATCH_MESSAGES = 64;
+
+    public static final int DEFAULT_BATCH_BYTES = 16 * 1024;
+
+    private static final AtomicLong droppedOldest = new AtomicLong();
+    private static final AtomicLong droppedNewest = new AtomicLong();
+    private static final AtomicLong disconnected = new AtomicLong();
+    /**
+     * Number of messages in every batch taken by the writers.
+     */
+    private static final Histogram batchSizes = new Histogram();
+
+    private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final int maxBatchBytes;
+    /**
+     * A batch ends with this message, so that the writer can change the way it writes the following ones.
+     */
+    private volatile ByteBuffer barrier;
+    /**
+     * Whether the last batch has ended with the barrier. Writer only.
+     */
+    private boolean barrierReached;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, DEFAULT_BATCH_BYTES);
+    }
+
+    /**
+     * @param capacity      Maximum number of messages waiting to be written.
+     * @param policy        What happens when the queue is full.
+     * @param maxBatchBytes A batch is complete once it has this many bytes, which bounds how long writing it takes.
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy, int maxBatchBytes) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Adds an encoded message, applying the overflow policy if the queue is full.
+     *
+     * @param encoded The encoded message.
+     * @return {@code false} if the queue is full and the policy says the consumer should be disconnected.
+     */
+    public boolean offer(ByteBuffer encoded) {
+        if (size.incrementAndGet() > capacity) {
+            switch (policy) {
+                case DROP_NEWEST:
+                    if (encoded == barrier) {
+                        // The writer switches the way it writes after the barrier, so it must not go missing.
+                        break;
+                    }
+                    size.decrementAndGet();
+                    droppedNewest.incrementAndGet();
+                    return true;
+                case DROP_OLDEST:
+                    if (barrier != null) {
+                        // The barrier is waiting and may be the oldest message, so drop the new one instead.
+                        if (encoded == barrier) {
+                            break;
+                        }
+                        size.decrementAndGet();
+                        droppedNewest.incrementAndGet();
+                        return true;
+                    }
+                    if (queue.poll() != null) {
+                        size.decrementAndGet();
+                        droppedOldest.incrementAndGet();
+                    }
+                    break;
+                default:
+                    size.decrementAndGet();
+                    disconnected.incrementAndGet();
+                    return false;
+            }
+        }
+        queue.add(encoded);
+        return true;
+    }
+
+    /**
+     * Takes the oldest message. Meant for the single writer only.
+     *
+     * @return The encoded message or {@code null} if the queue is empty.
+     */
+    public ByteBuffer poll() {
+        ByteBuffer encoded = queue.poll();
+        if (encoded != null) {
+            size.decrementAndGet();
+        }
+        return encoded;
+    }
+
+    /**
+     * Takes the oldest messages, until the batch array is full or the batch has at least the maximum number of bytes
+     * - so the last message may go over it. Meant for the single writer only.
+     *
+     * @param batch Filled with the messages from index 0.
+     * @return Number of messages taken, 0 if the queue is empty.
+     */
+    public int poll(ByteBuffer[] batch) {
+        int count = 0;
+        int bytes = 0;
+        barrierReached = false;
+        ByteBuffer encoded;
+        while (count < batch.length && bytes < maxBatchBytes && (encoded = poll()) != null) {
+            batch[count++] = encoded;
+            bytes += encoded.remaining();
+            if (encoded == barrier) {
+                barrier = null;
+                barrierReached = true;
+                break;
+            }
+        }
+        if (count > 0) {
+            batchSizes.record(count);
+        }
+        return count;
+    }
+
+    /**
+     * Makes the batch with the message end with it. Must be set before the message is offered, by the same thread or
+     * under the same lock as all offers. The overflow policy never drops the barrier: it may go over the capacity, and
+     * until it is taken, {@link OverflowPolicy#DROP_OLDEST} drops new messages instead.
+     *
+     * @param encoded The message, compared by identity.
+     */
+    public void setBarrier(ByteBuffer encoded) {
+        barrier = encoded;
+    }
+
+    /**
+     * @return Whether the batch taken last has ended with the barrier message. Writer only.
+     */
+    public boolean isBarrierReached() {
+        return barrierReached;
+    }
+
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * @return Number of messages waiting to be written.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public void clear() {
+        while (poll() != null) {
+            // Just drain.
+        }
+    }
+
+    /**
+     * @return Number of messages dropped by all queues to make room for newer ones.
+     */
+    public static long getDroppedOldest() {
+        return droppedOldest.get();
+    }
+
+    /**
+     * @return Number of messages dropped by all queues because they were full.
+     */
+    public static long getDroppedNewest() {
+        return droppedNewest.get();
+    }
+
+    /**
+     * @return Number of consumers disconnected because their queue was full.
+     */
+    public static long getDisconnected() {
+        return disconnected.get();
+    }
+
+    /**
+     * @return Number of messages written at once by all the writers.
+     */
+    public static Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    /**
+     * What to do with a message that doesn't fit in a full queue.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Make room by dropping the oldest waiting message.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the message that doesn't fit.
+         */
+        DROP_NEWEST,
+        /**
+         * Disconnect the slow consumer. The client can log in again and will see a consistent chat room, which is
+         * not the case when messages (especially JOINED and LEFT ones) get dropped.
+         */
+        DISCONNECT
+    }
+
+}
@@ -0,0 +1,79 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last messages sent to a peer, numbered in the order they were sent, so that a peer coming back after its
+ * connection broke can be sent the ones it hasn't received. Connections record every message they send into their
+ * replay buffer, if they have one, and the buffer outlives them. Only references are kept - a broadcast recorded by
+ * many connections is still a single message.
+ */
+public class ReplayBuffer {
+
+    private final OutboundMessage[] messages;
+    /**
+     * Number of messages recorded so far, which is also the number of the last one.
+     */
+    private long sequence;
+    /**
+     * Number of the first message recorded; the ones before it were sent before the buffer was started.
+     */
+    private long first;
+
+    /**
+     * @param capacity Number of messages kept.
+     */
+    public ReplayBuffer(int capacity) {
+        this.messages = new OutboundMessage[capacity];
+    }
+
+    public synchronized void add(OutboundMessage message) {
+        messages[(int) (sequence % messages.length)] = message;
+        sequence++;
+    }
+
+    /**
+     * @return Number of messages recorded so far.
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @param received Number of messages the peer has received.
+     * @return The messages recorded after those, oldest first, or {@code null} if some of them are no longer kept or
+     * the peer claims to have received more than has been sent.
+     */
+    public synchronized List<OutboundMessage> since(long received) {
+        if (received < first || received > sequence || sequence - received > messages.length) {
+            return null;
+        }
+        List<OutboundMessage> missed = new ArrayList<OutboundMessage>((int) (sequence - received));
+        for (long i = received; i < sequence; i++) {
+            missed.add(messages[(int) (i % messages.length)]);
+        }
+        return missed;
+    }
+
+    /**
+     * Numbers the messages recorded so far as if they came right after those the peer has received. Meant for a
+     * buffer started without knowing how many messages the peer had, e.g. by a server restored from a snapshot.
+     *
+     * @param received Number of messages the peer has received.
+     * @return The messages recorded, oldest first, or {@code null} if some of them are no longer kept.
+     */
+    public synchronized List<OutboundMessage> rebase(long received) {
+        if (received < 0 || sequence > messages.length) {
+            return null;
+        }
+        List<OutboundMessage> recorded = since(first);
+        first = received;
+        sequence = received;
+        for (OutboundMessage message : recorded) {
+            add(message);
+        }
+        return recorded;
+    }
+
+}
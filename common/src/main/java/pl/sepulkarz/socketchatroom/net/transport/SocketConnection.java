@@ -0,0 +1,316 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connection over a blocking socket. Every call to {@code receive} blocks the calling thread until a whole message
+ * arrives.
+ * <p>
+ * Sending either writes to the socket on the calling thread or, if the connection has an {@link OutboundQueue},
+ * only enqueues the message. The queue is then drained by a single writer task run on the given executor, so a
+ * client with a full TCP window never blocks the threads sending to it. The writer copies all the messages waiting
+ * into one buffer and writes it with a single call.
+ */
+public class SocketConnection extends Connection {
+
+    private final static Logger LOGGER = Logger.getLogger(SocketConnection.class.getName());
+
+    private Socket socket;
+    private InputStream input;
+    private OutputStream output;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private OutboundQueue outbound;
+    private Executor writerExecutor;
+    private final AtomicBoolean writerScheduled = new AtomicBoolean();
+    private final Runnable writer = new Writer();
+    /**
+     * Messages taken from the outbound queue by the writer.
+     */
+    private ByteBuffer[] batch;
+    /**
+     * The writer's buffer for a batch, allocated on first use.
+     */
+    private byte[] batchBuffer;
+    /**
+     * Whether messages are compressed when written. Writer only or, without the outbound queue, under the write
+     * lock.
+     */
+    private boolean deflating;
+    /**
+     * Reader's buffer for compressed bytes, allocated when decompression starts.
+     */
+    private byte[] compressedInput;
+
+    /**
+     * Creates a connection writing on the sending thread.
+     *
+     * @param socket The socket.
+     * @throws IOException When the socket's streams can't be opened.
+     */
+    public SocketConnection(Socket socket) throws IOException {
+        this(socket, null, null);
+    }
+
+    /**
+     * Creates a connection writing from an outbound queue.
+     *
+     * @param socket         The socket.
+     * @param outbound       The queue for messages waiting to be written.
+     * @param writerExecutor Runs the task draining the queue.
+     * @throws IOException When the socket's streams can't be opened.
+     */
+    public SocketConnection(Socket socket, OutboundQueue outbound, Executor writerExecutor) throws IOException {
+        this.socket = socket;
+        this.input = socket.getInputStream();
+        this.output = socket.getOutputStream();
+        this.outbound = outbound;
+        this.writerExecutor = writerExecutor;
+        if (outbound != null) {
+            this.batch = new ByteBuffer[OutboundQueue.MAX_BATCH_MESSAGES];
+        }
+        // The read buffer is kept ready to be read from.
+        this.readBuffer.limit(0);
+    }
+
+    @Override
+    public Message receive() throws IOException, ParseException {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Waiting for a message from " + socket);
+        }
+        while (true) {
+            Message message = codec.decode(readBuffer);
+            if (message != null) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(String.format("Message from %s received: %s", socket, message));
+                }
+                return message;
+            }
+            if (!fill()) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads the next message into a view, without decoding it. Only possible when the binary codec is in use.
+     *
+     * @param view The view, valid until the next call.
+     * @return {@code false} when the peer has closed the connection.
+     * @throws IOException    When reading fails.
+     * @throws ParseException When the bytes do not form a valid frame.
+     */
+    public boolean receive(MessageView view) throws IOException, ParseException {
+        if (codec != BinaryMessageCodec.INSTANCE) {
+            throw new IllegalStateException("Views require the binary codec, not " + codec.getName());
+        }
+        while (!BinaryMessageCodec.INSTANCE.decode(readBuffer, view)) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void send(OutboundMessage message) throws IOException {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(String.format("Sending to %s unicast message: %s", socket, message));
+        }
+        writeLock.lock();
+        try {
+            ByteBuffer encoded = message.encode(codec);
+            if (outbound == null) {
+                write(deflating ? deflate.deflate(encoded) : encoded);
+                if (deflateAfterNext) {
+                    deflateAfterNext = false;
+                    deflating = true;
+                }
+                recordSent(message);
+                return;
+            }
+            if (deflateAfterNext) {
+                deflateAfterNext = false;
+                outbound.setBarrier(encoded);
+            }
+            if (!outbound.offer(encoded)) {
+                // Closing the socket wakes up the thread reading from it, which then cleans up.
+                close();
+                throw new IOException("Disconnected slow consumer " + this);
+            }
+            recordSent(message);
+        } finally {
+            writeLock.unlock();
+        }
+        if (writerScheduled.compareAndSet(false, true)) {
+            writerExecutor.execute(writer);
+        }
+    }
+
+    @Override
+    protected void startDeflating() {
+        if (outbound != null) {
+            throw new UnsupportedOperationException("Compression can only start after a message sent from the queue");
+        }
+        deflating = true;
+    }
+
+    @Override
+    protected void startInflating() throws IOException {
+        compressedInput = new byte[INITIAL_BUFFER_SIZE * 8];
+        readBuffer = inflateRemaining(readBuffer);
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    @Override
+    public void shutdownStreams() throws IOException {
+        // Output first, so the other side learns about leaving before it writes to a socket that doesn't read.
+        socket.shutdownOutput();
+        socket.shutdownInput();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (outbound != null) {
+            outbound.clear();
+        }
+        output.close();
+        input.close();
+        socket.close();
+    }
+
+    @Override
+    public boolean isPossibleToWrite() {
+        return !socket.isOutputShutdown() && !socket.isClosed();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    /**
+     * Reads more bytes from the socket, making room for them first.
+     *
+     * @return {@code false} when the peer has closed the connection.
+     */
+    private boolean fill() throws IOException {
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining()) {
+            readBuffer = enlarge(readBuffer);
+        }
+        int read;
+        if (compressedInput == null) {
+            read = input.read(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), readBuffer
+                    .remaining());
+            if (read > 0) {
+                readBuffer.position(readBuffer.position() + read);
+            }
+        } else {
+            read = input.read(compressedInput);
+            if (read > 0) {
+                readBuffer = deflate.inflate(compressedInput, 0, read, readBuffer);
+            }
+        }
+        if (read > 0) {
+            markRead();
+        }
+        readBuffer.flip();
+        return read >= 0;
+    }
+
+    private void write(ByteBuffer encoded) throws IOException {
+        output.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+        output.flush();
+    }
+
+    /**
+     * Writes a batch of messages with a single call, unless the last one makes it too big for the batch buffer.
+     * Writer only.
+     */
+    private void write(int count) throws IOException {
+        if (count == 1) {
+            write(batch[0]);
+            batch[0] = null;
+            return;
+        }
+        if (batchBuffer == null) {
+            batchBuffer = new byte[outbound.getMaxBatchBytes() + INITIAL_BUFFER_SIZE];
+        }
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer encoded = batch[i];
+            if (length + encoded.remaining() > batchBuffer.length) {
+                output.write(batchBuffer, 0, length);
+                length = 0;
+                if (encoded.remaining() > batchBuffer.length) {
+                    write(encoded);
+                    batch[i] = null;
+                    continue;
+                }
+            }
+            // The buffer is a duplicate, so moving its position doesn't affect other recipients.
+            int remaining = encoded.remaining();
+            encoded.get(batchBuffer, length, remaining);
+            length += remaining;
+            batch[i] = null;
+        }
+        if (length > 0) {
+            output.write(batchBuffer, 0, length);
+        }
+        output.flush();
+    }
+
+    /**
+     * Drains the outbound queue. At most one instance runs at a time.
+     */
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                do {
+                    int count;
+                    while ((count = outbound.poll(batch)) > 0) {
+                        if (deflating) {
+                            write(deflate.deflate(batch, 0, count));
+                            Arrays.fill(batch, 0, count, null);
+                        } else {
+                            write(count);
+                        }
+                        if (outbound.isBarrierReached()) {
+                            deflating = true;
+                        }
+                    }
+                    writerScheduled.set(false);
+                    // A message enqueued right before the flag was cleared would be left behind otherwise.
+                } while (!outbound.isEmpty() && writerScheduled.compareAndSet(false, true));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not write to " + SocketConnection.this, e);
+                try {
+                    close();
+                } catch (IOException closingFailure) {
+                    LOGGER.log(Level.SEVERE, "Connection closing failure", closingFailure);
+                }
+            }
+        }
+
+    }
+
+}
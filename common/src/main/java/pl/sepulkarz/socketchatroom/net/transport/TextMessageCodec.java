@@ -0,0 +1,138 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The original text-based protocol: every message is sent as five lines - date, type, sender, recipient and text.
+ */
+public class TextMessageCodec implements MessageCodec {
+
+    public static final TextMessageCodec INSTANCE = new TextMessageCodec();
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int LINES = 5;
+    private static final byte LINE_FEED = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    /**
+     * {@code DateFormat} is not thread-safe, so formatters are borrowed from this pool. A pool rather than a
+     * {@code ThreadLocal} keeps the number of formatters bounded by concurrency instead of by the number of threads,
+     * which matters when every client has its own virtual thread.
+     */
+    private static final Queue<DateFormat> DATE_FORMATTERS = new ConcurrentLinkedQueue<DateFormat>();
+
+    private final CodecTimings timings = new CodecTimings();
+
+    @Override
+    public String getName() {
+        return "text";
+    }
+
+    @Override
+    public ByteBuffer encode(Message message) {
+        long startNanos = System.nanoTime();
+        StringBuilder builder = new StringBuilder(128);
+        appendLine(builder, formatDate(message.getDate()));
+        appendLine(builder, message.getType() != null ? message.getType().name() : "INVALID");
+        appendLine(builder, message.getFrom());
+        appendLine(builder, message.getTo());
+        appendLine(builder, message.getText());
+        ByteBuffer encoded = CHARSET.encode(builder.toString());
+        timings.encoded(startNanos);
+        return encoded;
+    }
+
+    @Override
+    public Message decode(ByteBuffer buffer) throws ParseException {
+        long startNanos = System.nanoTime();
+        int start = buffer.position();
+        int[] lineEnds = new int[LINES];
+        int position = start;
+        for (int i = 0; i < LINES; i++) {
+            int lineEnd = indexOf(buffer, position, LINE_FEED);
+            if (lineEnd < 0) {
+                return null;
+            }
+            lineEnds[i] = lineEnd;
+            position = lineEnd + 1;
+        }
+        String[] lines = new String[LINES];
+        int lineStart = start;
+        for (int i = 0; i < LINES; i++) {
+            lines[i] = readLine(buffer, lineStart, lineEnds[i]);
+            lineStart = lineEnds[i] + 1;
+        }
+        buffer.position(position);
+        Message.Type type;
+        try {
+            type = Message.Type.valueOf(lines[1]);
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Unknown message type: " + lines[1], start);
+        }
+        Message message = new Message.Builder().date(parseDate(lines[0])).type(type).from(lines[2]).to
+                (lines[3]).text(lines[4]).build();
+        timings.decoded(startNanos);
+        return message;
+    }
+
+    @Override
+    public CodecTimings getTimings() {
+        return timings;
+    }
+
+    private static String formatDate(Date date) {
+        DateFormat formatter = borrowFormatter();
+        try {
+            return formatter.format(date);
+        } finally {
+            DATE_FORMATTERS.add(formatter);
+        }
+    }
+
+    private static Date parseDate(String date) throws ParseException {
+        DateFormat formatter = borrowFormatter();
+        try {
+            return formatter.parse(date);
+        } finally {
+            DATE_FORMATTERS.add(formatter);
+        }
+    }
+
+    private static DateFormat borrowFormatter() {
+        DateFormat formatter = DATE_FORMATTERS.poll();
+        return formatter != null ? formatter : DateFormat.getDateTimeInstance(DateFormat.LONG, DateFormat.LONG,
+                Locale.ROOT);
+    }
+
+    private static void appendLine(StringBuilder builder, String line) {
+        builder.append(line != null ? line : "").append('\n');
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, byte value) {
+        for (int i = from; i < buffer.limit(); i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String readLine(ByteBuffer buffer, int start, int end) {
+        if (end > start && buffer.get(end - 1) == CARRIAGE_RETURN) {
+            end--;
+        }
+        ByteBuffer line = buffer.duplicate();
+        line.limit(end).position(start);
+        return CHARSET.decode(line).toString();
+    }
+
+}
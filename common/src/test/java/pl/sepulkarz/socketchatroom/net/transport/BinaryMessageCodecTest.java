@@ -0,0 +1,111 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class BinaryMessageCodecTest {
+
+    private final BinaryMessageCodec codec = BinaryMessageCodec.INSTANCE;
+
+    @Test
+    public void decodesWhatWasEncoded() throws ParseException {
+        // Line breaks and characters of more than one byte.
+        Message message = message("Zo\u00EB", "Bob", "Hi\nthere \u263A");
+        ByteBuffer encoded = codec.encode(message);
+        int length = encoded.remaining();
+
+        assertMessage(message, codec.decode(encoded));
+        assertEquals(length, encoded.position());
+    }
+
+    @Test
+    public void decodesLongText() throws ParseException {
+        char[] text = new char[100000];
+        Arrays.fill(text, 'x');
+        Message message = message("Alice", Message.BROADCAST, new String(text));
+
+        assertMessage(message, codec.decode(codec.encode(message)));
+    }
+
+    @Test
+    public void waitsForSplitFrames() throws ParseException {
+        Message first = message("Alice", "Bob", "First");
+        Message second = message("Bob", "Alice", "Second, a bit longer");
+        ByteBuffer encodedFirst = codec.encode(first);
+        int firstLength = encodedFirst.remaining();
+        ByteBuffer stream = ByteBuffer.allocate(firstLength + codec.encode(second).remaining());
+        stream.put(encodedFirst).put(codec.encode(second));
+        byte[] bytes = stream.array();
+
+        // The frames arrive one byte at a time.
+        for (int received = 0; received < firstLength; received++) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, received);
+            assertNull(codec.decode(buffer));
+            assertEquals(0, buffer.position());
+        }
+        for (int received = firstLength; received < bytes.length; received++) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, received);
+            assertMessage(first, codec.decode(buffer));
+            assertEquals(firstLength, buffer.position());
+            assertNull(codec.decode(buffer));
+            assertEquals(firstLength, buffer.position());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        assertNotNull(codec.decode(buffer));
+        assertMessage(second, codec.decode(buffer));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test(expected = ParseException.class)
+    public void oversizedFrameFails() throws ParseException {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.putInt(Connection.MAX_MESSAGE_SIZE + 1).flip();
+        codec.decode(buffer);
+    }
+
+    @Test(expected = ParseException.class)
+    public void negativeFrameLengthFails() throws ParseException {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.putInt(-1).flip();
+        codec.decode(buffer);
+    }
+
+    @Test(expected = ParseException.class)
+    public void unknownTypeFails() throws ParseException {
+        ByteBuffer encoded = codec.encode(message("Alice", "Bob", "Hi"));
+        encoded.put(4, (byte) Message.Type.values().length);
+        codec.decode(encoded);
+    }
+
+    @Test(expected = ParseException.class)
+    public void fieldLongerThanFrameFails() throws ParseException {
+        ByteBuffer encoded = codec.encode(message("Alice", "Bob", "Hi"));
+        // Length of the sender, right after the type and date.
+        encoded.put(4 + 1 + 8, (byte) 100);
+        codec.decode(encoded);
+    }
+
+    private static Message message(String from, String to, String text) {
+        return new Message.Builder().date(new Date(1234567890123L)).type(Message.Type.NORMAL).from(from).to(to)
+                .text(text).build();
+    }
+
+    private static void assertMessage(Message expected, Message actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getDate(), actual.getDate());
+        assertEquals(expected.getFrom(), actual.getFrom());
+        assertEquals(expected.getTo(), actual.getTo());
+        assertEquals(expected.getText(), actual.getText());
+    }
+
+}
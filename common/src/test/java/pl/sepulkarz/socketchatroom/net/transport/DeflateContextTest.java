@@ -0,0 +1,113 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeflateContextTest {
+
+    private static final int FLUSHES = 5;
+    private static final int MESSAGES_PER_FLUSH = 3;
+
+    private final DeflateContext sender = new DeflateContext();
+    private final DeflateContext receiver = new DeflateContext();
+
+    @Test
+    public void everyFlushCanBeInflatedAtOnce() throws IOException, ParseException {
+        // Small enough to be enlarged on the way.
+        ByteBuffer inflated = ByteBuffer.allocate(16);
+        int expectedBytes = 0;
+        for (int flush = 0; flush < FLUSHES; flush++) {
+            ByteBuffer[] batch = batch(flush);
+            for (ByteBuffer message : batch) {
+                expectedBytes += message.remaining();
+            }
+            byte[] compressed = bytes(sender.deflate(batch, 0, batch.length));
+            inflated = receiver.inflate(compressed, 0, compressed.length, inflated);
+
+            assertEquals(expectedBytes, inflated.position());
+            assertDecodes(inflated, flush + 1);
+        }
+        assertTrue(sender.getRatio() < 1);
+        assertEquals(expectedBytes, sender.getUncompressedBytes());
+    }
+
+    @Test
+    public void flushSplitAnywhereInflatesOnceComplete() throws IOException, ParseException {
+        ByteBuffer inflated = ByteBuffer.allocate(Connection.INITIAL_BUFFER_SIZE);
+        for (int flush = 0; flush < FLUSHES; flush++) {
+            ByteBuffer[] batch = batch(flush);
+            byte[] compressed = bytes(sender.deflate(batch, 0, batch.length));
+            int half = compressed.length / 2;
+            inflated = receiver.inflate(compressed, 0, half, inflated);
+            inflated = receiver.inflate(compressed, half, compressed.length - half, inflated);
+
+            assertDecodes(inflated, flush + 1);
+        }
+    }
+
+    @Test
+    public void deflatesOnlyTheMessagesAsked() throws IOException, ParseException {
+        ByteBuffer[] batch = batch(0);
+        byte[] compressed = bytes(sender.deflate(batch, 1, 1));
+        ByteBuffer inflated = receiver.inflate(compressed, 0, compressed.length, ByteBuffer.allocate(Connection
+                .INITIAL_BUFFER_SIZE));
+
+        inflated.flip();
+        assertEquals(text(0, 1), BinaryMessageCodec.INSTANCE.decode(inflated).getText());
+        assertEquals(0, inflated.remaining());
+    }
+
+    /**
+     * @return Encoded messages, much like each other, as chat messages are.
+     */
+    private static ByteBuffer[] batch(int flush) {
+        ByteBuffer[] batch = new ByteBuffer[MESSAGES_PER_FLUSH];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = BinaryMessageCodec.INSTANCE.encode(new Message.Builder().type(Message.Type.NORMAL).from
+                    ("Alice").to(Message.BROADCAST).text(text(flush, i)).build());
+        }
+        return batch;
+    }
+
+    private static String text(int flush, int message) {
+        return "Message " + message + " of flush " + flush + ", which says the same thing as all the others";
+    }
+
+    /**
+     * @return A copy, as the buffer returned by deflating is only valid until the next call.
+     */
+    private static byte[] bytes(ByteBuffer buffer) {
+        return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.arrayOffset() +
+                buffer.limit());
+    }
+
+    /**
+     * Checks that the bytes inflated so far are exactly the messages of all the flushes.
+     */
+    private static void assertDecodes(ByteBuffer inflated, int flushes) throws ParseException {
+        ByteBuffer read = inflated.duplicate();
+        read.flip();
+        List<String> texts = new ArrayList<String>();
+        Message message;
+        while ((message = BinaryMessageCodec.INSTANCE.decode(read)) != null) {
+            texts.add(message.getText());
+        }
+        assertEquals(0, read.remaining());
+        assertEquals(flushes * MESSAGES_PER_FLUSH, texts.size());
+        for (int i = 0; i < texts.size(); i++) {
+            assertEquals(text(i / MESSAGES_PER_FLUSH, i % MESSAGES_PER_FLUSH), texts.get(i));
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class NameCacheTest {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    @Test
+    public void knownNameIsTheSameInstance() {
+        NameCache cache = new NameCache(16);
+        String name = new String("Zo\u00EB");
+        cache.add(name);
+
+        assertSame(name, intern(cache, "Zo\u00EB"));
+    }
+
+    @Test
+    public void unknownNamesDontPushKnownOnesOut() {
+        // A single slot, so every name collides.
+        NameCache cache = new NameCache(1);
+        String name = new String("Alice");
+        cache.add(name);
+
+        String unknown = intern(cache, "Bob");
+        assertEquals("Bob", unknown);
+        assertNotSame(unknown, intern(cache, "Bob"));
+        assertSame(name, intern(cache, "Alice"));
+    }
+
+    /**
+     * Interns the name from the middle of a buffer, as it is found in a message.
+     */
+    private static String intern(NameCache cache, String name) {
+        byte[] bytes = name.getBytes(CHARSET);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 2);
+        buffer.position(1);
+        buffer.put(bytes);
+        return cache.intern(buffer, 1, bytes.length);
+    }
+
+}
@@ -0,0 +1,132 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTest {
+
+    private static final int CAPACITY = 3;
+
+    private final ByteBuffer[] messages = new ByteBuffer[8];
+
+    public OutboundQueueTest() {
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = ByteBuffer.wrap(new byte[]{(byte) i});
+        }
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestMessages() {
+        OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        long dropped = OutboundQueue.getDroppedOldest();
+        offer(queue, 0, 5);
+
+        assertEquals(CAPACITY, queue.size());
+        assertEquals(2, OutboundQueue.getDroppedOldest() - dropped);
+        assertPolled(queue, 2, 5);
+    }
+
+    @Test
+    public void dropNewestKeepsTheOldestMessages() {
+        OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.OverflowPolicy.DROP_NEWEST);
+        long dropped = OutboundQueue.getDroppedNewest();
+        offer(queue, 0, 5);
+
+        assertEquals(CAPACITY, queue.size());
+        assertEquals(2, OutboundQueue.getDroppedNewest() - dropped);
+        assertPolled(queue, 0, 3);
+    }
+
+    @Test
+    public void disconnectRefusesMessagesOverCapacity() {
+        OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.OverflowPolicy.DISCONNECT);
+        long disconnected = OutboundQueue.getDisconnected();
+        offer(queue, 0, CAPACITY);
+
+        assertFalse(queue.offer(messages[CAPACITY]));
+        assertEquals(CAPACITY, queue.size());
+        assertEquals(1, OutboundQueue.getDisconnected() - disconnected);
+        assertPolled(queue, 0, CAPACITY);
+    }
+
+    @Test
+    public void takingMessagesMakesRoom() {
+        OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.OverflowPolicy.DISCONNECT);
+        offer(queue, 0, CAPACITY);
+        queue.poll();
+
+        assertTrue(queue.offer(messages[CAPACITY]));
+        assertPolled(queue, 1, CAPACITY + 1);
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void batchEndsWithTheBarrier() {
+        OutboundQueue queue = new OutboundQueue(CAPACITY * 2, OutboundQueue.OverflowPolicy.DISCONNECT);
+        offer(queue, 0, 2);
+        queue.setBarrier(messages[2]);
+        offer(queue, 2, 5);
+        ByteBuffer[] batch = new ByteBuffer[OutboundQueue.MAX_BATCH_MESSAGES];
+
+        assertEquals(3, queue.poll(batch));
+        assertSame(messages[2], batch[2]);
+        assertTrue(queue.isBarrierReached());
+        assertEquals(2, queue.poll(batch));
+        assertFalse(queue.isBarrierReached());
+    }
+
+    @Test
+    public void dropNewestNeverDropsTheBarrier() {
+        OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.OverflowPolicy.DROP_NEWEST);
+        offer(queue, 0, CAPACITY);
+        queue.setBarrier(messages[CAPACITY]);
+        offer(queue, CAPACITY, CAPACITY + 2);
+        ByteBuffer[] batch = new ByteBuffer[OutboundQueue.MAX_BATCH_MESSAGES];
+
+        assertEquals(CAPACITY + 1, queue.poll(batch));
+        assertSame(messages[CAPACITY], batch[CAPACITY]);
+        assertTrue(queue.isBarrierReached());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void dropOldestDropsNewMessagesWhileTheBarrierWaits() {
+        OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.setBarrier(messages[0]);
+        offer(queue, 0, 5);
+        ByteBuffer[] batch = new ByteBuffer[OutboundQueue.MAX_BATCH_MESSAGES];
+
+        assertEquals(1, queue.poll(batch));
+        assertSame(messages[0], batch[0]);
+        assertTrue(queue.isBarrierReached());
+        // Once the barrier is gone, the oldest message makes room again.
+        offer(queue, 5, 7);
+        assertSame(messages[2], queue.poll());
+        assertPolled(queue, 5, 7);
+    }
+
+    private void offer(OutboundQueue queue, int from, int to) {
+        for (int i = from; i < to; i++) {
+            assertTrue(queue.offer(messages[i]));
+        }
+    }
+
+    /**
+     * Checks that the queue holds exactly the messages from the first index up to the last one, exclusive.
+     */
+    private void assertPolled(OutboundQueue queue, int from, int to) {
+        for (int i = from; i < to; i++) {
+            assertSame(messages[i], queue.poll());
+        }
+        assertNull(queue.poll());
+    }
+
+}
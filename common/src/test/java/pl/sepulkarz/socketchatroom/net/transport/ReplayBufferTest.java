@@ -0,0 +1,101 @@
+package pl.sepulkarz.socketchatroom.net.transport;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReplayBufferTest {
+
+    private static final int CAPACITY = 4;
+
+    private ReplayBuffer buffer;
+    private List<OutboundMessage> added;
+
+    @Before
+    public void setUp() {
+        buffer = new ReplayBuffer(CAPACITY);
+        added = new ArrayList<OutboundMessage>();
+    }
+
+    @Test
+    public void sinceReturnsMessagesAfterThoseReceived() {
+        add(3);
+
+        assertMessages(buffer.since(0), 0, 3);
+        assertMessages(buffer.since(1), 1, 3);
+        assertTrue(buffer.since(3).isEmpty());
+    }
+
+    @Test
+    public void ringKeepsOnlyTheLastMessages() {
+        add(10);
+
+        assertEquals(10, buffer.getSequence());
+        assertMessages(buffer.since(6), 6, 10);
+        assertMessages(buffer.since(8), 8, 10);
+    }
+
+    @Test
+    public void seekingPastCapacityFails() {
+        add(10);
+
+        assertNull(buffer.since(5));
+        assertNull(buffer.since(0));
+    }
+
+    @Test
+    public void seekingPastTheEndFails() {
+        add(2);
+
+        assertNull(buffer.since(3));
+        assertNull(buffer.since(-1));
+    }
+
+    @Test
+    public void rebaseNumbersMessagesAfterThoseReceived() {
+        add(3);
+
+        assertMessages(buffer.rebase(100), 0, 3);
+        assertEquals(103, buffer.getSequence());
+        assertMessages(buffer.since(101), 1, 3);
+        assertNull(buffer.since(99));
+        add(1);
+        assertMessages(buffer.since(101), 1, 4);
+    }
+
+    @Test
+    public void rebaseFailsOnceMessagesAreOverwritten() {
+        add(CAPACITY + 1);
+
+        assertNull(buffer.rebase(100));
+        assertEquals(CAPACITY + 1, buffer.getSequence());
+    }
+
+    private void add(int count) {
+        for (int i = 0; i < count; i++) {
+            OutboundMessage message = new OutboundMessage(new Message.Builder().text("m" + added.size()).build());
+            added.add(message);
+            buffer.add(message);
+        }
+    }
+
+    /**
+     * Checks that the messages are those added from the first index up to the last one, exclusive.
+     */
+    private void assertMessages(List<OutboundMessage> messages, int from, int to) {
+        assertEquals(to - from, messages.size());
+        for (int i = from; i < to; i++) {
+            assertSame(added.get(i), messages.get(i - from));
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+package pl.sepulkarz.socketchatroom.loadtest;
+
+import pl.sepulkarz.socketchatroom.net.transport.Connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Headless load generator. Connects many simulated users to a server and lets each of them act at a fixed rate:
+ * broadcast, send a private message to a random user or leave and join again. Prints send-to-receive latency
+ * percentiles, throughput and failures periodically and at the end.
+ * <p>
+ * The server address is the only parameter (localhost by default); the load is set with system properties:
+ * <li>{@code loadtest.users} - number of simulated users (100),</li>
+ * <li>{@code loadtest.ports} - server ports separated with {@code ,}, users are spread over them evenly, e.g. to
+ * load all the nodes of a federation (22222),</li>
+ * <li>{@code loadtest.duration} - seconds of sending after all users have connected (60),</li>
+ * <li>{@code loadtest.rate} - actions per user per second (1),</li>
+ * <li>{@code loadtest.broadcast}, {@code loadtest.private}, {@code loadtest.rejoin} - weights of the actions
+ * (80, 19, 1),</li>
+ * <li>{@code loadtest.messageSize} - characters of text in each message besides the timestamp (64),</li>
+ * <li>{@code loadtest.connectThreads} - users connecting at the same time (16),</li>
+ * <li>{@code loadtest.reportInterval} - seconds between progress reports (5).</li>
+ */
+public class LoadGenerator {
+
+    private static final String PREFIX = "loadtest.";
+
+    private final int users = Integer.getInteger(PREFIX + "users", 100);
+    private final String[] ports = System.getProperty(PREFIX + "ports", String.valueOf(Connection.DEFAULT_PORT))
+            .split(",");
+    private final int duration = Integer.getInteger(PREFIX + "duration", 60);
+    private final double rate = Double.parseDouble(System.getProperty(PREFIX + "rate", "1"));
+    private final int broadcastWeight = Integer.getInteger(PREFIX + "broadcast", 80);
+    private final int privateWeight = Integer.getInteger(PREFIX + "private", 19);
+    private final int rejoinWeight = Integer.getInteger(PREFIX + "rejoin", 1);
+    private final int messageSize = Integer.getInteger(PREFIX + "messageSize", 64);
+    private final int connectThreads = Integer.getInteger(PREFIX + "connectThreads", 16);
+    private final int reportInterval = Integer.getInteger(PREFIX + "reportInterval", 5);
+
+    private final String serverAddress;
+    private final LoadStatistics statistics = new LoadStatistics();
+    private final List<SimulatedUser> simulatedUsers = new ArrayList<SimulatedUser>();
+    private final ExecutorService connector = Executors.newFixedThreadPool(connectThreads);
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime()
+            .availableProcessors());
+
+    public LoadGenerator(String serverAddress) {
+        this.serverAddress = serverAddress;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // Every received message would be logged otherwise.
+        Logger.getLogger("").setLevel(Level.WARNING);
+        new LoadGenerator(args.length > 0 ? args[0] : "localhost").run();
+        System.exit(0);
+    }
+
+    public void run() throws InterruptedException {
+        System.out.println(String.format("Connecting %d users to %s", users, serverAddress));
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            int port = Integer.parseInt(ports[i % ports.length].trim());
+            final SimulatedUser user = new SimulatedUser("load" + i, serverAddress, port, statistics, messageSize);
+            simulatedUsers.add(user);
+            connector.execute(new Runnable() {
+                @Override
+                public void run() {
+                    user.connect();
+                }
+            });
+        }
+        connector.shutdown();
+        connector.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        System.out.println(String.format("Connected in %d ms: %s", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() -
+                connectStart), statistics.summary(System.nanoTime() - connectStart)));
+
+        final long start = System.nanoTime();
+        long period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        Random random = new Random();
+        for (final SimulatedUser user : simulatedUsers) {
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    act(user);
+                }
+            }, (long) (random.nextDouble() * period), period, TimeUnit.NANOSECONDS);
+        }
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println(String.format("[%3ds] %s", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() -
+                        start), statistics.summary(System.nanoTime() - start)));
+            }
+        }, reportInterval, reportInterval, TimeUnit.SECONDS);
+        TimeUnit.SECONDS.sleep(duration);
+        scheduler.shutdownNow();
+        // Let the messages in flight arrive.
+        TimeUnit.SECONDS.sleep(1);
+        System.out.println("Result: " + statistics.summary(System.nanoTime() - start));
+        for (SimulatedUser user : simulatedUsers) {
+            user.leave();
+        }
+    }
+
+    private void act(final SimulatedUser user) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int choice = random.nextInt(broadcastWeight + privateWeight + rejoinWeight);
+        if (choice < broadcastWeight) {
+            user.sendToAll();
+        } else if (choice < broadcastWeight + privateWeight) {
+            SimulatedUser recipient = simulatedUsers.get(random.nextInt(simulatedUsers.size()));
+            if (recipient.isOnline()) {
+                user.sendTo(recipient.getName());
+            }
+        } else if (user.isOnline()) {
+            user.leave();
+            // Joining blocks until the server replies, so it mustn't hold up the scheduler.
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    user.connect();
+                }
+            }).start();
+        }
+    }
+
+}
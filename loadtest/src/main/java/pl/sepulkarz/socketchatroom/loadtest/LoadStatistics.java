@@ -0,0 +1,59 @@
+package pl.sepulkarz.socketchatroom.loadtest;
+
+import pl.sepulkarz.socketchatroom.metrics.Histogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters shared by all simulated users.
+ */
+class LoadStatistics {
+
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong received = new AtomicLong();
+    final AtomicLong presenceReceived = new AtomicLong();
+    final AtomicLong logins = new AtomicLong();
+    final AtomicLong connectionFailures = new AtomicLong();
+    final AtomicLong rejectedLogins = new AtomicLong();
+    final AtomicLong connectionErrors = new AtomicLong();
+    /**
+     * Times the server started dropping a user's messages.
+     */
+    final AtomicLong throttled = new AtomicLong();
+    /**
+     * The most events a user's communicator has had waiting for its listeners.
+     */
+    final AtomicLong maxDispatchBacklog = new AtomicLong();
+    /**
+     * Send-to-receive latency of chat messages in nanoseconds.
+     */
+    final Histogram latency = new Histogram();
+
+    /**
+     * @param elapsedNanos Time the statistics have been collected for.
+     * @return A one-line summary.
+     */
+    String summary(long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        return String.format("sent: %d (%.0f/s), received: %d (%.0f/s), presence: %d, latency p50: %s p99: %s " +
+                        "p999: %s max: %s, logins: %d, connection failures: %d, rejected logins: %d, connection " +
+                        "errors: %d, throttled: %d, dispatch backlog max: %d", sent.get(), sent.get() / seconds,
+                received.get(), received.get() / seconds, presenceReceived.get(), millis(latency.getValueAtPercentile
+                        (50)), millis(latency.getValueAtPercentile(99)), millis(latency.getValueAtPercentile(99.9)),
+                millis(latency.getMax()), logins.get(), connectionFailures.get(), rejectedLogins.get(),
+                connectionErrors.get(), throttled.get(), maxDispatchBacklog.get());
+    }
+
+    void dispatchBacklog(long backlog) {
+        long max = maxDispatchBacklog.get();
+        while (backlog > max && !maxDispatchBacklog.compareAndSet(max, backlog)) {
+            max = maxDispatchBacklog.get();
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3fms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+}
@@ -0,0 +1,171 @@
+package pl.sepulkarz.socketchatroom.loadtest;
+
+import pl.sepulkarz.socketchatroom.client.net.Communicator;
+import pl.sepulkarz.socketchatroom.client.net.ILoginListener;
+import pl.sepulkarz.socketchatroom.client.net.IMessageListener;
+import pl.sepulkarz.socketchatroom.net.data.ChatRoomState;
+import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.data.PresenceDelta;
+import pl.sepulkarz.socketchatroom.net.data.UserMatches;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A chat room user without a GUI, driven by {@link LoadGenerator}. Every chat message it sends starts with the
+ * sending time, so receivers can measure latency - sender and receivers live in the same JVM, so
+ * {@code System.nanoTime} is comparable.
+ */
+class SimulatedUser implements IMessageListener, ILoginListener {
+
+    private static final long LOGIN_TIMEOUT_SECONDS = 10;
+
+    private final String name;
+    private final String serverAddress;
+    private final int serverPort;
+    private final LoadStatistics statistics;
+    private final String padding;
+    private volatile Communicator communicator;
+    private volatile CountDownLatch loginReply;
+    private volatile boolean online;
+
+    SimulatedUser(String name, String serverAddress, int serverPort, LoadStatistics statistics, int messageSize) {
+        this.name = name;
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.statistics = statistics;
+        StringBuilder builder = new StringBuilder(messageSize);
+        while (builder.length() < messageSize) {
+            builder.append('x');
+        }
+        this.padding = builder.toString();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    boolean isOnline() {
+        return online;
+    }
+
+    /**
+     * Connects and logs in, waiting for the server's reply.
+     *
+     * @return Whether the user is logged in.
+     */
+    boolean connect() {
+        try {
+            Communicator newCommunicator = new Communicator(serverAddress, serverPort);
+            newCommunicator.addMessageListener(this);
+            newCommunicator.addLoginListener(this);
+            newCommunicator.getClient().setName(name);
+            loginReply = new CountDownLatch(1);
+            communicator = newCommunicator;
+            newCommunicator.sendHello();
+            if (!loginReply.await(LOGIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                statistics.connectionFailures.incrementAndGet();
+            }
+            if (!online) {
+                newCommunicator.leaveChatRoom();
+            }
+        } catch (IOException e) {
+            statistics.connectionFailures.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return online;
+    }
+
+    void leave() {
+        if (online) {
+            online = false;
+            communicator.leaveChatRoom();
+        }
+    }
+
+    void sendToAll() {
+        if (online) {
+            communicator.sendMessageToAll(payload());
+            statistics.sent.incrementAndGet();
+        }
+    }
+
+    void sendTo(String recipient) {
+        if (online) {
+            communicator.sendPrivateMessage(recipient, payload());
+            statistics.sent.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void messageArrived(Message message) {
+        statistics.received.incrementAndGet();
+        statistics.dispatchBacklog(communicator.getDispatchBacklog());
+        String text = message.getText();
+        int separator = text != null ? text.indexOf(' ') : -1;
+        if (separator > 0) {
+            try {
+                statistics.latency.record(System.nanoTime() - Long.parseLong(text.substring(0, separator)));
+            } catch (NumberFormatException e) {
+                // Not sent by a simulated user.
+            }
+        }
+    }
+
+    @Override
+    public void joined(Date when, String who) {
+        statistics.presenceReceived.incrementAndGet();
+    }
+
+    @Override
+    public void left(Date when, String who) {
+        statistics.presenceReceived.incrementAndGet();
+    }
+
+    @Override
+    public void chatRoomState(ChatRoomState state) {
+        statistics.presenceReceived.addAndGet(state.getMembers().size());
+    }
+
+    @Override
+    public void presenceDelta(PresenceDelta delta) {
+        statistics.presenceReceived.addAndGet(delta.getChanges().size());
+    }
+
+    @Override
+    public void throttled(long retryAfterMillis) {
+        statistics.throttled.incrementAndGet();
+    }
+
+    @Override
+    public void usersFound(UserMatches matches) {
+        // Simulated users don't look names up.
+    }
+
+    @Override
+    public void loginSuccessful() {
+        online = true;
+        statistics.logins.incrementAndGet();
+        loginReply.countDown();
+    }
+
+    @Override
+    public void rejectedUserName() {
+        statistics.rejectedLogins.incrementAndGet();
+        loginReply.countDown();
+    }
+
+    @Override
+    public void connectionError() {
+        online = false;
+        statistics.connectionErrors.incrementAndGet();
+    }
+
+    private String payload() {
+        return System.nanoTime() + " " + padding;
+    }
+
+}
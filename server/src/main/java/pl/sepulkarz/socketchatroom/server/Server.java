@@ -1,8 +1,16 @@
 package pl.sepulkarz.socketchatroom.server;
 
-import pl.sepulkarz.socketchatroom.net.transport.Connection;
+import pl.sepulkarz.socketchatroom.server.audit.AuditLog;
+import pl.sepulkarz.socketchatroom.server.federation.Federation;
+import pl.sepulkarz.socketchatroom.server.history.History;
+import pl.sepulkarz.socketchatroom.server.metrics.ChatServerMonitor;
+import pl.sepulkarz.socketchatroom.server.net.ChatRoom;
 import pl.sepulkarz.socketchatroom.server.net.ClientServingThread;
+import pl.sepulkarz.socketchatroom.server.net.FanOutScheduler;
+import pl.sepulkarz.socketchatroom.server.net.Snapshots;
+import pl.sepulkarz.socketchatroom.server.nio.NioServer;
 
+import javax.management.JMException;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -12,22 +20,130 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Chat room server. Accepts new connections from clients and runs threads serving them.
+ * Chat room server. Accepts new connections from clients and serves them with the engine chosen by the first
+ * parameter:
+ * <li>{@code threads} (default) - a thread per client blocking on its socket.</li>
+ * <li>{@code virtual} - the same, but every client gets a virtual thread (requires Java 21 or newer).</li>
+ * <li>{@code nio} - a few event loops multiplexing non-blocking channels.</li>
+ * Other settings are described in {@link ServerConfig}. Metrics are exposed over JMX, see
+ * {@link ChatServerMonitor}.
  */
 public class Server {
 
 	private final static Logger LOGGER = Logger.getLogger(Server.class.getName());
 
+	private static final String ENGINE_THREADS = "threads";
+	private static final String ENGINE_VIRTUAL = "virtual";
+	private static final String ENGINE_NIO = "nio";
+
 	public static void main(String[] args) {
+		String engine = args.length > 0 ? args[0] : ENGINE_THREADS;
+		ServerConfig config = new ServerConfig();
+		LOGGER.info("Starting with " + config);
+		Federation federation = config.newFederation();
+		FanOutScheduler fanOutScheduler = config.newFanOutScheduler();
+		fanOutScheduler.start();
+		ChatRoom chatRoom = new ChatRoom(startAuditLog(config), startHistory(config), config
+				.getPresenceWindowMillis(), config.isCompression(), federation, config.getIdleTimeoutMillis(), config
+				.getReadTimeoutMillis(), config.getLoginTimeoutMillis(), config.newRateLimits(), fanOutScheduler,
+				config.getSessionResumeMillis(), config.getSessionReplayMessages());
+		startSnapshots(config, chatRoom);
+		try {
+			federation.start(chatRoom);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Federation socket opening failure", e);
+			return;
+		}
+		try {
+			ChatServerMonitor.register(chatRoom);
+		} catch (JMException e) {
+			LOGGER.log(Level.WARNING, "Metrics won't be available over JMX", e);
+		}
+		if (ENGINE_NIO.equals(engine)) {
+			serveWithEventLoops(chatRoom, config);
+		} else if (ENGINE_VIRTUAL.equals(engine)) {
+			ExecutorService executorService = newVirtualThreadPerTaskExecutor();
+			if (executorService != null) {
+				serveWithThreads(chatRoom, config, executorService);
+			}
+		} else if (ENGINE_THREADS.equals(engine)) {
+			// TODO: Restrict the size of this thread pool.
+			serveWithThreads(chatRoom, config, Executors.newCachedThreadPool());
+		} else {
+			LOGGER.severe("Unknown engine " + engine + ", please choose " + ENGINE_THREADS + ", " + ENGINE_VIRTUAL +
+					" or " + ENGINE_NIO + ".");
+		}
+	}
+
+	private static AuditLog startAuditLog(ServerConfig config) {
+		final AuditLog auditLog = config.newAuditLog();
+		try {
+			auditLog.start();
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Audit log opening failure, auditing disabled", e);
+			return AuditLog.DISABLED;
+		}
+		// Write out the records still waiting in memory.
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				auditLog.close();
+			}
+		}));
+		return auditLog;
+	}
+
+	private static History startHistory(ServerConfig config) {
+		final History history;
+		try {
+			history = config.newHistory();
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "History opening failure, history disabled", e);
+			return History.DISABLED;
+		}
+		history.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				history.close();
+			}
+		}));
+		return history;
+	}
+
+	/**
+	 * Restores the sessions of the previous process, then starts writing snapshots of them.
+	 */
+	private static void startSnapshots(ServerConfig config, ChatRoom chatRoom) {
+		final Snapshots snapshots = config.newSnapshots();
+		snapshots.restore(chatRoom);
+		snapshots.start(chatRoom);
+		// Write the sessions as they are on the way out, so a restart loses none.
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				snapshots.close();
+			}
+		}));
+	}
+
+	private static void serveWithEventLoops(ChatRoom chatRoom, ServerConfig config) {
+		try {
+			new NioServer(chatRoom, config.getPort(), config).serve();
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Socket opening failure", e);
+		}
+	}
+
+	private static void serveWithThreads(ChatRoom chatRoom, ServerConfig config, ExecutorService executorService) {
 		ServerSocket serverSocket = null;
-		// TODO: Restrict the size of this thread pool.
-		ExecutorService executorService = Executors.newCachedThreadPool();
 		try {
-			serverSocket = new ServerSocket(Connection.DEFAULT_PORT);
-			LOGGER.info("Waiting for clients on " + serverSocket);
+			serverSocket = new ServerSocket(config.getPort());
+			LOGGER.info(String.format("Waiting for clients on %s with %s, %d ms after start", serverSocket,
+					executorService, chatRoom.getMetrics().accepting()));
 			while (true) {
 				Socket socket = serverSocket.accept();
-				executorService.submit(new ClientServingThread(socket));
+				executorService.submit(new ClientServingThread(chatRoom, socket, config, executorService));
 			}
 		} catch (IOException e) {
 			LOGGER.log(Level.SEVERE, "Socket opening failure", e);
@@ -40,4 +156,20 @@ public class Server {
 		}
 	}
 
+	/**
+	 * Looked up reflectively, so the server still builds and runs the other engines on Java versions without virtual
+	 * threads.
+	 *
+	 * @return The executor or {@code null} if this Java version doesn't support virtual threads.
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			LOGGER.log(Level.SEVERE, "Virtual threads are not supported by Java " + System.getProperty
+					("java.version"), e);
+			return null;
+		}
+	}
+
 }
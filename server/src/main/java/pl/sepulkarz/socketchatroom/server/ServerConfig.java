@@ -0,0 +1,406 @@
+package pl.sepulkarz.socketchatroom.server;
+
+import pl.sepulkarz.socketchatroom.net.transport.Connection;
+import pl.sepulkarz.socketchatroom.net.transport.OutboundQueue;
+import pl.sepulkarz.socketchatroom.server.audit.AuditLog;
+import pl.sepulkarz.socketchatroom.server.federation.Federation;
+import pl.sepulkarz.socketchatroom.server.history.History;
+import pl.sepulkarz.socketchatroom.server.history.MessageLog;
+import pl.sepulkarz.socketchatroom.server.net.FanOutScheduler;
+import pl.sepulkarz.socketchatroom.server.net.RateLimits;
+import pl.sepulkarz.socketchatroom.server.net.Snapshots;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Server settings. Every setting can be overridden with a {@code socketchatroom.<name>} system property, e.g.
+ * {@code -Dsocketchatroom.outboundQueueCapacity=256}.
+ */
+public class ServerConfig {
+
+    private final static Logger LOGGER = Logger.getLogger(ServerConfig.class.getName());
+
+    private static final String PREFIX = "socketchatroom.";
+    /**
+     * Number of broadcast messages that can wait to be appended to the history.
+     */
+    private static final int HISTORY_BUFFER_CAPACITY = 64 * 1024;
+
+    private final int port = Integer.getInteger(PREFIX + "port", Connection.DEFAULT_PORT);
+    private final int eventLoops = Integer.getInteger(PREFIX + "eventLoops", Runtime.getRuntime()
+            .availableProcessors());
+    private final int outboundQueueCapacity = Integer.getInteger(PREFIX + "outboundQueueCapacity", 1024);
+    private final OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(System
+            .getProperty(PREFIX + "overflowPolicy", OutboundQueue.OverflowPolicy.DISCONNECT.name()));
+    private final int writeBatchBytes = Integer.getInteger(PREFIX + "writeBatchBytes", OutboundQueue
+            .DEFAULT_BATCH_BYTES);
+    private final boolean compression = Boolean.getBoolean(PREFIX + "compression");
+    private final boolean measureAllocations = Boolean.getBoolean(PREFIX + "measureAllocations");
+    private final String auditLog = System.getProperty(PREFIX + "auditLog", "");
+    private final long auditLogMaxSize = Long.getLong(PREFIX + "auditLogMaxSize", 64 * 1024 * 1024);
+    private final int auditLogFiles = Integer.getInteger(PREFIX + "auditLogFiles", 5);
+    private final int auditBufferCapacity = Integer.getInteger(PREFIX + "auditBufferCapacity", 64 * 1024);
+    private final String historyDirectory = System.getProperty(PREFIX + "historyDirectory", "");
+    private final int historySegmentSize = Integer.getInteger(PREFIX + "historySegmentSize", 16 * 1024 * 1024);
+    private final long historyMaxSize = Long.getLong(PREFIX + "historyMaxSize", 256 * 1024 * 1024);
+    private final long historyMaxAgeMinutes = Long.getLong(PREFIX + "historyMaxAgeMinutes", TimeUnit.DAYS.toMinutes
+            (7));
+    private final int historyReplayMessages = Integer.getInteger(PREFIX + "historyReplayMessages", 50);
+    private final long historyReplayMinutes = Long.getLong(PREFIX + "historyReplayMinutes", 60);
+    private final long presenceWindowMillis = Long.getLong(PREFIX + "presenceWindowMillis", 250);
+    private final long idleTimeoutMillis = Long.getLong(PREFIX + "idleTimeoutMillis", 60 * 1000);
+    private final long readTimeoutMillis = Long.getLong(PREFIX + "readTimeoutMillis", 30 * 1000);
+    private final long loginTimeoutMillis = Long.getLong(PREFIX + "loginTimeoutMillis", 15 * 60 * 1000);
+    private final long messagesPerSecond = Long.getLong(PREFIX + "messagesPerSecond", 20);
+    private final long messageBurst = Long.getLong(PREFIX + "messageBurst", 50);
+    private final long bytesPerSecond = Long.getLong(PREFIX + "bytesPerSecond", 64 * 1024);
+    private final long byteBurst = Long.getLong(PREFIX + "byteBurst", 256 * 1024);
+    private final int fanOutThreads = Integer.getInteger(PREFIX + "fanOutThreads", Runtime.getRuntime()
+            .availableProcessors());
+    private final int fanOutLaneCapacity = Integer.getInteger(PREFIX + "fanOutLaneCapacity", 256);
+    private final long sessionResumeMillis;
+    private final int sessionReplayMessages = Integer.getInteger(PREFIX + "sessionReplayMessages", 128);
+    private final String snapshot = System.getProperty(PREFIX + "snapshot", "");
+    private final long snapshotIntervalMillis = Long.getLong(PREFIX + "snapshotIntervalMillis", 1000);
+    private final long startupBudgetMillis = Long.getLong(PREFIX + "startupBudgetMillis", 2000);
+    private final String federation = System.getProperty(PREFIX + "federation", "");
+    private final int nodeId = Integer.getInteger(PREFIX + "nodeId", 0);
+
+    public ServerConfig() {
+        long resumeMillis = Long.getLong(PREFIX + "sessionResumeMillis", 30 * 1000);
+        if (resumeMillis > 0 && overflowPolicy != OutboundQueue.OverflowPolicy.DISCONNECT) {
+            // Both sides of a session count the messages sent to the client, so a dropped one would make the replay
+            // skip or repeat messages.
+            LOGGER.warning("Session resume needs the DISCONNECT overflow policy, not " + overflowPolicy + ", turning it " +
+                    "off");
+            resumeMillis = 0;
+        }
+        sessionResumeMillis = resumeMillis;
+    }
+
+    /**
+     * @return Port clients connect to.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return Number of event loop threads of the {@code nio} engine.
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * @return Maximum number of messages waiting to be written to a single client.
+     */
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    /**
+     * @return What happens when a client's outbound queue is full.
+     */
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return Number of bytes after which no more waiting messages are added to a single write to a client.
+     */
+    public int getWriteBatchBytes() {
+        return writeBatchBytes;
+    }
+
+    /**
+     * @return Whether clients offering deflate compression get it.
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * @return Whether memory allocated per handled message is measured, see
+     * {@link pl.sepulkarz.socketchatroom.server.net.AllocationMeter}.
+     */
+    public boolean isMeasureAllocations() {
+        return measureAllocations;
+    }
+
+    /**
+     * @return Path of the audit log file, empty (default) if auditing is disabled. Older files get numbered
+     * suffixes.
+     */
+    public String getAuditLog() {
+        return auditLog;
+    }
+
+    /**
+     * @return Size in bytes after which the audit log file is rotated.
+     */
+    public long getAuditLogMaxSize() {
+        return auditLogMaxSize;
+    }
+
+    /**
+     * @return Number of audit log files kept, including the current one.
+     */
+    public int getAuditLogFiles() {
+        return auditLogFiles;
+    }
+
+    /**
+     * @return Number of audit records that can wait to be written before new ones are dropped.
+     */
+    public int getAuditBufferCapacity() {
+        return auditBufferCapacity;
+    }
+
+    public AuditLog newAuditLog() {
+        return auditLog.isEmpty() ? AuditLog.DISABLED : new AuditLog(new File(auditLog), auditLogMaxSize,
+                auditLogFiles, auditBufferCapacity);
+    }
+
+    /**
+     * @return Directory of the message history, empty (default) if history is disabled.
+     */
+    public String getHistoryDirectory() {
+        return historyDirectory;
+    }
+
+    /**
+     * @return Size of a history segment file in bytes. Must be bigger than the largest message.
+     */
+    public int getHistorySegmentSize() {
+        return historySegmentSize;
+    }
+
+    /**
+     * @return Total size of history segments in bytes after which the oldest ones are deleted.
+     */
+    public long getHistoryMaxSize() {
+        return historyMaxSize;
+    }
+
+    /**
+     * @return Age after which history segments are deleted, 0 for no limit.
+     */
+    public long getHistoryMaxAgeMinutes() {
+        return historyMaxAgeMinutes;
+    }
+
+    /**
+     * @return Maximum number of messages replayed to a joining client, 0 to replay nothing.
+     */
+    public int getHistoryReplayMessages() {
+        return historyReplayMessages;
+    }
+
+    /**
+     * @return Only messages younger than this are replayed to a joining client, 0 for no limit.
+     */
+    public long getHistoryReplayMinutes() {
+        return historyReplayMinutes;
+    }
+
+    /**
+     * Opens the message history.
+     *
+     * @throws IOException When the history directory can't be opened.
+     */
+    public History newHistory() throws IOException {
+        if (historyDirectory.isEmpty()) {
+            return History.DISABLED;
+        }
+        MessageLog log = new MessageLog(new File(historyDirectory), Math.max(historySegmentSize, 2 *
+                Connection.MAX_MESSAGE_SIZE), historyMaxSize, TimeUnit.MINUTES.toMillis(historyMaxAgeMinutes));
+        return new History(log, historyReplayMessages, TimeUnit.MINUTES.toMillis(historyReplayMinutes),
+                HISTORY_BUFFER_CAPACITY);
+    }
+
+    /**
+     * @return How long clients joining and leaving are collected into one presence delta, 0 to send every change at
+     * once.
+     */
+    public long getPresenceWindowMillis() {
+        return presenceWindowMillis;
+    }
+
+    /**
+     * @return Time without hearing from a client after which it is pinged, 0 to never check for dead connections.
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * @return Time a pinged client has to answer before its connection is aborted.
+     */
+    public long getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    /**
+     * @return Time a client has to log in before its connection is aborted, 0 for no limit. Only checked when idle
+     * connections are, see {@link #getIdleTimeoutMillis()}.
+     */
+    public long getLoginTimeoutMillis() {
+        return loginTimeoutMillis;
+    }
+
+    /**
+     * @return Average number of messages a client can send per second, 0 for no limit.
+     */
+    public long getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    /**
+     * @return Number of messages a client can send at once after having been quiet.
+     */
+    public long getMessageBurst() {
+        return messageBurst;
+    }
+
+    /**
+     * @return Average number of bytes a client can send per second, 0 for no limit.
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return Number of bytes a client can send at once after having been quiet.
+     */
+    public long getByteBurst() {
+        return byteBurst;
+    }
+
+    /**
+     * @return Number of threads sending chat messages to their recipients, 0 to send on the sender's engine thread.
+     */
+    public int getFanOutThreads() {
+        return fanOutThreads;
+    }
+
+    /**
+     * @return Number of chat messages of a single client that can wait to be sent before new ones are dropped.
+     */
+    public int getFanOutLaneCapacity() {
+        return fanOutLaneCapacity;
+    }
+
+    /**
+     * @return How long a client whose connection broke can come back to its session, 0 to not keep sessions. Always 0
+     * unless the overflow policy is {@code DISCONNECT}.
+     */
+    public long getSessionResumeMillis() {
+        return sessionResumeMillis;
+    }
+
+    /**
+     * @return Number of the last messages sent to a client kept to be sent again when it comes back.
+     */
+    public int getSessionReplayMessages() {
+        return sessionReplayMessages;
+    }
+
+    /**
+     * @return Path of the file with the snapshot of the sessions, empty (default) if sessions aren't kept across
+     * restarts.
+     */
+    public String getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return Time between snapshots of the sessions.
+     */
+    public long getSnapshotIntervalMillis() {
+        return snapshotIntervalMillis;
+    }
+
+    /**
+     * @return Time restoring the sessions from the snapshot may take on startup.
+     */
+    public long getStartupBudgetMillis() {
+        return startupBudgetMillis;
+    }
+
+    /**
+     * Snapshots are only written when sessions are kept, and are only restored within the session resume window.
+     */
+    public Snapshots newSnapshots() {
+        return snapshot.isEmpty() || sessionResumeMillis <= 0 ? Snapshots.DISABLED : new Snapshots(new File
+                (snapshot), snapshotIntervalMillis, sessionResumeMillis, startupBudgetMillis);
+    }
+
+    /**
+     * @return Federation addresses ({@code host:port}) of all the nodes, separated with {@code ,}, the same list on
+     * every node; empty if this server is on its own.
+     */
+    public String getFederation() {
+        return federation;
+    }
+
+    /**
+     * @return Index of this server in the federation list.
+     */
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @throws IllegalArgumentException When the federation list or node id is invalid.
+     */
+    public Federation newFederation() {
+        if (federation.trim().isEmpty()) {
+            return Federation.DISABLED;
+        }
+        List<InetSocketAddress> nodes = new ArrayList<InetSocketAddress>();
+        for (String node : federation.split(",")) {
+            int separator = node.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Federation node " + node + " is not host:port");
+            }
+            nodes.add(InetSocketAddress.createUnresolved(node.substring(0, separator).trim(), Integer.parseInt(node
+                    .substring(separator + 1).trim())));
+        }
+        return new Federation(nodeId, nodes, writeBatchBytes);
+    }
+
+    public RateLimits newRateLimits() {
+        return new RateLimits(messagesPerSecond, messageBurst, bytesPerSecond, byteBurst);
+    }
+
+    public FanOutScheduler newFanOutScheduler() {
+        return new FanOutScheduler(fanOutThreads, fanOutLaneCapacity);
+    }
+
+    public OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundQueueCapacity, overflowPolicy, writeBatchBytes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[ServerConfig|port:%d|eventLoops:%d|outboundQueueCapacity:%d|overflowPolicy:%s" +
+                "|writeBatchBytes:%d|compression:%b|measureAllocations:%b|auditLog:%s|historyDirectory:%s" +
+                "|presenceWindowMillis:%d|idleTimeoutMillis:%d|readTimeoutMillis:%d|loginTimeoutMillis:%d" +
+                "|messagesPerSecond:%d|messageBurst:%d|bytesPerSecond:%d|byteBurst:%d|fanOutThreads:%d" +
+                "|fanOutLaneCapacity:%d|sessionResumeMillis:%d|sessionReplayMessages:%d|snapshot:%s" +
+                "|snapshotIntervalMillis:%d|startupBudgetMillis:%d|federation:%s|nodeId:%d]", port, eventLoops,
+                outboundQueueCapacity, overflowPolicy, writeBatchBytes, compression, measureAllocations, auditLog,
+                historyDirectory, presenceWindowMillis, idleTimeoutMillis, readTimeoutMillis, loginTimeoutMillis,
+                messagesPerSecond, messageBurst, bytesPerSecond, byteBurst, fanOutThreads, fanOutLaneCapacity,
+                sessionResumeMillis, sessionReplayMessages, snapshot, snapshotIntervalMillis, startupBudgetMillis,
+                federation, nodeId);
+    }
+
+}
@@ -0,0 +1,263 @@
+package pl.sepulkarz.socketchatroom.server.audit;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Audit log of the chat room: who joined, who was rejected, who left, who entered or left which room and who sent
+ * how big a message to whom (message text is not recorded). Engine threads only put records into a
+ * {@link RecordRing}; a background thread writes them as JSON lines, e.g.
+ * <pre>
+ * {"time":"2016-05-01T12:00:00.000Z","event":"NORMAL","from":"alice","to":"!BROADCAST","bytes":83}
+ * </pre>
+ * The file is rotated when it grows beyond the maximum size: {@code audit.log} becomes {@code audit.log.1}, which
+ * becomes {@code audit.log.2} and so on, up to the number of files to keep. When the writer can't keep up and the
+ * ring is full, records are dropped and counted rather than slowing down the chat room. An idle writer parks until
+ * the next record wakes it up.
+ */
+public class AuditLog {
+
+    private final static Logger LOGGER = Logger.getLogger(AuditLog.class.getName());
+
+    /**
+     * Records nothing.
+     */
+    public static final AuditLog DISABLED = new AuditLog();
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final RecordRing ring;
+    private final File file;
+    private final long maxFileSize;
+    private final int files;
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * Set by the writer before it parks, cleared by the producer which unparks it.
+     */
+    private final AtomicBoolean idle = new AtomicBoolean();
+    private final Thread writer;
+    private volatile boolean running;
+
+    private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    private final StringBuilder line = new StringBuilder(256);
+    private OutputStream output;
+    private long fileSize;
+
+    private AuditLog() {
+        this.ring = null;
+        this.file = null;
+        this.maxFileSize = 0;
+        this.files = 0;
+        this.writer = null;
+    }
+
+    /**
+     * @param file        The current log file.
+     * @param maxFileSize Size in bytes after which the file is rotated.
+     * @param files       Number of files to keep, including the current one.
+     * @param capacity    Number of records that can wait for the writer.
+     */
+    public AuditLog(File file, long maxFileSize, int files, int capacity) {
+        this.ring = new RecordRing(capacity);
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.files = Math.max(1, files);
+        this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "audit-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Opens the file and starts the writer thread.
+     *
+     * @throws IOException When the file can't be opened.
+     */
+    public void start() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        open();
+        running = true;
+        writer.start();
+    }
+
+    /**
+     * Writes out the records waiting in the ring and closes the file.
+     */
+    public void close() {
+        if (writer == null || !running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void joined(String name) {
+        record(Message.Type.JOINED, name, null, 0);
+    }
+
+    public void rejected(String name) {
+        record(Message.Type.REJECTED_USER_NAME, name, null, 0);
+    }
+
+    public void left(String name) {
+        record(Message.Type.LEFT, name, null, 0);
+    }
+
+    public void joinedRoom(String name, String room) {
+        record(Message.Type.JOIN, name, room, 0);
+    }
+
+    public void partedRoom(String name, String room) {
+        record(Message.Type.PART, name, room, 0);
+    }
+
+    /**
+     * Records a chat message.
+     *
+     * @param from  The sender.
+     * @param to    The recipient, {@code Message.BROADCAST} for everyone.
+     * @param bytes Size of the message as received, or 0 if unknown.
+     */
+    public void message(String from, String to, int bytes) {
+        record(Message.Type.NORMAL, from, to, bytes);
+    }
+
+    /**
+     * @return Number of records dropped because the writer couldn't keep up.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void record(Message.Type type, String from, String to, int bytes) {
+        if (ring == null) {
+            return;
+        }
+        if (!ring.offer(System.currentTimeMillis(), type, from, to, bytes)) {
+            dropped.incrementAndGet();
+        } else if (idle.get() && idle.compareAndSet(true, false)) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                boolean stopping = !running;
+                boolean written = false;
+                AuditRecord record;
+                while ((record = ring.peek()) != null) {
+                    format(record);
+                    ring.release();
+                    writeLine();
+                    written = true;
+                }
+                if (written) {
+                    output.flush();
+                }
+                if (stopping) {
+                    break;
+                }
+                idle.set(true);
+                // A record offered after this check sees the flag and unparks the writer.
+                if (ring.peek() == null && running) {
+                    LockSupport.park(this);
+                }
+                idle.set(false);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Audit log writing failure, no more records will be written", e);
+            running = false;
+        } finally {
+            try {
+                output.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Audit log closing failure", e);
+            }
+        }
+    }
+
+    private void format(AuditRecord record) {
+        line.setLength(0);
+        line.append("{\"time\":\"").append(dateFormat.format(record.time)).append("\",\"event\":\"").append(record
+                .type.name()).append('"');
+        appendField("from", record.from);
+        appendField("to", record.to);
+        if (record.bytes > 0) {
+            line.append(",\"bytes\":").append(record.bytes);
+        }
+        line.append("}\n");
+    }
+
+    private void appendField(String name, String value) {
+        if (value == null) {
+            return;
+        }
+        line.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    private void writeLine() throws IOException {
+        byte[] bytes = line.toString().getBytes(CHARSET);
+        if (fileSize > 0 && fileSize + bytes.length > maxFileSize) {
+            rotate();
+        }
+        output.write(bytes);
+        fileSize += bytes.length;
+    }
+
+    private void rotate() throws IOException {
+        output.close();
+        new File(file.getPath() + "." + (files - 1)).delete();
+        for (int i = files - 2; i >= 1; i--) {
+            new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+        }
+        if (files > 1) {
+            file.renameTo(new File(file.getPath() + ".1"));
+        } else {
+            file.delete();
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        output = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+        fileSize = file.length();
+    }
+
+}
@@ -0,0 +1,21 @@
+package pl.sepulkarz.socketchatroom.server.audit;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+
+/**
+ * A slot of {@link RecordRing}. Slots are allocated once and overwritten, so recording allocates nothing.
+ */
+class AuditRecord {
+
+    long time;
+    Message.Type type;
+    String from;
+    String to;
+    int bytes;
+
+    void clear() {
+        from = null;
+        to = null;
+    }
+
+}
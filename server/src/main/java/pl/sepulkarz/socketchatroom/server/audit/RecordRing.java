@@ -0,0 +1,90 @@
+package pl.sepulkarz.socketchatroom.server.audit;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free ring of audit records with many producers and a single consumer. Every slot has a sequence
+ * number telling whose turn it is: a producer claims the slot at the tail with a compare-and-set and publishes it by
+ * advancing the slot's sequence; the consumer reads published slots at the head and hands them back the same way.
+ * A producer never waits - if the ring is full, the record is dropped.
+ */
+class RecordRing {
+
+    private final AuditRecord[] records;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Only touched by the consumer.
+     */
+    private long head;
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two.
+     */
+    RecordRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.records = new AuditRecord[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            records[i] = new AuditRecord();
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return {@code false} if the ring is full.
+     */
+    boolean offer(long time, Message.Type type, String from, String to, int bytes) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    AuditRecord record = records[index];
+                    record.time = time;
+                    record.type = type;
+                    record.from = from;
+                    record.to = to;
+                    record.bytes = bytes;
+                    // A full barrier, so that the consumer going idle either sees the record or is woken up.
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The consumer hasn't freed this slot yet.
+                return false;
+            } else {
+                // Another producer has claimed this slot.
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Returns the oldest published record. It stays valid until {@link #release()}.
+     *
+     * @return The record or {@code null} if there is none.
+     */
+    AuditRecord peek() {
+        int index = (int) (head & mask);
+        return sequences.get(index) == head + 1 ? records[index] : null;
+    }
+
+    /**
+     * Hands the record returned by {@link #peek()} back to the producers.
+     */
+    void release() {
+        int index = (int) (head & mask);
+        records[index].clear();
+        sequences.lazySet(index, head + records.length);
+        head++;
+    }
+
+}
@@ -0,0 +1,618 @@
+package pl.sepulkarz.socketchatroom.server.federation;
+
+import pl.sepulkarz.socketchatroom.net.data.ChatRoomState;
+import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.transport.BinaryMessageCodec;
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+import pl.sepulkarz.socketchatroom.net.transport.Handshake;
+import pl.sepulkarz.socketchatroom.net.transport.MessageView;
+import pl.sepulkarz.socketchatroom.net.transport.OutboundMessage;
+import pl.sepulkarz.socketchatroom.net.transport.OutboundQueue;
+import pl.sepulkarz.socketchatroom.net.transport.SocketConnection;
+import pl.sepulkarz.socketchatroom.server.net.ChatRoom;
+import pl.sepulkarz.socketchatroom.server.net.UserDirectory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Joins the chat room of this server with those of other servers - nodes - into one. Every node has a link to every
+ * other node: a socket it only writes to, through an {@link OutboundQueue}, so messages relayed while the link is
+ * busy go out together in one write. Links speak the binary codec from the first byte and start with a
+ * {@code HELLO} naming the node.
+ * <p>
+ * Each node relays broadcasts and room messages of its clients to all the others and private messages only to the
+ * node of the recipient. Nodes tell each other about their clients joining and leaving with {@code JOINED} and
+ * {@code LEFT} messages, and a node linking to another one sends it all its clients as a {@link ChatRoomState}.
+ * <p>
+ * Every name belongs to one node, chosen by its hash, which keeps the {@link NameRegistry} of its names. A client
+ * only gets a name after that node has granted it, answering a {@code CLAIM} with {@code LOGIN_SUCCESSFUL} or
+ * {@code REJECTED_USER_NAME}; when that node can't be reached, the name is refused. A node that loses the link
+ * from another one forgets its clients and frees their names. Links are not authenticated, so the federation ports
+ * must only be reachable by the nodes.
+ */
+public class Federation {
+
+    private final static Logger LOGGER = Logger.getLogger(Federation.class.getName());
+
+    /**
+     * A server on its own.
+     */
+    public static final Federation DISABLED = new Federation();
+
+    /**
+     * {@code HELLO} option naming the node that opened the link.
+     */
+    private static final String NODE = "node";
+    private static final long CLAIM_TIMEOUT_MILLIS = 5000;
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int LINK_QUEUE_CAPACITY = 64 * 1024;
+    /**
+     * Clients per {@link ChatRoomState} sent to a newly linked node, keeping the message well below the size limit.
+     */
+    private static final int STATE_CHUNK = 1000;
+
+    private final int nodeId;
+    private final List<InetSocketAddress> nodes;
+    private final int writeBatchBytes;
+    private final NameRegistry registry = new NameRegistry();
+    /**
+     * Links to the other nodes by node id, {@code null} while not connected.
+     */
+    private final AtomicReferenceArray<SocketConnection> links;
+    /**
+     * Connections from the other nodes by node id, {@code null} while not connected.
+     */
+    private final AtomicReferenceArray<SocketConnection> inbound;
+    /**
+     * Nodes of the clients of other nodes, by name.
+     */
+    private final Map<String, Integer> locations = new ConcurrentHashMap<String, Integer>();
+    private final Map<Long, PendingClaim> claims = new ConcurrentHashMap<Long, PendingClaim>();
+    private final AtomicLong claimIds = new AtomicLong();
+    private final AtomicLong relayed = new AtomicLong();
+    /**
+     * Orders the clients sent to a newly linked node with those joining and leaving at the same time.
+     */
+    private final Object presenceLock = new Object();
+    private final ExecutorService threads;
+    private final ScheduledExecutorService timer;
+    private volatile ChatRoom chatRoom;
+
+    private Federation() {
+        this.nodeId = 0;
+        this.nodes = Collections.emptyList();
+        this.writeBatchBytes = 0;
+        this.links = null;
+        this.inbound = null;
+        this.threads = null;
+        this.timer = null;
+    }
+
+    /**
+     * @param nodeId          Index of this node in the list.
+     * @param nodes           Federation addresses of all the nodes, this one included, the same list on every node.
+     * @param writeBatchBytes Number of bytes after which no more waiting messages are added to a single write to a
+     *                        link.
+     */
+    public Federation(int nodeId, List<InetSocketAddress> nodes, int writeBatchBytes) {
+        if (nodeId < 0 || nodeId >= nodes.size()) {
+            throw new IllegalArgumentException("Node " + nodeId + " is not one of " + nodes);
+        }
+        this.nodeId = nodeId;
+        this.nodes = new ArrayList<InetSocketAddress>(nodes);
+        this.writeBatchBytes = writeBatchBytes;
+        this.links = new AtomicReferenceArray<SocketConnection>(nodes.size());
+        this.inbound = new AtomicReferenceArray<SocketConnection>(nodes.size());
+        this.threads = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "federation-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "federation-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return threads != null;
+    }
+
+    /**
+     * Starts accepting links from the other nodes and linking to them.
+     *
+     * @param chatRoom The chat room of this node.
+     * @throws IOException When the federation port can't be opened.
+     */
+    public void start(ChatRoom chatRoom) throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        this.chatRoom = chatRoom;
+        final ServerSocket serverSocket = new ServerSocket(nodes.get(nodeId).getPort());
+        LOGGER.info(String.format("Node %d waiting for links on %s", nodeId, serverSocket));
+        threads.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept(serverSocket);
+            }
+        });
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i != nodeId) {
+                final int node = i;
+                threads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        link(node);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Asks the node the name belongs to whether a client of this node may have it.
+     *
+     * @param name The name.
+     * @return Completes with {@code true} if the name is granted, {@code false} if it is taken or the node can't
+     * answer in time. Already complete if the name belongs to this node.
+     */
+    public CompletableFuture<Boolean> claim(String name) {
+        int home = home(name);
+        if (home == nodeId) {
+            return CompletableFuture.completedFuture(registry.claim(name, nodeId));
+        }
+        final long id = claimIds.incrementAndGet();
+        CompletableFuture<Boolean> claimed = new CompletableFuture<Boolean>();
+        claims.put(id, new PendingClaim(name, home, claimed));
+        if (!send(home, new OutboundMessage(new Message.Builder().type(Message.Type.CLAIM).from(name).text(String
+                .valueOf(id)).build()))) {
+            LOGGER.warning(String.format("Refusing name %s, node %d is not linked", name, home));
+            fail(claims.remove(id));
+            return claimed;
+        }
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                PendingClaim claim = claims.remove(id);
+                if (claim != null) {
+                    LOGGER.warning(String.format("Node %d has not answered claim of %s", claim.home, claim.name));
+                    fail(claim);
+                }
+            }
+        }, CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        return claimed;
+    }
+
+    /**
+     * Frees a name granted by {@link #claim} that won't be used after all.
+     */
+    public void release(String name) {
+        int home = home(name);
+        if (home == nodeId) {
+            registry.release(name, nodeId);
+        } else {
+            send(home, new OutboundMessage(new Message.Builder().type(Message.Type.LEFT).from(name).build()));
+        }
+    }
+
+    /**
+     * Records the name of a client of this node restored from a snapshot, if the name belongs to this node. To be
+     * called before the federation is started; the other nodes learn about the client once linked.
+     */
+    public void restored(String name) {
+        if (isEnabled() && home(name) == nodeId) {
+            registry.restore(name, nodeId);
+        }
+    }
+
+    /**
+     * Tells the other nodes about a client of this node that has joined.
+     */
+    public void joined(ClientData client) {
+        if (!isEnabled()) {
+            return;
+        }
+        OutboundMessage message = new OutboundMessage(new Message.Builder().type(Message.Type.JOINED).date(client
+                .getJoinedDate()).from(client.getName()).build());
+        synchronized (presenceLock) {
+            sendToAll(message);
+        }
+    }
+
+    /**
+     * Tells the other nodes about a client of this node that has left, which also frees its name.
+     */
+    public void left(String name) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (home(name) == nodeId) {
+            registry.release(name, nodeId);
+        }
+        OutboundMessage message = new OutboundMessage(new Message.Builder().type(Message.Type.LEFT).from(name)
+                .build());
+        synchronized (presenceLock) {
+            sendToAll(message);
+        }
+    }
+
+    /**
+     * Relays a broadcast or room message of a client of this node to all the other nodes.
+     */
+    public void relay(OutboundMessage message) {
+        if (isEnabled()) {
+            sendToAll(message);
+        }
+    }
+
+    /**
+     * Relays a private message to the node of its recipient, if it is a client of another node.
+     *
+     * @param to      The recipient.
+     * @param message The message.
+     */
+    public void relayTo(String to, OutboundMessage message) {
+        if (!isEnabled()) {
+            return;
+        }
+        Integer node = locations.get(to);
+        if (node != null) {
+            send(node, message);
+        }
+    }
+
+    /**
+     * @return Whether each of the other nodes is linked to, by address.
+     */
+    public Map<String, Boolean> getLinks() {
+        Map<String, Boolean> result = new LinkedHashMap<String, Boolean>();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i != nodeId) {
+                result.put(describe(i), links.get(i) != null);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Number of clients of the other nodes.
+     */
+    public int getRemoteMembers() {
+        return locations.size();
+    }
+
+    /**
+     * @return Number of names belonging to this node that are in use, in the whole federation.
+     */
+    public int getRegisteredNames() {
+        return registry.size();
+    }
+
+    /**
+     * @return Number of messages handed over to links, each counted once per node.
+     */
+    public long getRelayed() {
+        return relayed.get();
+    }
+
+    /**
+     * The node a name belongs to, the same for names with the same {@link UserDirectory#key}. {@code
+     * String.hashCode} is specified, so all nodes agree on it.
+     */
+    private int home(String name) {
+        return nodes.isEmpty() ? nodeId : (UserDirectory.key(name).hashCode() & Integer.MAX_VALUE) % nodes.size();
+    }
+
+    private String describe(int node) {
+        return nodes.get(node).getHostString() + ":" + nodes.get(node).getPort();
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                final Socket socket = serverSocket.accept();
+                threads.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serveInbound(socket);
+                    }
+                });
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Federation socket failure", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Handles everything another node sends over its link, until the link breaks.
+     */
+    private void serveInbound(Socket socket) {
+        SocketConnection connection = null;
+        int node = -1;
+        try {
+            socket.setTcpNoDelay(true);
+            connection = new SocketConnection(socket);
+            connection.switchCodec(BinaryMessageCodec.INSTANCE);
+            Message hello = connection.receive();
+            node = hello != null && hello.getType() == Message.Type.HELLO ? parseNode(hello.getText()) : -1;
+            if (node < 0 || node >= nodes.size() || node == nodeId) {
+                LOGGER.warning("Refusing link from " + socket + " starting with " + hello);
+                return;
+            }
+            LOGGER.info(String.format("Node %d linked from %s", node, socket));
+            SocketConnection previous = inbound.getAndSet(node, connection);
+            if (previous != null) {
+                // The node has come back before the old link broke, everything it had is gone.
+                nodeLost(node);
+                previous.close();
+            }
+            MessageView view = new MessageView(chatRoom.getNames());
+            while (connection.receive(view)) {
+                if (view.getType() == Message.Type.NORMAL) {
+                    chatRoom.deliver(view);
+                } else {
+                    handle(node, view.toMessage());
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Link from node " + node + " broken", e);
+        } catch (ParseException e) {
+            LOGGER.log(Level.SEVERE, "Incorrect message format from node " + node, e);
+        } finally {
+            if (node >= 0 && connection != null && inbound.compareAndSet(node, connection, null)) {
+                nodeLost(node);
+            }
+            closeQuietly(connection, socket);
+        }
+    }
+
+    private void handle(int node, Message message) throws IOException {
+        switch (message.getType()) {
+            case CLAIM:
+                boolean granted = registry.claim(message.getFrom(), node);
+                send(node, new OutboundMessage(new Message.Builder().type(granted ? Message.Type.LOGIN_SUCCESSFUL :
+                        Message.Type.REJECTED_USER_NAME).from(message.getFrom()).text(message.getText()).build()));
+                break;
+            case LOGIN_SUCCESSFUL:
+            case REJECTED_USER_NAME:
+                long id;
+                try {
+                    id = Long.parseLong(message.getText());
+                } catch (NumberFormatException e) {
+                    LOGGER.warning(String.format("Ignoring answer with no claim from node %d: %s", node, message));
+                    break;
+                }
+                PendingClaim claim = claims.remove(id);
+                if (claim != null) {
+                    claim.claimed.complete(message.getType() == Message.Type.LOGIN_SUCCESSFUL);
+                } else if (message.getType() == Message.Type.LOGIN_SUCCESSFUL) {
+                    // Granted too late, after the client has been refused.
+                    release(message.getFrom());
+                }
+                break;
+            case JOINED:
+                remoteJoined(node, message.getFrom(), message.getDate());
+                break;
+            case CHAT_ROOM_STATE:
+                for (ChatRoomState.Member member : ChatRoomState.fromMessage(message).getMembers()) {
+                    remoteJoined(node, member.getName(), member.getJoinedDate());
+                }
+                break;
+            case LEFT:
+                registry.release(message.getFrom(), node);
+                if (locations.remove(message.getFrom(), node)) {
+                    chatRoom.remoteLeft(message.getFrom());
+                }
+                break;
+            default:
+                LOGGER.warning(String.format("Not supported message type from node %d: %s", node, message));
+                break;
+        }
+    }
+
+    private void remoteJoined(int node, String name, Date joinedDate) {
+        if (home(name) == nodeId) {
+            Integer previous = registry.restore(name, node);
+            if (previous != null) {
+                LOGGER.warning(String.format("Name %s is used on nodes %d and %d", name, previous, node));
+            }
+        }
+        locations.put(name, node);
+        chatRoom.remoteJoined(name, joinedDate);
+    }
+
+    /**
+     * Forgets the clients of a node whose link has broken and frees their names.
+     */
+    private void nodeLost(int node) {
+        int released = registry.releaseAll(node);
+        int left = 0;
+        for (Iterator<Map.Entry<String, Integer>> i = locations.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, Integer> location = i.next();
+            if (location.getValue() == node) {
+                i.remove();
+                chatRoom.remoteLeft(location.getKey());
+                left++;
+            }
+        }
+        failClaims(node);
+        LOGGER.info(String.format("Node %d lost with %d clients, %d names freed", node, left, released));
+    }
+
+    /**
+     * Keeps a link to another node open, connecting again whenever it breaks.
+     */
+    private void link(int node) {
+        InetSocketAddress address = nodes.get(node);
+        String description = describe(node);
+        while (true) {
+            Socket socket = null;
+            SocketConnection connection = null;
+            try {
+                socket = new Socket(address.getHostString(), address.getPort());
+                socket.setTcpNoDelay(true);
+                connection = new SocketConnection(socket, new OutboundQueue(LINK_QUEUE_CAPACITY, OutboundQueue
+                        .OverflowPolicy.DISCONNECT, writeBatchBytes), threads);
+                connection.switchCodec(BinaryMessageCodec.INSTANCE);
+                connection.send(new Message.Builder().type(Message.Type.HELLO).text(NODE + "=" + nodeId).build());
+                synchronized (presenceLock) {
+                    links.set(node, connection);
+                    sendClients(connection);
+                }
+                LOGGER.info(String.format("Linked to node %d at %s", node, description));
+                // The other node never writes to this socket, reading only notices it breaking.
+                connection.receive();
+            } catch (IOException e) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.log(Level.FINE, "Link to node " + node + " at " + description + " broken", e);
+                }
+            } catch (ParseException e) {
+                LOGGER.log(Level.SEVERE, "Incorrect message format from node " + node, e);
+            } finally {
+                if (connection != null && links.compareAndSet(node, connection, null)) {
+                    LOGGER.info(String.format("Link to node %d at %s broken", node, description));
+                    failClaims(node);
+                }
+                closeQuietly(connection, socket);
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends all the clients of this node to a newly linked node. Called under the presence lock.
+     */
+    private void sendClients(SocketConnection connection) throws IOException {
+        List<ChatRoomState.Member> members = new ArrayList<ChatRoomState.Member>(STATE_CHUNK);
+        for (ClientData client : chatRoom.getClients()) {
+            members.add(new ChatRoomState.Member(client.getName(), client.getJoinedDate()));
+            if (members.size() == STATE_CHUNK) {
+                connection.send(new ChatRoomState(members).toMessage());
+                members.clear();
+            }
+        }
+        if (!members.isEmpty()) {
+            connection.send(new ChatRoomState(members).toMessage());
+        }
+    }
+
+    private void sendToAll(OutboundMessage message) {
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i != nodeId) {
+                send(i, message);
+            }
+        }
+    }
+
+    /**
+     * @return Whether the message has been handed over to the link.
+     */
+    private boolean send(int node, OutboundMessage message) {
+        SocketConnection link = links.get(node);
+        if (link == null) {
+            return false;
+        }
+        try {
+            link.send(message);
+            relayed.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            // An overflowing link is closed, its thread connects again and sends all the clients anew.
+            LOGGER.log(Level.WARNING, "Could not send message to node " + node, e);
+            return false;
+        }
+    }
+
+    /**
+     * Refuses the names waiting for a node that won't answer any more.
+     */
+    private void failClaims(int node) {
+        for (Iterator<PendingClaim> i = claims.values().iterator(); i.hasNext(); ) {
+            PendingClaim claim = i.next();
+            if (claim.home == node) {
+                i.remove();
+                fail(claim);
+            }
+        }
+    }
+
+    private void fail(PendingClaim claim) {
+        claim.claimed.complete(false);
+        // The node may have granted the name already.
+        release(claim.name);
+    }
+
+    private static int parseNode(String text) {
+        try {
+            String node = Handshake.parse(text).get(NODE);
+            return node != null ? Integer.parseInt(node) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void closeQuietly(SocketConnection connection, Socket socket) {
+        try {
+            if (connection != null) {
+                connection.close();
+            } else if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Link closing failure", e);
+        }
+    }
+
+    private static class PendingClaim {
+
+        private final String name;
+        private final int home;
+        private final CompletableFuture<Boolean> claimed;
+
+        private PendingClaim(String name, int home, CompletableFuture<Boolean> claimed) {
+            this.name = name;
+            this.home = home;
+            this.claimed = claimed;
+        }
+
+    }
+
+}
@@ -0,0 +1,62 @@
+package pl.sepulkarz.socketchatroom.server.federation;
+
+import pl.sepulkarz.socketchatroom.server.net.UserDirectory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The part of the federation-wide registry of names kept by this node: names that belong to it and the nodes whose
+ * clients have them. Every name belongs to exactly one node, so a name can only be claimed once in the whole
+ * federation. Names are kept by their {@link UserDirectory#key}, so names differing only in case are one name.
+ */
+class NameRegistry {
+
+    private final ConcurrentMap<String, Integer> owners = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * @param name The name.
+     * @param node The node whose client wants the name.
+     * @return Whether the name was free and now belongs to the node's client.
+     */
+    boolean claim(String name, int node) {
+        return owners.putIfAbsent(UserDirectory.key(name), node) == null;
+    }
+
+    /**
+     * Records a name the node's client already has, e.g. when the node links to this one again.
+     *
+     * @return The node that had the name before, if it was another one, or {@code null}.
+     */
+    Integer restore(String name, int node) {
+        Integer previous = owners.put(UserDirectory.key(name), node);
+        return previous != null && previous != node ? previous : null;
+    }
+
+    void release(String name, int node) {
+        owners.remove(UserDirectory.key(name), node);
+    }
+
+    /**
+     * Frees all the names of a node's clients, once the node is gone.
+     *
+     * @return Number of names freed.
+     */
+    int releaseAll(int node) {
+        int released = 0;
+        for (Iterator<Map.Entry<String, Integer>> i = owners.entrySet().iterator(); i.hasNext(); ) {
+            if (i.next().getValue() == node) {
+                i.remove();
+                released++;
+            }
+        }
+        return released;
+    }
+
+    int size() {
+        return owners.size();
+    }
+
+}
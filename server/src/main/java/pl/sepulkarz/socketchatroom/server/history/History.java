@@ -0,0 +1,179 @@
+package pl.sepulkarz.socketchatroom.server.history;
+
+import pl.sepulkarz.socketchatroom.net.transport.BinaryMessageCodec;
+import pl.sepulkarz.socketchatroom.net.transport.OutboundMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * History of chat room broadcasts, replayed to clients when they join. Only broadcasts are kept: private and room
+ * messages are meant for their recipients and members at the time, so they are never replayed to whoever joins
+ * later. Engine threads only put messages in a bounded queue; a background thread encodes them and appends them to
+ * the {@link MessageLog}, so the live broadcast never waits for the disk, and parks while there is nothing to append.
+ * Messages that don't fit in a full queue are dropped and counted.
+ */
+public class History {
+
+    private final static Logger LOGGER = Logger.getLogger(History.class.getName());
+
+    /**
+     * Keeps and replays nothing.
+     */
+    public static final History DISABLED = new History();
+
+    private static final long RETENTION_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final MessageLog log;
+    private final int replayMessages;
+    private final long replayMillis;
+    private final int capacity;
+    private final Queue<OutboundMessage> pending = new ConcurrentLinkedQueue<OutboundMessage>();
+    private final AtomicInteger pendingSize = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * Set by the writer before it parks, cleared by the producer which unparks it.
+     */
+    private final AtomicBoolean idle = new AtomicBoolean();
+    private final Thread writer;
+    private volatile boolean running;
+
+    private History() {
+        this.log = null;
+        this.replayMessages = 0;
+        this.replayMillis = 0;
+        this.capacity = 0;
+        this.writer = null;
+    }
+
+    /**
+     * @param log            Where the messages are kept.
+     * @param replayMessages Maximum number of messages replayed to a joining client.
+     * @param replayMillis   Only messages younger than this are replayed, 0 for no limit.
+     * @param capacity       Number of messages that can wait to be appended.
+     */
+    public History(MessageLog log, int replayMessages, long replayMillis, int capacity) {
+        this.log = log;
+        this.replayMessages = replayMessages;
+        this.replayMillis = replayMillis;
+        this.capacity = capacity;
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "history-writer");
+        this.writer.setDaemon(true);
+    }
+
+    public void start() {
+        if (writer == null) {
+            return;
+        }
+        running = true;
+        writer.start();
+    }
+
+    /**
+     * Appends the messages still waiting and stops the writer.
+     */
+    public void close() {
+        if (writer == null || !running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Schedules a broadcast chat message to be appended. Never blocks.
+     *
+     * @param message The message.
+     */
+    public void append(OutboundMessage message) {
+        if (writer == null) {
+            return;
+        }
+        if (pendingSize.incrementAndGet() > capacity) {
+            pendingSize.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        pending.add(message);
+        if (idle.get() && idle.compareAndSet(true, false)) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * @return The messages to replay to a joining client as binary frames, oldest first.
+     */
+    public List<ByteBuffer> recent() {
+        if (log == null || replayMessages <= 0) {
+            return Collections.emptyList();
+        }
+        return log.readLast(replayMessages, replayMillis > 0 ? System.currentTimeMillis() - replayMillis : 0);
+    }
+
+    /**
+     * @return Number of messages appended to the log so far, including those already deleted by retention.
+     */
+    public long getMessages() {
+        return log != null ? log.getEndNumber() : 0;
+    }
+
+    /**
+     * @return Number of messages not kept because the writer couldn't keep up.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void write() {
+        long lastRetention = 0;
+        while (true) {
+            boolean stopping = !running;
+            OutboundMessage message;
+            try {
+                while ((message = pending.poll()) != null) {
+                    pendingSize.decrementAndGet();
+                    log.append(System.currentTimeMillis(), message.encode(BinaryMessageCodec.INSTANCE));
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "History appending failure", e);
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastRetention > RETENTION_INTERVAL_MILLIS) {
+                log.retain(now);
+                lastRetention = now;
+            }
+            if (stopping) {
+                log.force();
+                break;
+            }
+            idle.set(true);
+            // A message added after this check sees the flag and unparks the writer.
+            if (pending.isEmpty() && running) {
+                LockSupport.parkUntil(this, lastRetention + RETENTION_INTERVAL_MILLIS);
+            }
+            idle.set(false);
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+package pl.sepulkarz.socketchatroom.server.history;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of chat messages, split into memory-mapped {@link Segment} files named after the number of their
+ * first message. When the current segment is full, a new one is started; whole segments are deleted, oldest first,
+ * when the log grows too big or they get too old. Thread-safe, but meant to be appended to by a single background
+ * thread - see {@link History}.
+ */
+public class MessageLog {
+
+    private final static Logger LOGGER = Logger.getLogger(MessageLog.class.getName());
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxSize;
+    private final long maxAgeMillis;
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * Opens the log, creating the directory if needed.
+     *
+     * @param directory    Where the segments are.
+     * @param segmentSize  Size of a segment file in bytes, at least as big as the largest message.
+     * @param maxSize      Total size of segments after which the oldest ones are deleted.
+     * @param maxAgeMillis Age of the newest message of a segment after which the segment is deleted, 0 for no limit.
+     * @throws IOException When the directory or segments can't be opened.
+     */
+    public MessageLog(File directory, int segmentSize, long maxSize, long maxAgeMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSize = maxSize;
+        this.maxAgeMillis = maxAgeMillis;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return Segment.isSegment(file);
+            }
+        });
+        // Names are zero-padded numbers, so they sort in order.
+        Arrays.sort(files);
+        for (File file : files) {
+            segments.add(Segment.open(file));
+        }
+        if (segments.isEmpty()) {
+            segments.add(Segment.create(directory, 0, segmentSize));
+        }
+    }
+
+    /**
+     * @param time  The time of appending, in milliseconds since the epoch.
+     * @param frame A single message encoded with {@code BinaryMessageCodec}.
+     * @throws IOException When a new segment can't be created.
+     */
+    public synchronized void append(long time, ByteBuffer frame) throws IOException {
+        Segment current = segments.get(segments.size() - 1);
+        if (!current.append(time, frame)) {
+            current.force();
+            current = Segment.create(directory, current.getEndNumber(), segmentSize);
+            segments.add(current);
+            if (!current.append(time, frame)) {
+                throw new IOException("Message bigger than a segment: " + frame.remaining());
+            }
+            retain(time);
+        }
+    }
+
+    /**
+     * Copies the most recent messages.
+     *
+     * @param count Maximum number of messages.
+     * @param since Only messages appended at this time or later are copied.
+     * @return Binary frames of the messages, oldest first.
+     */
+    public synchronized List<ByteBuffer> readLast(int count, long since) {
+        List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+        long from = Math.max(getEndNumber() - count, segments.get(0).getBaseNumber());
+        for (Segment segment : segments) {
+            // The first segment with a message new enough has the first such message.
+            if (segment.getEndNumber() > segment.getBaseNumber() && segment.getLastTime() >= since) {
+                from = Math.max(from, segment.numberAt(since));
+                break;
+            }
+            from = Math.max(from, segment.getEndNumber());
+        }
+        for (Segment segment : segments) {
+            if (segment.getEndNumber() > from) {
+                segment.read(Math.max(from, segment.getBaseNumber()), frames);
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Deletes the oldest segments breaking the size or age limit. The current segment is always kept.
+     *
+     * @param now The current time.
+     */
+    public synchronized void retain(long now) {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.getSize();
+        }
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            boolean tooOld = maxAgeMillis > 0 && oldest.getLastTime() < now - maxAgeMillis;
+            if (size <= maxSize && !tooOld) {
+                break;
+            }
+            segments.remove(0);
+            size -= oldest.getSize();
+            if (!oldest.delete()) {
+                LOGGER.log(Level.WARNING, "Can't delete history segment of message " + oldest.getBaseNumber());
+            }
+        }
+    }
+
+    /**
+     * Writes appended messages to the disk. The operating system does it anyway, this only makes sure.
+     */
+    public synchronized void force() {
+        segments.get(segments.size() - 1).force();
+    }
+
+    /**
+     * @return Number of messages ever appended, including deleted ones.
+     */
+    public synchronized long getEndNumber() {
+        return segments.get(segments.size() - 1).getEndNumber();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+}
@@ -0,0 +1,217 @@
+package pl.sepulkarz.socketchatroom.server.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A file of {@link MessageLog}, mapped into memory as a whole. Records are appended one after another:
+ * <pre>
+ * long   time the record was appended, in milliseconds since the epoch (never 0)
+ * bytes  the message as a binary frame, see {@code BinaryMessageCodec}
+ * </pre>
+ * The time is written last, so a record is complete once it is non-zero, and the rest of a new file is all zeros.
+ * Every {@link #INDEX_INTERVAL} bytes a record is added to a sparse in-memory index of times and message numbers,
+ * which is rebuilt by scanning the file when it is opened again. Not thread-safe, {@link MessageLog} guards it.
+ */
+class Segment {
+
+    private static final String SUFFIX = ".log";
+    private static final int INDEX_INTERVAL = 4096;
+    private static final int TIME_SIZE = 8;
+    private static final int LENGTH_SIZE = 4;
+
+    private final File file;
+    private final long baseNumber;
+    private final MappedByteBuffer buffer;
+    private int end;
+    private int count;
+    private long lastTime;
+    private long[] indexTimes = new long[16];
+    private long[] indexNumbers = new long[16];
+    private int[] indexPositions = new int[16];
+    private int indexSize;
+
+    private Segment(File file, long baseNumber, int size) throws IOException {
+        this.file = file;
+        this.baseNumber = baseNumber;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid after the channel is closed.
+            this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Creates an empty segment.
+     *
+     * @param directory  Where the file is created.
+     * @param baseNumber Number of the first message of the segment, also the name of the file.
+     * @param size       Size of the file.
+     */
+    static Segment create(File directory, long baseNumber, int size) throws IOException {
+        return new Segment(new File(directory, String.format("%020d%s", baseNumber, SUFFIX)), baseNumber, size);
+    }
+
+    /**
+     * Opens an existing segment, finding where its records end and rebuilding its index.
+     */
+    static Segment open(File file) throws IOException {
+        String name = file.getName();
+        Segment segment = new Segment(file, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())),
+                (int) file.length());
+        segment.recover();
+        return segment;
+    }
+
+    static boolean isSegment(File file) {
+        return file.getName().endsWith(SUFFIX);
+    }
+
+    private void recover() {
+        int position = 0;
+        while (position + TIME_SIZE + LENGTH_SIZE <= buffer.capacity()) {
+            long time = buffer.getLong(position);
+            int length = buffer.getInt(position + TIME_SIZE);
+            if (time == 0 || length <= 0 || length > buffer.capacity() - position - TIME_SIZE - LENGTH_SIZE) {
+                break;
+            }
+            indexIfDue(position, time);
+            position += TIME_SIZE + LENGTH_SIZE + length;
+            count++;
+            lastTime = time;
+        }
+        end = position;
+    }
+
+    /**
+     * @param time  The time of appending.
+     * @param frame The message as a binary frame.
+     * @return {@code false} if the segment is full.
+     */
+    boolean append(long time, ByteBuffer frame) {
+        int length = frame.remaining();
+        if (end + TIME_SIZE + length > buffer.capacity()) {
+            return false;
+        }
+        ByteBuffer target = buffer.duplicate();
+        target.position(end + TIME_SIZE);
+        target.put(frame.duplicate());
+        buffer.putLong(end, time);
+        indexIfDue(end, time);
+        end += TIME_SIZE + length;
+        count++;
+        lastTime = time;
+        return true;
+    }
+
+    private void indexIfDue(int position, long time) {
+        if (indexSize > 0 && position - indexPositions[indexSize - 1] < INDEX_INTERVAL) {
+            return;
+        }
+        if (indexSize == indexTimes.length) {
+            indexTimes = Arrays.copyOf(indexTimes, indexSize * 2);
+            indexNumbers = Arrays.copyOf(indexNumbers, indexSize * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+        }
+        indexTimes[indexSize] = time;
+        indexNumbers[indexSize] = baseNumber + count;
+        indexPositions[indexSize] = position;
+        indexSize++;
+    }
+
+    /**
+     * @return Number of the first message appended at or after the time, or {@link #getEndNumber()} if none was.
+     */
+    long numberAt(long time) {
+        if (time > lastTime) {
+            return getEndNumber();
+        }
+        int entry = lastEntryBefore(indexTimes, time);
+        int position = entry >= 0 ? indexPositions[entry] : 0;
+        long number = entry >= 0 ? indexNumbers[entry] : baseNumber;
+        while (buffer.getLong(position) < time) {
+            position = next(position);
+            number++;
+        }
+        return number;
+    }
+
+    /**
+     * Copies the frames of messages from the given number to the end of the segment.
+     */
+    void read(long fromNumber, List<ByteBuffer> frames) {
+        int entry = lastEntryBefore(indexNumbers, fromNumber + 1);
+        int position = entry >= 0 ? indexPositions[entry] : 0;
+        long number = entry >= 0 ? indexNumbers[entry] : baseNumber;
+        for (; position < end; position = next(position), number++) {
+            if (number >= fromNumber) {
+                int length = LENGTH_SIZE + buffer.getInt(position + TIME_SIZE);
+                ByteBuffer frame = buffer.duplicate();
+                frame.position(position + TIME_SIZE).limit(position + TIME_SIZE + length);
+                ByteBuffer copy = ByteBuffer.allocate(length);
+                copy.put(frame).flip();
+                frames.add(copy);
+            }
+        }
+    }
+
+    private int next(int position) {
+        return position + TIME_SIZE + LENGTH_SIZE + buffer.getInt(position + TIME_SIZE);
+    }
+
+    /**
+     * @return Index of the last entry lower than the key, or -1.
+     */
+    private int lastEntryBefore(long[] keys, long key) {
+        int low = 0;
+        int high = indexSize - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    long getBaseNumber() {
+        return baseNumber;
+    }
+
+    /**
+     * @return Number the next appended message will get.
+     */
+    long getEndNumber() {
+        return baseNumber + count;
+    }
+
+    long getLastTime() {
+        return lastTime;
+    }
+
+    long getSize() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Writes the appended records to the disk.
+     */
+    void force() {
+        buffer.force();
+    }
+
+    boolean delete() {
+        return file.delete();
+    }
+
+}
@@ -0,0 +1,160 @@
+package pl.sepulkarz.socketchatroom.server.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of the chat server, registered as {@code pl.sepulkarz.socketchatroom:type=ChatServer}.
+ */
+public interface ChatServerMXBean {
+
+    /**
+     * @return Number of open client connections, including those that haven't logged in.
+     */
+    int getConnections();
+
+    /**
+     * @return Number of clients in the chat room.
+     */
+    int getMembers();
+
+    /**
+     * @return Number of rooms with at least one member.
+     */
+    int getRooms();
+
+    /**
+     * @return Messages received from clients by type.
+     */
+    Map<String, Long> getReceivedMessages();
+
+    /**
+     * @return Messages handed over to clients' connections by type, counted once per recipient.
+     */
+    Map<String, Long> getSentMessages();
+
+    /**
+     * @return Percentiles of the number of recipients of broadcast messages.
+     */
+    Map<String, Long> getBroadcastFanOut();
+
+    /**
+     * @return Number of messages waiting in every client's outbound queue, by client name.
+     */
+    Map<String, Integer> getOutboundBacklog();
+
+    int getMaxOutboundBacklog();
+
+    /**
+     * @return Compressed size as a fraction of the original size, by name of clients using compression.
+     */
+    Map<String, Double> getCompressionRatio();
+
+    /**
+     * @return Time spent compressing messages in microseconds, by name of clients using compression.
+     */
+    Map<String, Long> getCompressionMicros();
+
+    /**
+     * @return Percentiles of the number of messages written to a client at once.
+     */
+    Map<String, Long> getWriteBatchSize();
+
+    long getAcceptedNames();
+
+    /**
+     * @return Number of logins rejected because the name was taken.
+     */
+    long getRejectedNames();
+
+    /**
+     * @return Number of messages dropped because the sender exceeded its rate limits or had too many messages waiting.
+     */
+    long getThrottledMessages();
+
+    /**
+     * @return Number of chat messages waiting to be sent to their recipients.
+     */
+    int getWaitingFanOuts();
+
+    /**
+     * @return Number of resumable sessions, of clients connected or waiting to come back.
+     */
+    int getSessions();
+
+    /**
+     * @return Number of sessions resumed by clients coming back after their connection broke.
+     */
+    long getResumedSessions();
+
+    /**
+     * @return Number of sessions restored from the snapshot written by the previous server process.
+     */
+    long getRestoredSessions();
+
+    /**
+     * @return Time from the start of the JVM until the server accepted clients, in milliseconds.
+     */
+    long getStartupMillis();
+
+    /**
+     * @return Time the last snapshot of the sessions took to write, in microseconds.
+     */
+    long getSnapshotMicros();
+
+    long getDroppedOldestMessages();
+
+    long getDroppedNewestMessages();
+
+    long getDisconnectedSlowConsumers();
+
+    /**
+     * @return Average number of bytes allocated while handling a message, if measuring is enabled.
+     */
+    double getAllocatedBytesPerMessage();
+
+    /**
+     * @return Number of audit records dropped because the audit log writer couldn't keep up.
+     */
+    long getDroppedAuditRecords();
+
+    /**
+     * @return Number of messages appended to the history so far.
+     */
+    long getHistoryMessages();
+
+    /**
+     * @return Number of broadcast messages not kept in the history because its writer couldn't keep up.
+     */
+    long getDroppedHistoryMessages();
+
+    /**
+     * @return Number of joins and leaves never sent to clients because they cancelled out within the presence window.
+     */
+    long getCancelledPresenceChanges();
+
+    /**
+     * @return Number of connections aborted because the client stopped answering pings or never logged in.
+     */
+    long getAbortedIdleConnections();
+
+    /**
+     * @return Whether this node is linked to each of the other nodes of the federation, by address.
+     */
+    Map<String, Boolean> getFederationLinks();
+
+    /**
+     * @return Number of clients connected to the other nodes of the federation.
+     */
+    int getRemoteMembers();
+
+    /**
+     * @return Number of names in use in the federation that belong to this node.
+     */
+    int getRegisteredNames();
+
+    /**
+     * @return Number of messages sent to the other nodes of the federation.
+     */
+    long getRelayedMessages();
+
+}
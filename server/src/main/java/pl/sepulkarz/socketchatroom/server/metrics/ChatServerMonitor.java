@@ -0,0 +1,242 @@
+package pl.sepulkarz.socketchatroom.server.metrics;
+
+import pl.sepulkarz.socketchatroom.net.transport.BinaryMessageCodec;
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+import pl.sepulkarz.socketchatroom.net.transport.DeflateContext;
+import pl.sepulkarz.socketchatroom.net.transport.MessageCodec;
+import pl.sepulkarz.socketchatroom.net.transport.OutboundQueue;
+import pl.sepulkarz.socketchatroom.net.transport.TextMessageCodec;
+import pl.sepulkarz.socketchatroom.server.net.AllocationMeter;
+import pl.sepulkarz.socketchatroom.server.net.ChatRoom;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes the state and {@link ServerMetrics} of the chat room over JMX. Everything is computed when read, so the
+ * engines pay nothing for attributes nobody looks at.
+ */
+public class ChatServerMonitor implements ChatServerMXBean {
+
+    private static final String DOMAIN = "pl.sepulkarz.socketchatroom";
+
+    private final ChatRoom chatRoom;
+    private final ServerMetrics metrics;
+
+    public ChatServerMonitor(ChatRoom chatRoom) {
+        this.chatRoom = chatRoom;
+        this.metrics = chatRoom.getMetrics();
+    }
+
+    /**
+     * Registers the monitors of the chat room and of all codecs with the platform MBean server.
+     *
+     * @param chatRoom The chat room.
+     * @throws JMException When registering fails.
+     */
+    public static void register(ChatRoom chatRoom) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new ChatServerMonitor(chatRoom), new ObjectName(DOMAIN + ":type=ChatServer"));
+        for (MessageCodec codec : new MessageCodec[]{TextMessageCodec.INSTANCE, BinaryMessageCodec.INSTANCE}) {
+            server.registerMBean(new CodecMonitor(codec), new ObjectName(DOMAIN + ":type=Codec,name=" + codec
+                    .getName()));
+        }
+    }
+
+    @Override
+    public int getConnections() {
+        return metrics.getConnections();
+    }
+
+    @Override
+    public int getMembers() {
+        return chatRoom.getClients().size();
+    }
+
+    @Override
+    public int getRooms() {
+        return chatRoom.getRooms().size();
+    }
+
+    @Override
+    public Map<String, Long> getReceivedMessages() {
+        return metrics.getReceived();
+    }
+
+    @Override
+    public Map<String, Long> getSentMessages() {
+        return metrics.getSent();
+    }
+
+    @Override
+    public Map<String, Long> getBroadcastFanOut() {
+        return metrics.getFanOut().getPercentiles();
+    }
+
+    @Override
+    public Map<String, Integer> getOutboundBacklog() {
+        Map<String, Integer> backlog = new TreeMap<String, Integer>();
+        for (ClientData client : chatRoom.getClients()) {
+            OutboundQueue queue = client.getConnection().getOutboundQueue();
+            backlog.put(client.getName(), queue != null ? queue.size() : 0);
+        }
+        return backlog;
+    }
+
+    @Override
+    public int getMaxOutboundBacklog() {
+        int max = 0;
+        for (ClientData client : chatRoom.getClients()) {
+            OutboundQueue queue = client.getConnection().getOutboundQueue();
+            if (queue != null) {
+                max = Math.max(max, queue.size());
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public Map<String, Double> getCompressionRatio() {
+        Map<String, Double> ratios = new TreeMap<String, Double>();
+        for (ClientData client : chatRoom.getClients()) {
+            DeflateContext deflate = client.getConnection().getDeflate();
+            if (deflate != null) {
+                ratios.put(client.getName(), deflate.getRatio());
+            }
+        }
+        return ratios;
+    }
+
+    @Override
+    public Map<String, Long> getCompressionMicros() {
+        Map<String, Long> micros = new TreeMap<String, Long>();
+        for (ClientData client : chatRoom.getClients()) {
+            DeflateContext deflate = client.getConnection().getDeflate();
+            if (deflate != null) {
+                micros.put(client.getName(), TimeUnit.NANOSECONDS.toMicros(deflate.getNanos()));
+            }
+        }
+        return micros;
+    }
+
+    @Override
+    public Map<String, Long> getWriteBatchSize() {
+        return OutboundQueue.getBatchSizes().getPercentiles();
+    }
+
+    @Override
+    public long getAcceptedNames() {
+        return metrics.getAcceptedNames();
+    }
+
+    @Override
+    public long getRejectedNames() {
+        return metrics.getRejectedNames();
+    }
+
+    @Override
+    public long getThrottledMessages() {
+        return metrics.getThrottled();
+    }
+
+    @Override
+    public int getWaitingFanOuts() {
+        return chatRoom.getWaitingFanOuts();
+    }
+
+    @Override
+    public int getSessions() {
+        return chatRoom.getSessions();
+    }
+
+    @Override
+    public long getResumedSessions() {
+        return chatRoom.getResumedSessions();
+    }
+
+    @Override
+    public long getRestoredSessions() {
+        return chatRoom.getRestoredSessions();
+    }
+
+    @Override
+    public long getStartupMillis() {
+        return metrics.getStartupMillis();
+    }
+
+    @Override
+    public long getSnapshotMicros() {
+        return metrics.getSnapshotMicros();
+    }
+
+    @Override
+    public long getDroppedOldestMessages() {
+        return OutboundQueue.getDroppedOldest();
+    }
+
+    @Override
+    public long getDroppedNewestMessages() {
+        return OutboundQueue.getDroppedNewest();
+    }
+
+    @Override
+    public long getDisconnectedSlowConsumers() {
+        return OutboundQueue.getDisconnected();
+    }
+
+    @Override
+    public double getAllocatedBytesPerMessage() {
+        return AllocationMeter.getBytesPerMessage();
+    }
+
+    @Override
+    public long getDroppedAuditRecords() {
+        return chatRoom.getAuditLog().getDropped();
+    }
+
+    @Override
+    public long getHistoryMessages() {
+        return chatRoom.getHistory().getMessages();
+    }
+
+    @Override
+    public long getDroppedHistoryMessages() {
+        return chatRoom.getHistory().getDropped();
+    }
+
+    @Override
+    public long getCancelledPresenceChanges() {
+        return chatRoom.getCancelledPresenceChanges();
+    }
+
+    @Override
+    public long getAbortedIdleConnections() {
+        return chatRoom.getAbortedIdleConnections();
+    }
+
+    @Override
+    public Map<String, Boolean> getFederationLinks() {
+        return chatRoom.getFederation().getLinks();
+    }
+
+    @Override
+    public int getRemoteMembers() {
+        return chatRoom.getFederation().getRemoteMembers();
+    }
+
+    @Override
+    public int getRegisteredNames() {
+        return chatRoom.getFederation().getRegisteredNames();
+    }
+
+    @Override
+    public long getRelayedMessages() {
+        return chatRoom.getFederation().getRelayed();
+    }
+
+}
@@ -0,0 +1,20 @@
+package pl.sepulkarz.socketchatroom.server.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of a codec, registered as {@code pl.sepulkarz.socketchatroom:type=Codec,name=<codec name>}.
+ */
+public interface CodecMXBean {
+
+    /**
+     * @return Percentiles of the time of encoding a message, in nanoseconds.
+     */
+    Map<String, Long> getEncodingNanos();
+
+    /**
+     * @return Percentiles of the time of decoding a message, in nanoseconds.
+     */
+    Map<String, Long> getDecodingNanos();
+
+}
@@ -0,0 +1,28 @@
+package pl.sepulkarz.socketchatroom.server.metrics;
+
+import pl.sepulkarz.socketchatroom.net.transport.MessageCodec;
+
+import java.util.Map;
+
+/**
+ * Exposes the timings of a codec over JMX.
+ */
+public class CodecMonitor implements CodecMXBean {
+
+    private final MessageCodec codec;
+
+    public CodecMonitor(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public Map<String, Long> getEncodingNanos() {
+        return codec.getTimings().getEncoding().getPercentiles();
+    }
+
+    @Override
+    public Map<String, Long> getDecodingNanos() {
+        return codec.getTimings().getDecoding().getPercentiles();
+    }
+
+}
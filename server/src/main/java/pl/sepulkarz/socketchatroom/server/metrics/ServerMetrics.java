@@ -0,0 +1,154 @@
+package pl.sepulkarz.socketchatroom.server.metrics;
+
+import pl.sepulkarz.socketchatroom.metrics.Histogram;
+import pl.sepulkarz.socketchatroom.net.data.Message;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the chat server, updated by the engine threads while handling messages. Nothing here takes a lock:
+ * message counters are {@code LongAdder}s, which spread concurrent increments over separate cells instead of
+ * making all threads fight over one value.
+ */
+public class ServerMetrics {
+
+    private static final Message.Type[] TYPES = Message.Type.values();
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder[] received = newAdders();
+    private final LongAdder[] sent = newAdders();
+    private final LongAdder acceptedNames = new LongAdder();
+    private final LongAdder rejectedNames = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    /**
+     * Number of recipients of every broadcast message.
+     */
+    private final Histogram fanOut = new Histogram();
+    private volatile long startupMillis;
+    private volatile long snapshotMicros;
+
+    public void connectionOpened() {
+        connections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    public void received(Message.Type type) {
+        received[type.ordinal()].increment();
+    }
+
+    /**
+     * Records a message handed over to the recipients' connections. It may still wait in their outbound queues.
+     *
+     * @param type       Type of the message.
+     * @param recipients Number of recipients.
+     */
+    public void sent(Message.Type type, int recipients) {
+        sent[type.ordinal()].add(recipients);
+    }
+
+    /**
+     * Records a message sent to everyone in the chat room.
+     *
+     * @param type       Type of the message.
+     * @param recipients Number of recipients.
+     */
+    public void broadcast(Message.Type type, int recipients) {
+        sent(type, recipients);
+        fanOut.record(recipients);
+    }
+
+    public void acceptedName() {
+        acceptedNames.increment();
+    }
+
+    public void rejectedName() {
+        rejectedNames.increment();
+    }
+
+    /**
+     * Records a message dropped because its sender exceeded its rate limits or had too many messages waiting.
+     */
+    public void throttled() {
+        throttled.increment();
+    }
+
+    /**
+     * Records that the server has started accepting clients.
+     *
+     * @return Time since the JVM started, in milliseconds.
+     */
+    public long accepting() {
+        startupMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        return startupMillis;
+    }
+
+    /**
+     * Records the time a snapshot of the sessions took to write.
+     */
+    public void snapshotWritten(long micros) {
+        snapshotMicros = micros;
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public Map<String, Long> getReceived() {
+        return byType(received);
+    }
+
+    public Map<String, Long> getSent() {
+        return byType(sent);
+    }
+
+    public long getAcceptedNames() {
+        return acceptedNames.sum();
+    }
+
+    public long getRejectedNames() {
+        return rejectedNames.sum();
+    }
+
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    /**
+     * @return Time from the start of the JVM until clients were accepted, in milliseconds, 0 until then.
+     */
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    public long getSnapshotMicros() {
+        return snapshotMicros;
+    }
+
+    public Histogram getFanOut() {
+        return fanOut;
+    }
+
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[TYPES.length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static Map<String, Long> byType(LongAdder[] adders) {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Message.Type type : TYPES) {
+            counts.put(type.name(), adders[type.ordinal()].sum());
+        }
+        return counts;
+    }
+
+}
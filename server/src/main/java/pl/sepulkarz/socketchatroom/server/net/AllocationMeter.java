@@ -0,0 +1,62 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures memory allocated by engine threads while handling messages, using the thread allocation counters of
+ * HotSpot-based JVMs. Measuring costs two calls per message, so it only happens when enabled.
+ */
+public class AllocationMeter {
+
+    private static final AtomicLong messages = new AtomicLong();
+    private static final AtomicLong bytes = new AtomicLong();
+
+    private final com.sun.management.ThreadMXBean threads;
+
+    public AllocationMeter(boolean enabled) {
+        this.threads = enabled && ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean ?
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() : null;
+    }
+
+    /**
+     * @return Bytes allocated by the current thread so far, or a negative number if not measuring.
+     */
+    public long start() {
+        return threads != null ? threads.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    /**
+     * Records allocations of one handled message.
+     *
+     * @param start The value returned by {@link #start()} before handling the message.
+     */
+    public void stop(long start) {
+        if (start < 0) {
+            return;
+        }
+        long end = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        if (end >= start) {
+            messages.incrementAndGet();
+            bytes.addAndGet(end - start);
+        }
+    }
+
+    public static long getMessages() {
+        return messages.get();
+    }
+
+    public static long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return Average number of bytes allocated while handling a message, including routing and handing it over to
+     * the recipients' connections.
+     */
+    public static double getBytesPerMessage() {
+        long count = messages.get();
+        return count > 0 ? (double) bytes.get() / count : 0;
+    }
+
+}
@@ -0,0 +1,1097 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import pl.sepulkarz.socketchatroom.net.data.ChatRoomState;
+import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.data.PresenceDelta;
+import pl.sepulkarz.socketchatroom.net.data.UserMatches;
+import pl.sepulkarz.socketchatroom.net.transport.BinaryMessageCodec;
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+import pl.sepulkarz.socketchatroom.net.transport.Connection;
+import pl.sepulkarz.socketchatroom.net.transport.DeflateContext;
+import pl.sepulkarz.socketchatroom.net.transport.Handshake;
+import pl.sepulkarz.socketchatroom.net.transport.MessageCodec;
+import pl.sepulkarz.socketchatroom.net.transport.MessageView;
+import pl.sepulkarz.socketchatroom.net.transport.NameCache;
+import pl.sepulkarz.socketchatroom.net.transport.OutboundMessage;
+import pl.sepulkarz.socketchatroom.server.audit.AuditLog;
+import pl.sepulkarz.socketchatroom.server.federation.Federation;
+import pl.sepulkarz.socketchatroom.server.history.History;
+import pl.sepulkarz.socketchatroom.server.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Routing logic of the chat room, shared by all server engines. It is thread-safe - any engine thread may call it
+ * on behalf of the client it serves.
+ */
+public class ChatRoom {
+
+    private final static Logger LOGGER = Logger.getLogger(ChatRoom.class.getName());
+
+    /**
+     * Time a client whose messages are still waiting to be sent is asked to wait before sending more.
+     */
+    private static final long BACKLOG_RETRY_MILLIS = 1000;
+
+    /**
+     * Maximum number of names sent in answer to a {@code Message.Type.USERS} query.
+     */
+    private static final int MAX_USER_MATCHES = 20;
+
+    /**
+     * Clients of this node by their exact name, to send them messages.
+     */
+    private final Map<String, ClientData> clients = new ConcurrentHashMap<String, ClientData>();
+
+    /**
+     * Makes sure there are no two clients with the same name, those of other nodes included, and looks names up by
+     * prefix.
+     */
+    private final UserDirectory directory = new UserDirectory();
+
+    /**
+     * Clients of the other nodes of the federation, known only by name and joined date.
+     */
+    private final Map<String, ClientData> remoteClients = new ConcurrentHashMap<String, ClientData>();
+
+    /**
+     * Names of clients, so that recipients of relayed messages are decoded without allocating.
+     */
+    private final NameCache names = new NameCache(4096);
+
+    /**
+     * Clients of the chat room in the order they joined, those of other nodes included, kept up to date on every join
+     * and leave, so that a joining client can be told who is present without sorting anybody.
+     */
+    private final NavigableSet<ClientData> joinOrder = new ConcurrentSkipListSet<ClientData>(new
+            Comparator<ClientData>() {
+        @Override
+        public int compare(ClientData o1, ClientData o2) {
+            int byDate = o1.getJoinedDate().compareTo(o2.getJoinedDate());
+            // Names are unique, so clients joining at the same time are kept apart.
+            return byDate != 0 ? byDate : o1.getName().compareTo(o2.getName());
+        }
+    });
+
+    private final Rooms rooms = new Rooms();
+
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    private final AuditLog auditLog;
+
+    private final History history;
+
+    /**
+     * Clients supporting {@code Handshake.FEATURE_PRESENCE}. They learn about others joining and leaving from the
+     * {@link PresenceDelta} sent every presence window instead of separate messages.
+     */
+    private final Set<ClientData> presenceSubscribers = Collections.newSetFromMap(new ConcurrentHashMap<ClientData,
+            Boolean>());
+
+    /**
+     * Changes waiting for the next presence delta, {@code null} if presence changes aren't coalesced.
+     */
+    private final PresenceAggregator presence;
+
+    /**
+     * Whether clients offering compression get it.
+     */
+    private final boolean compression;
+
+    private final Federation federation;
+
+    /**
+     * Clients supporting {@code Handshake.FEATURE_PING}, which are pinged when idle and aborted when they don't answer.
+     */
+    private final Set<ClientData> pingable = Collections.newSetFromMap(new ConcurrentHashMap<ClientData, Boolean>());
+
+    private final IdleMonitor idleMonitor;
+
+    private final RateLimits rateLimits;
+
+    private final FanOutScheduler fanOutScheduler;
+
+    private final Sessions sessions;
+
+    public ChatRoom() {
+        this(AuditLog.DISABLED, History.DISABLED, 0, false, Federation.DISABLED, 0, 0, 0, RateLimits.NONE,
+                FanOutScheduler.DIRECT, 0, 0);
+    }
+
+    /**
+     * @param auditLog             Where the chat room records who joined, left and sent messages.
+     * @param history              Keeps broadcast messages to replay them to clients joining later.
+     * @param presenceWindowMillis How long clients joining and leaving are collected before the supporting clients
+     *                             are sent one {@link PresenceDelta}, 0 to send every change at once.
+     * @param compression          Whether clients offering compression get it.
+     * @param federation           Other servers sharing the chat room, started by the caller.
+     * @param idleTimeoutMillis    Time without hearing from a client after which it is pinged, 0 to never check.
+     * @param readTimeoutMillis    Time a pinged client has to answer before its connection is aborted.
+     * @param loginTimeoutMillis   Time a client has to log in before its connection is aborted, 0 for no limit.
+     * @param rateLimits           Limits of every client's messages, checked by the engines with {@link #admit}.
+     * @param fanOutScheduler      Sends the clients' chat messages to their recipients, started by the caller.
+     * @param sessionResumeMillis  How long a client supporting {@code Handshake.FEATURE_RESUME} whose connection
+     *                             broke stays in the chat room, waiting to come back, 0 to not keep anybody.
+     * @param sessionReplayMessages Number of the last messages sent to such a client kept to be sent again.
+     */
+    public ChatRoom(AuditLog auditLog, History history, long presenceWindowMillis, boolean compression,
+                    Federation federation, long idleTimeoutMillis, long readTimeoutMillis, long loginTimeoutMillis,
+                    RateLimits rateLimits, FanOutScheduler fanOutScheduler, long sessionResumeMillis,
+                    int sessionReplayMessages) {
+        this.auditLog = auditLog;
+        this.history = history;
+        this.compression = compression;
+        this.federation = federation;
+        this.idleMonitor = new IdleMonitor(this, idleTimeoutMillis, readTimeoutMillis, loginTimeoutMillis);
+        this.rateLimits = rateLimits;
+        this.fanOutScheduler = fanOutScheduler;
+        this.sessions = new Sessions(this, sessionResumeMillis, sessionReplayMessages);
+        if (presenceWindowMillis > 0) {
+            presence = new PresenceAggregator();
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "presence");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sendPresenceDelta();
+                }
+            }, presenceWindowMillis, presenceWindowMillis, TimeUnit.MILLISECONDS);
+        } else {
+            presence = null;
+        }
+    }
+
+    public NameCache getNames() {
+        return names;
+    }
+
+    public Rooms getRooms() {
+        return rooms;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public AuditLog getAuditLog() {
+        return auditLog;
+    }
+
+    public History getHistory() {
+        return history;
+    }
+
+    public Federation getFederation() {
+        return federation;
+    }
+
+    /**
+     * @return Number of joins and leaves that were never sent because they cancelled out within the presence window.
+     */
+    public long getCancelledPresenceChanges() {
+        return presence != null ? presence.getCancelled() : 0;
+    }
+
+    /**
+     * @return Number of connections aborted because the peer stopped answering or never logged in.
+     */
+    public long getAbortedIdleConnections() {
+        return idleMonitor.getAborted();
+    }
+
+    /**
+     * @return Number of chat messages of all clients waiting to be sent to their recipients.
+     */
+    public int getWaitingFanOuts() {
+        return fanOutScheduler.getWaiting();
+    }
+
+    /**
+     * @return Number of resumable sessions, of clients connected or waiting to come back.
+     */
+    public int getSessions() {
+        return sessions.size();
+    }
+
+    /**
+     * @return Number of sessions resumed by clients coming back after their connection broke.
+     */
+    public long getResumedSessions() {
+        return sessions.getResumed();
+    }
+
+    /**
+     * @return Number of sessions restored from a snapshot on startup.
+     */
+    public long getRestoredSessions() {
+        return sessions.getRestored();
+    }
+
+    /**
+     * @return Live view of the resumable sessions, to be written to a snapshot.
+     */
+    Collection<Sessions.Session> getOpenSessions() {
+        return sessions.getAll();
+    }
+
+    /**
+     * Puts a client of the previous server process back into the chat room, with its session, joined date and rooms,
+     * waiting for it to come back. Called by {@link Snapshots} before any client connects, so nobody is told.
+     *
+     * @param token      Token of the client's session.
+     * @param name       Name of the client.
+     * @param joinedDate When it joined.
+     * @param rooms      Rooms it is a member of.
+     * @return Whether the client was restored; not if sessions are disabled or its name is taken.
+     */
+    boolean restore(String token, String name, Date joinedDate, List<String> rooms) {
+        ClientData client = new ClientData(null);
+        client.setName(name);
+        client.setJoinedDate(joinedDate);
+        if (!sessions.isEnabled() || Message.isRoom(name) || !directory.register(name, client)) {
+            return false;
+        }
+        sessions.restore(token, client);
+        clients.put(name, client);
+        joinOrder.add(client);
+        names.add(name);
+        for (String room : rooms) {
+            if (Message.isRoom(room)) {
+                this.rooms.join(room, client);
+            }
+        }
+        federation.restored(name);
+        return true;
+    }
+
+    /**
+     * @return Rate limits for a newly opened connection, to be passed to {@link #admit}.
+     */
+    public FloodControl newFloodControl() {
+        return rateLimits.newFloodControl();
+    }
+
+    /**
+     * Starts watching a newly opened connection for its peer going silent. Called by the engines.
+     *
+     * @param client The client of the connection.
+     */
+    public void opened(ClientData client) {
+        metrics.connectionOpened();
+        idleMonitor.watch(client);
+    }
+
+    /**
+     * @return Live view of the clients of this node in the chat room.
+     */
+    public Collection<ClientData> getClients() {
+        return Collections.unmodifiableCollection(clients.values());
+    }
+
+    /**
+     * Checks a message received from a client against the client's rate limits, before it is handled. A message over
+     * the limits is dropped and counted, and the client is told with a {@code Message.Type.THROTTLED} message - once,
+     * until one of its messages gets through again. Only chat messages, joining and parting rooms and user queries
+     * are limited; control messages ({@code HELLO}, {@code LEFT}, {@code PING} and {@code PONG}) always get through,
+     * so that e.g. a client that has just been chatting can still say it's leaving.
+     *
+     * @param client       The sender.
+     * @param floodControl Rate limits of the sender.
+     * @param type         Type of the message.
+     * @param size         Size of the message in bytes.
+     * @return Whether the message should be handled.
+     * @throws IOException When telling the sender fails.
+     */
+    public boolean admit(ClientData client, FloodControl floodControl, Message.Type type, int size) throws
+            IOException {
+        if (isControl(type) || floodControl.admit(size)) {
+            return true;
+        }
+        metrics.throttled();
+        if (floodControl.startThrottling()) {
+            LOGGER.info("Throttling " + client);
+            throttle(client, floodControl.getRetryAfterMillis(size));
+        }
+        return false;
+    }
+
+    private static boolean isControl(Message.Type type) {
+        return type == Message.Type.HELLO || type == Message.Type.LEFT || type == Message.Type.PING || type ==
+                Message.Type.PONG;
+    }
+
+    /**
+     * Handles a message received from a client.
+     *
+     * @param client  The sender.
+     * @param message The message.
+     * @throws IOException When replying to the sender fails.
+     */
+    public void handle(ClientData client, Message message) throws IOException {
+        metrics.received(message.getType());
+        switch (message.getType()) {
+            case HELLO:
+                handleHello(client, message);
+                break;
+            case JOIN:
+                joinRoom(client, message.getTo());
+                break;
+            case PART:
+                partRoom(client, message.getTo());
+                break;
+            case PING:
+                send(new Message.Builder().type(Message.Type.PONG).build(), client);
+                break;
+            case PONG:
+                // Having been read is all it takes.
+                break;
+            case USERS:
+                findUsers(client, message.getText() != null ? message.getText() : "");
+                break;
+            case LEFT:
+                // Leaving for good, so the connection closing next doesn't keep the session.
+                sessions.close(client);
+                break;
+            case NORMAL:
+                auditLog.message(client.getName(), message.getTo(), 0);
+                if (message.isBroadcast()) {
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine("Broadcasting message to others: " + message);
+                    }
+                    OutboundMessage outbound = new OutboundMessage(message);
+                    if (fanOut(client, null, outbound)) {
+                        history.append(outbound);
+                        federation.relay(outbound);
+                    }
+                } else if (message.isToRoom()) {
+                    sendToRoom(client, message.getTo(), new OutboundMessage(message));
+                } else {
+                    ClientData recipient = clients.get(message.getTo());
+                    if (recipient != null) {
+                        sendPrivately(client, recipient, new OutboundMessage(message));
+                    } else {
+                        federation.relayTo(message.getTo(), new OutboundMessage(message));
+                    }
+                }
+                break;
+            default:
+                LOGGER.log(Level.WARNING, "Not supported message type: " + message);
+                break;
+        }
+    }
+
+    /**
+     * Handles a binary message received from a client. Chat messages are routed by their recipient only and
+     * forwarded exactly as received, without reconstructing the {@code Message}; anything else is decoded and handled
+     * by {@link #handle(ClientData, Message)}.
+     *
+     * @param client The sender.
+     * @param view   The message, valid only during this call.
+     * @throws IOException When replying to the sender fails.
+     */
+    public void handle(ClientData client, MessageView view) throws IOException {
+        if (view.getType() != Message.Type.NORMAL) {
+            handle(client, view.toMessage());
+        } else if (view.isBroadcast()) {
+            metrics.received(Message.Type.NORMAL);
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Relaying broadcast message to others: " + view);
+            }
+            auditLog.message(client.getName(), Message.BROADCAST, view.getFrameLength());
+            OutboundMessage outbound = new OutboundMessage(BinaryMessageCodec.INSTANCE, view.copyFrame());
+            if (fanOut(client, null, outbound)) {
+                history.append(outbound);
+                federation.relay(outbound);
+            }
+        } else if (view.isToRoom()) {
+            metrics.received(Message.Type.NORMAL);
+            auditLog.message(client.getName(), view.getTo(), view.getFrameLength());
+            sendToRoom(client, view.getTo(), new OutboundMessage(BinaryMessageCodec.INSTANCE, view.copyFrame()));
+        } else {
+            metrics.received(Message.Type.NORMAL);
+            auditLog.message(client.getName(), view.getTo(), view.getFrameLength());
+            ClientData recipient = clients.get(view.getTo());
+            if (recipient != null) {
+                sendPrivately(client, recipient, new OutboundMessage(BinaryMessageCodec.INSTANCE, view.copyFrame()));
+            } else {
+                federation.relayTo(view.getTo(), new OutboundMessage(BinaryMessageCodec.INSTANCE, view.copyFrame()));
+            }
+        }
+    }
+
+    /**
+     * Delivers a chat message relayed by another node of the federation to the clients of this node it is meant
+     * for. Broadcasts are added to the history, as every node keeps all of them.
+     *
+     * @param view The message, valid only during this call.
+     */
+    public void deliver(MessageView view) {
+        OutboundMessage outbound = new OutboundMessage(BinaryMessageCodec.INSTANCE, view.copyFrame());
+        if (view.isBroadcast()) {
+            broadcast(Message.Type.NORMAL, outbound);
+            history.append(outbound);
+        } else if (view.isToRoom()) {
+            sendToRoom(Message.Type.NORMAL, view.getTo(), outbound);
+        } else {
+            ClientData recipient = clients.get(view.getTo());
+            if (recipient != null) {
+                sendQuietly(outbound, recipient);
+                metrics.sent(Message.Type.NORMAL, 1);
+            }
+        }
+    }
+
+    /**
+     * Adds a client of another node of the federation, informing the clients of this node.
+     *
+     * @param name       Its name.
+     * @param joinedDate When it joined.
+     */
+    public void remoteJoined(String name, Date joinedDate) {
+        ClientData remote = new ClientData(null);
+        remote.setName(name);
+        remote.setJoinedDate(joinedDate);
+        if (remoteClients.putIfAbsent(name, remote) == null) {
+            if (!directory.register(name, remote)) {
+                LOGGER.warning("Name of remote client " + name + " is taken on this node");
+            }
+            joinOrder.add(remote);
+            names.add(name);
+            informOthersOfPresence(remote);
+        }
+    }
+
+    /**
+     * Removes a client of another node of the federation, informing the clients of this node.
+     *
+     * @param name Its name.
+     */
+    public void remoteLeft(String name) {
+        ClientData remote = remoteClients.remove(name);
+        if (remote != null) {
+            directory.remove(remote);
+            joinOrder.remove(remote);
+            informOthersOfAbsence(remote);
+        }
+    }
+
+    /**
+     * Called by the engines when the client's connection has closed. A client with a resumable session stays in the
+     * chat room for a while, in case it comes back; any other leaves at once, see {@link #depart}.
+     *
+     * @param client The client.
+     */
+    public void leave(ClientData client) {
+        idleMonitor.unwatch(client);
+        if (sessions.detach(client)) {
+            fanOutScheduler.remove(client);
+        } else {
+            depart(client);
+        }
+    }
+
+    /**
+     * Removes the client from the chat room and informs all the others of the fact that it has just left. Does
+     * nothing for clients that have never been accepted or have been replaced by a resumed session. The client leaves
+     * its rooms silently - their members learn about it from the {@code Message.Type.LEFT} message or the next
+     * {@link PresenceDelta}.
+     * <p>
+     * Nothing is sent to the client from now on, but the others are informed, and its name is freed, only once its
+     * messages still waiting to be fanned out are sent - so nobody gets one of them after learning it has left, nor
+     * learns about a new client with the same name before that.
+     *
+     * @param client The client.
+     */
+    void depart(final ClientData client) {
+        if (client.getName() != null && clients.remove(client.getName(), client)) {
+            joinOrder.remove(client);
+            presenceSubscribers.remove(client);
+            pingable.remove(client);
+            auditLog.left(client.getName());
+            for (String room : client.getRooms()) {
+                rooms.part(room, client);
+            }
+            fanOutScheduler.remove(client, new Runnable() {
+                @Override
+                public void run() {
+                    directory.remove(client);
+                    informOthersOfAbsence(client);
+                    federation.left(client.getName());
+                }
+            });
+        }
+    }
+
+    /**
+     * Handles {@code Message.Type.HELLO} message. If a client joins the chat room (by sending a hello message), a
+     * few things need to happen:
+     * <li>Register the name in the user directory and if there is another client with it (differing at most in case
+     * or Unicode form), reject by sending {@code Message.Type.REJECTED_USER_NAME} message. Names of rooms are
+     * rejected as well. In a federation, the name must also be granted by the node it belongs to; the client's
+     * connection handles nothing else until the answer comes.</li>
+     * <li>Send acknowledgment in form of {@code Message.Type.LOGIN_SUCCESSFUL} message, switching to the codec
+     * chosen from the client's offer.</li>
+     * <li>Inform other clients of the presence of the new client.</li>
+     * <li>Inform the new client of the presence of others.
+     * Clients supporting {@code Handshake.FEATURE_STATE} get a single {@link ChatRoomState} instead.</li>
+     * <li>Replay recent messages from the history.</li>
+     * A client coming back to its session skips all that, see {@link #resume}. The client gets its name only once the
+     * name is registered; a client that already has one, accepted or waiting for the answer of another node, can't
+     * change it and its further hello messages are ignored.
+     *
+     * @param client  The sender.
+     * @param message The hello message.
+     * @throws IOException
+     */
+    private void handleHello(final ClientData client, final Message message) throws IOException {
+        if (client.getName() != null) {
+            LOGGER.warning(String.format("Ignoring hello of %s, who has a name already: %s", client, message));
+            return;
+        }
+        final String name = message.getFrom();
+        final Map<String, String> options = Handshake.parse(message.getText());
+        if (options.containsKey(Handshake.SESSION)) {
+            resume(client, name, options);
+        } else if (name == null || Message.isRoom(name) || !directory.register(name, client)) {
+            // There is already another client in the chat room with this name (or it is a room), so server has to deny.
+            reject(client, name);
+        } else {
+            client.setName(name);
+            client.setJoinedDate(message.getDate());
+            if (!federation.isEnabled()) {
+                accept(client, options);
+                return;
+            }
+            final CompletableFuture<Boolean> claim = federation.claim(name);
+            client.getConnection().resumeWhenDone(claim, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!claim.getNow(false)) {
+                            directory.remove(client);
+                            // Free to try another name.
+                            client.setName(null);
+                            reject(client, name);
+                        } else if (!client.getConnection().isPossibleToWrite()) {
+                            directory.remove(client);
+                            federation.release(name);
+                        } else {
+                            accept(client, options);
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Could not answer hello of " + client, e);
+                    }
+                }
+            });
+        }
+    }
+
+    private void reject(ClientData client, String name) throws IOException {
+        LOGGER.info(String.format("Rejecting name %s of %s", name, client));
+        metrics.rejectedName();
+        auditLog.rejected(name);
+        send(new Message.Builder().type(Message.Type.REJECTED_USER_NAME).build(), client);
+    }
+
+    private void accept(ClientData client, Map<String, String> options) throws IOException {
+        LOGGER.info("Accepting " + client);
+        metrics.acceptedName();
+        auditLog.joined(client.getName());
+        clients.put(client.getName(), client);
+        joinOrder.add(client);
+        names.add(client.getName());
+        List<String> features = new ArrayList<String>(4);
+        boolean state = Handshake.hasFeature(options, Handshake.FEATURE_STATE);
+        if (state) {
+            features.add(Handshake.FEATURE_STATE);
+        }
+        if (presence != null && Handshake.hasFeature(options, Handshake.FEATURE_PRESENCE)) {
+            presenceSubscribers.add(client);
+            features.add(Handshake.FEATURE_PRESENCE);
+        }
+        if (idleMonitor.isEnabled() && Handshake.hasFeature(options, Handshake.FEATURE_PING)) {
+            pingable.add(client);
+            features.add(Handshake.FEATURE_PING);
+        }
+        Sessions.Session session = null;
+        if (sessions.isEnabled() && Handshake.hasFeature(options, Handshake.FEATURE_RESUME)) {
+            session = sessions.open(client);
+            features.add(Handshake.FEATURE_RESUME);
+        }
+        if (Handshake.hasFeature(options, Handshake.FEATURE_USERS)) {
+            features.add(Handshake.FEATURE_USERS);
+        }
+        acknowledgeLogin(client, options, features, session, null);
+        // All the other clients need to be informed of a fact that someone new joined the chat room.
+        informOthersOfPresence(client);
+        federation.joined(client);
+        // Inform the new client of clients present in the chat room and when they joined.
+        if (state) {
+            sendChatRoomState(client);
+        } else {
+            informClientOfOthersPresence(client);
+        }
+        replayHistory(client);
+    }
+
+    /**
+     * Lets a client coming back on a new connection take the place of its previous self, with its joined date and
+     * rooms, after sending it the messages it missed. Nobody else notices: there are no {@code Message.Type.JOINED}
+     * or {@code LEFT} messages, nor chat room state or history for the client. It is rejected if the session is
+     * unknown, belongs to somebody else or no longer has the messages missed; in the last case the session ends and
+     * its previous client leaves.
+     * <p>
+     * The session is taken over and messages for the client routed to the new connection in one go, while nothing
+     * can be sent on it, so whatever is sent to the client meanwhile - even to its previous self - follows the
+     * acknowledgement and the missed messages.
+     *
+     * @param client  The client coming back.
+     * @param name    Its name.
+     * @param options Options from its hello message, with its session and the number of messages it received.
+     * @throws IOException When replying to the client fails.
+     */
+    private void resume(final ClientData client, final String name, Map<String, String> options) throws
+            IOException {
+        final Sessions.Session session = sessions.get(options.get(Handshake.SESSION));
+        if (session == null || !session.getClient().getName().equals(name)) {
+            reject(client, name);
+            return;
+        }
+        long received;
+        try {
+            received = Long.parseLong(options.get(Handshake.SEQUENCE));
+        } catch (NumberFormatException e) {
+            received = -1;
+        }
+        final ClientData previous = session.getClient();
+        List<String> features = new ArrayList<String>(3);
+        final boolean subscribes = presence != null && Handshake.hasFeature(options, Handshake.FEATURE_PRESENCE);
+        if (subscribes) {
+            features.add(Handshake.FEATURE_PRESENCE);
+        }
+        final boolean pings = idleMonitor.isEnabled() && Handshake.hasFeature(options, Handshake.FEATURE_PING);
+        if (pings) {
+            features.add(Handshake.FEATURE_PING);
+        }
+        features.add(Handshake.FEATURE_RESUME);
+        if (Handshake.hasFeature(options, Handshake.FEATURE_USERS)) {
+            features.add(Handshake.FEATURE_USERS);
+        }
+        final long sequence = received;
+        boolean resumed;
+        try {
+            resumed = acknowledgeLogin(client, options, features, session, new Supplier<List<OutboundMessage>>() {
+                @Override
+                public List<OutboundMessage> get() {
+                    List<OutboundMessage> missed = sessions.takeOver(session, sequence, client.getConnection());
+                    if (missed != null) {
+                        LOGGER.info(String.format("Resuming session of %s with %d messages missed", previous,
+                                missed.size()));
+                        takePlace(previous, client, subscribes, pings);
+                        sessions.moved(session, client);
+                    }
+                    return missed;
+                }
+            });
+        } catch (IOException e) {
+            // Gone again right after taking over.
+            sessions.close(client);
+            depart(client);
+            throw e;
+        }
+        if (!resumed) {
+            reject(client, name);
+        }
+    }
+
+    /**
+     * Puts a client coming back in the place of its previous self, so that messages for it go to the new connection.
+     */
+    private void takePlace(ClientData previous, ClientData client, boolean subscribes, boolean pings) {
+        client.setName(previous.getName());
+        client.setJoinedDate(previous.getJoinedDate());
+        if (subscribes) {
+            presenceSubscribers.add(client);
+        }
+        if (pings) {
+            pingable.add(client);
+        }
+        clients.put(client.getName(), client);
+        directory.replace(previous, client);
+        joinOrder.remove(previous);
+        joinOrder.add(client);
+        rooms.transfer(previous, client);
+        presenceSubscribers.remove(previous);
+        pingable.remove(previous);
+        fanOutScheduler.remove(previous);
+    }
+
+    /**
+     * Handles {@code Message.Type.JOIN} message. The new member gets a {@code JOIN} message from every member already
+     * in the room, then all members - the new one included, as an acknowledgement - get one from the new member.
+     *
+     * @param client The client joining.
+     * @param room   Name of the room.
+     */
+    private void joinRoom(ClientData client, String room) {
+        if (!isAccepted(client) || !Message.isRoom(room)) {
+            LOGGER.warning(String.format("Not joining %s to room %s", client, room));
+            return;
+        }
+        if (!rooms.join(room, client)) {
+            return;
+        }
+        auditLog.joinedRoom(client.getName(), room);
+        int recipients = 0;
+        for (ClientData member : rooms.getMembers(room)) {
+            if (member != client) {
+                sendQuietly(new OutboundMessage(new Message.Builder().type(Message.Type.JOIN).from(member.getName())
+                        .to(room).build()), client);
+                recipients++;
+            }
+        }
+        metrics.sent(Message.Type.JOIN, recipients);
+        sendToRoom(Message.Type.JOIN, room, new OutboundMessage(new Message.Builder().type(Message.Type.JOIN).from
+                (client.getName()).to(room).build()));
+    }
+
+    /**
+     * Handles {@code Message.Type.PART} message, informing the remaining members and the client itself.
+     *
+     * @param client The client parting.
+     * @param room   Name of the room.
+     */
+    private void partRoom(ClientData client, String room) {
+        if (!rooms.part(room, client)) {
+            return;
+        }
+        auditLog.partedRoom(client.getName(), room);
+        OutboundMessage part = new OutboundMessage(new Message.Builder().type(Message.Type.PART).from(client
+                .getName()).to(room).build());
+        sendQuietly(part, client);
+        metrics.sent(Message.Type.PART, 1);
+        sendToRoom(Message.Type.PART, room, part);
+    }
+
+    /**
+     * Handles {@code Message.Type.USERS} query of an accepted client, sending back the names starting with the
+     * prefix.
+     *
+     * @param client The client asking.
+     * @param prefix Beginning of the names.
+     * @throws IOException When sending fails.
+     */
+    private void findUsers(ClientData client, String prefix) throws IOException {
+        if (isAccepted(client)) {
+            send(new UserMatches(prefix, directory.find(prefix, MAX_USER_MATCHES)).toMessage(), client);
+        }
+    }
+
+    /**
+     * Sends a chat message to the members of a room, if the sender is one of them, on all nodes.
+     */
+    private void sendToRoom(ClientData sender, String room, OutboundMessage message) throws IOException {
+        if (rooms.isMember(room, sender)) {
+            if (fanOut(sender, room, message)) {
+                federation.relay(message);
+            }
+        } else if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(String.format("Dropping message of %s to room %s it is not a member of", sender, room));
+        }
+    }
+
+    /**
+     * Hands a client's chat message over to the fan-out scheduler, to be sent to everybody in the chat room or to
+     * the members of a room. When the client has too many messages waiting already, the message is dropped and the
+     * client told it is throttled.
+     *
+     * @param sender  The client.
+     * @param room    Name of the room, {@code null} for everybody.
+     * @param message The message.
+     * @return Whether the message will be sent.
+     * @throws IOException When telling the client fails.
+     */
+    private boolean fanOut(ClientData sender, final String room, final OutboundMessage message) throws IOException {
+        return schedule(sender, new Runnable() {
+            @Override
+            public void run() {
+                if (room == null) {
+                    broadcast(Message.Type.NORMAL, message);
+                } else {
+                    sendToRoom(Message.Type.NORMAL, room, message);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a client's private message to a client of this node after the sender's messages still waiting to be
+     * fanned out, so that the recipient gets them all in the order they were sent.
+     *
+     * @param sender    The client.
+     * @param recipient The recipient.
+     * @param message   The message.
+     * @throws IOException When telling the sender it is throttled fails.
+     */
+    private void sendPrivately(ClientData sender, final ClientData recipient, final OutboundMessage message)
+            throws IOException {
+        schedule(sender, new Runnable() {
+            @Override
+            public void run() {
+                sendQuietly(message, recipient);
+                metrics.sent(Message.Type.NORMAL, 1);
+            }
+        });
+    }
+
+    private boolean schedule(ClientData sender, Runnable fanOut) throws IOException {
+        boolean scheduled = fanOutScheduler.submit(sender, fanOut);
+        if (!scheduled) {
+            metrics.throttled();
+            throttle(sender, BACKLOG_RETRY_MILLIS);
+        }
+        return scheduled;
+    }
+
+    private void throttle(ClientData client, long retryAfterMillis) throws IOException {
+        send(new Message.Builder().type(Message.Type.THROTTLED).text(Long.toString(retryAfterMillis)).build(),
+                client);
+    }
+
+    private void sendToRoom(Message.Type type, String room, OutboundMessage message) {
+        int recipients = 0;
+        for (ClientData member : rooms.getMembers(room)) {
+            sendQuietly(message, member);
+            recipients++;
+        }
+        metrics.broadcast(type, recipients);
+    }
+
+    boolean isAccepted(ClientData client) {
+        return client.getName() != null && clients.get(client.getName()) == client;
+    }
+
+    boolean isPingable(ClientData client) {
+        return pingable.contains(client);
+    }
+
+    /**
+     * Sends {@code Message.Type.LOGIN_SUCCESSFUL} message. If the client has offered a better codec than the one in
+     * use, the acknowledgement names the chosen one and all further messages use it. The same goes for compression,
+     * if it's enabled. It also lists the features that will be used and names the client's session, if it has one;
+     * every message sent after the acknowledgement is recorded in the session.
+     *
+     * @param client   The accepted client.
+     * @param offer    Options from the client's hello message.
+     * @param features Features that will be used.
+     * @param session  Session of the client, {@code null} if it has none.
+     * @param takeOver For a client resuming its session, takes the session over before anything is sent and returns
+     *                 the messages to send right after the acknowledgement, see {@link Connection#resume}; {@code
+     *                 null} otherwise.
+     * @return Whether the acknowledgement was sent; not if the session couldn't be taken over.
+     * @throws IOException When sending fails.
+     */
+    private boolean acknowledgeLogin(ClientData client, Map<String, String> offer, List<String> features,
+                                     Sessions.Session session, Supplier<List<OutboundMessage>> takeOver) throws
+            IOException {
+        MessageCodec codec = Handshake.chooseCodec(offer.get(Handshake.CODEC));
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        if (codec != null && codec != client.getConnection().getCodec()) {
+            options.put(Handshake.CODEC, codec.getName());
+        } else {
+            codec = client.getConnection().getCodec();
+        }
+        boolean deflate = compression && Handshake.hasDeflate(offer);
+        if (deflate) {
+            options.put(Handshake.COMPRESSION, DeflateContext.NAME);
+        }
+        if (!features.isEmpty()) {
+            options.put(Handshake.FEATURES, Handshake.formatFeatures(features));
+        }
+        if (session != null) {
+            options.put(Handshake.SESSION, session.getToken());
+        }
+        Message acknowledgement = new Message.Builder().type(Message.Type.LOGIN_SUCCESSFUL).text(Handshake.format
+                (options)).build();
+        Connection connection = client.getConnection();
+        if (takeOver == null) {
+            connection.sendAndSwitchCodec(acknowledgement, codec, deflate, session != null ? session.getReplay() :
+                    null);
+        } else if (!connection.resume(acknowledgement, codec, deflate, session.getReplay(), takeOver)) {
+            return false;
+        }
+        metrics.sent(Message.Type.LOGIN_SUCCESSFUL, 1);
+        return true;
+    }
+
+    /**
+     * Sends the new client the {@link ChatRoomState} with all clients present, itself included.
+     *
+     * @param newClient The client that has just joined.
+     * @throws IOException When sending fails.
+     */
+    private void sendChatRoomState(ClientData newClient) throws IOException {
+        List<ChatRoomState.Member> members = new ArrayList<ChatRoomState.Member>(clients.size());
+        for (ClientData client : joinOrder) {
+            members.add(new ChatRoomState.Member(client.getName(), client.getJoinedDate()));
+        }
+        send(new ChatRoomState(members).toMessage(), newClient);
+    }
+
+    /**
+     * Sends recent broadcast messages to the new client, in the codec it has chosen. The history is appended to in
+     * the background, so a message broadcast just before may be missing from the replay or arrive twice.
+     *
+     * @param client The accepted client.
+     * @throws IOException When sending fails.
+     */
+    private void replayHistory(ClientData client) throws IOException {
+        List<ByteBuffer> frames = history.recent();
+        for (ByteBuffer frame : frames) {
+            client.getConnection().send(new OutboundMessage(BinaryMessageCodec.INSTANCE, frame));
+        }
+        metrics.sent(Message.Type.NORMAL, frames.size());
+    }
+
+    /**
+     * Broadcasts {@code Message.Type.JOINED} message to all clients except the new one, so that they are aware of
+     * the new client in the chat room. Clients supporting {@link PresenceDelta} get the next one instead.
+     *
+     * @param newClient The client that has just joined.
+     */
+    private void informOthersOfPresence(ClientData newClient) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(String.format("Sending information of %s presence to others ", newClient));
+        }
+        if (presence != null) {
+            presence.joined(newClient.getName(), newClient.getJoinedDate());
+        }
+        sendPresenceChange(newClient, new Message.Builder().from(newClient.getName()).type(Message.Type.JOINED)
+                .build());
+    }
+
+    /**
+     * Broadcasts {@code Message.Type.LEFT} message to all clients not supporting {@link PresenceDelta}, the others
+     * get the next delta.
+     *
+     * @param client The client that has just left.
+     */
+    private void informOthersOfAbsence(ClientData client) {
+        if (presence != null) {
+            presence.left(client.getName(), new Date());
+        }
+        sendPresenceChange(client, new Message.Builder().from(client.getName()).type(Message.Type.LEFT).build());
+    }
+
+    private void sendPresenceChange(ClientData client, Message message) {
+        OutboundMessage change = new OutboundMessage(message);
+        int recipients = 0;
+        for (ClientData otherClient : clients.values()) {
+            if (otherClient != client && !presenceSubscribers.contains(otherClient)) {
+                sendQuietly(change, otherClient);
+                recipients++;
+            }
+        }
+        metrics.broadcast(message.getType(), recipients);
+    }
+
+    /**
+     * Sends the changes collected during the last presence window to the clients supporting {@link PresenceDelta},
+     * all of them in a single message encoded once per codec. A client that has just joined may be told about
+     * changes already included in its chat room state - applying them again changes nothing.
+     */
+    private void sendPresenceDelta() {
+        PresenceDelta delta = presence.drain();
+        if (delta == null) {
+            return;
+        }
+        OutboundMessage message = new OutboundMessage(delta.toMessage());
+        int recipients = 0;
+        for (ClientData client : presenceSubscribers) {
+            sendQuietly(message, client);
+            recipients++;
+        }
+        metrics.broadcast(Message.Type.PRESENCE_DELTA, recipients);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(String.format("Sent %s to %d clients", delta, recipients));
+        }
+    }
+
+    /**
+     * Sends {@code Message.Type.JOINED} messages with other clients' names, so that the new client knows who else is
+     * present in the chat room. Messages order is defined by joined date order. Only for clients that don't support
+     * {@link ChatRoomState}.
+     *
+     * @param newClient The client that has just joined.
+     * @throws IOException When sending fails.
+     */
+    private void informClientOfOthersPresence(ClientData newClient) throws IOException {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Sending information of others presence to " + newClient);
+        }
+        for (ClientData otherClient : joinOrder) {
+            if (otherClient != newClient) {
+                send(new Message.Builder().date(otherClient.getJoinedDate()).type(Message.Type.JOINED).from
+                        (otherClient.getName()).build(), newClient);
+            }
+        }
+    }
+
+    private void send(Message message, ClientData toWhom) throws IOException {
+        toWhom.getConnection().send(message);
+        metrics.sent(message.getType(), 1);
+    }
+
+    /**
+     * Sends a message on behalf of another client, so a failure is only logged - it is the recipient's own engine
+     * thread that notices the broken connection and cleans up.
+     */
+    private void sendQuietly(OutboundMessage message, ClientData toWhom) {
+        try {
+            toWhom.getConnection().send(message);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not send message to " + toWhom, e);
+        }
+    }
+
+    /**
+     * Sends the message to every client in the chat room. The message is encoded once per codec in use and the same
+     * bytes are handed to all the connections.
+     */
+    private void broadcast(Message.Type type, OutboundMessage message) {
+        int recipients = 0;
+        for (ClientData otherClient : clients.values()) {
+            sendQuietly(message, otherClient);
+            recipients++;
+        }
+        metrics.broadcast(type, recipients);
+    }
+
+}
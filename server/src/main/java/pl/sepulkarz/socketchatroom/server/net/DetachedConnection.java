@@ -0,0 +1,141 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.transport.Connection;
+import pl.sepulkarz.socketchatroom.net.transport.OutboundMessage;
+import pl.sepulkarz.socketchatroom.net.transport.ReplayBuffer;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.List;
+
+/**
+ * Stands in for the connection of a client that is gone while its session can still be resumed. Messages sent to
+ * the client are only recorded in the session's replay buffer, to be sent once it comes back. Once the client is
+ * back, they go to its new connection; once closed, sending fails like with any closed connection.
+ */
+class DetachedConnection extends Connection {
+
+    private final ReplayBuffer replay;
+    private final SocketAddress remoteAddress;
+    /**
+     * Guarded by the write lock, like the field below.
+     */
+    private boolean closed;
+    /**
+     * The client's new connection, {@code null} until it's back.
+     */
+    private Connection next;
+
+    /**
+     * @param previous The broken connection.
+     * @param replay   Replay buffer of the session.
+     */
+    DetachedConnection(Connection previous, ReplayBuffer replay) {
+        this.replay = replay;
+        this.remoteAddress = previous.getRemoteAddress();
+        this.codec = previous.getCodec();
+    }
+
+    /**
+     * For a client restored from a snapshot, whose connection was closed by the previous server process.
+     *
+     * @param replay Replay buffer of the session.
+     */
+    DetachedConnection(ReplayBuffer replay) {
+        this.replay = replay;
+        this.remoteAddress = null;
+    }
+
+    @Override
+    public Message receive() {
+        throw new UnsupportedOperationException("Nothing can be read from a detached client");
+    }
+
+    @Override
+    public void send(OutboundMessage message) throws IOException {
+        Connection next;
+        writeLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Connection closed: " + this);
+            }
+            next = this.next;
+            if (next == null) {
+                replay.add(message);
+                return;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        // Not under the lock, as the thread handing over holds the new connection's while it waits for this one's.
+        next.send(message);
+    }
+
+    @Override
+    public void shutdownStreams() {
+        // There are no streams.
+    }
+
+    /**
+     * Stops recording and hands the client over to its new connection, which gets all messages sent from now on. If
+     * the replay buffer no longer has all the messages the client missed, the connection is closed instead.
+     *
+     * @param next     The client's new connection.
+     * @param received Number of messages the client has received.
+     * @param rebase   Whether the messages in the buffer are renumbered to follow those received, see
+     *                 {@link ReplayBuffer#rebase}.
+     * @return Messages the client missed, or {@code null}.
+     */
+    List<OutboundMessage> handOver(Connection next, long received, boolean rebase) {
+        writeLock.lock();
+        try {
+            List<OutboundMessage> missed = rebase ? replay.rebase(received) : replay.since(received);
+            if (missed != null) {
+                this.next = next;
+            } else {
+                closed = true;
+            }
+            return missed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Stops recording. Once this returns, nothing more is added to the replay buffer through this connection.
+     */
+    @Override
+    public void close() {
+        writeLock.lock();
+        try {
+            closed = true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return Always {@code false}, there is nobody to write to.
+     */
+    @Override
+    public boolean isPossibleToWrite() {
+        return false;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    protected void startDeflating() {
+        throw new UnsupportedOperationException("A detached client has no compression");
+    }
+
+    @Override
+    protected void startInflating() {
+        throw new UnsupportedOperationException("A detached client has no compression");
+    }
+
+}
@@ -0,0 +1,192 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends messages to their many recipients on a few worker threads, taking turns between senders. Every sender has a
+ * bounded lane of fan-outs waiting, and a worker runs one fan-out from each lane with any waiting before running the
+ * next one from any of them - so a client flooding the chat room only delays its own messages, while everybody
+ * else's keep going out at the usual pace. A sender's lane belongs to a single worker, so its messages are sent in
+ * order; messages of different senders may reach different recipients in a different order, as they may anyway.
+ * Whatever else has to reach the recipients after a sender's messages - its private messages, the news of it leaving
+ * - goes through its lane too, see {@link #remove(ClientData, Runnable)}.
+ */
+public class FanOutScheduler {
+
+    private final static Logger LOGGER = Logger.getLogger(FanOutScheduler.class.getName());
+
+    /**
+     * Runs every fan-out at once, on the sender's engine thread.
+     */
+    public static final FanOutScheduler DIRECT = new FanOutScheduler(0, 0);
+
+    private final Worker[] workers;
+    private final int laneCapacity;
+    private final Map<ClientData, Lane> lanes = new ConcurrentHashMap<ClientData, Lane>();
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * @param threads      Number of worker threads, 0 to run fan-outs on the sender's thread.
+     * @param laneCapacity Number of fan-outs a single sender can have waiting.
+     */
+    public FanOutScheduler(int threads, int laneCapacity) {
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker();
+        }
+        this.laneCapacity = laneCapacity;
+    }
+
+    public void start() {
+        for (int i = 0; i < workers.length; i++) {
+            Thread thread = new Thread(workers[i], "fan-out-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Schedules a fan-out of a client's message.
+     *
+     * @param sender The client.
+     * @param fanOut Sends the message to its recipients.
+     * @return Whether it was scheduled, {@code false} if the client has too many fan-outs waiting.
+     */
+    boolean submit(ClientData sender, Runnable fanOut) {
+        if (workers.length == 0) {
+            fanOut.run();
+            return true;
+        }
+        Lane lane = lanes.get(sender);
+        if (lane == null) {
+            Lane created = new Lane(workers[(nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length]);
+            lane = lanes.putIfAbsent(sender, created);
+            if (lane == null) {
+                lane = created;
+            }
+        }
+        return lane.offer(fanOut);
+    }
+
+    /**
+     * Forgets a client that has left. Its fan-outs still waiting are run.
+     */
+    void remove(ClientData sender) {
+        lanes.remove(sender);
+    }
+
+    /**
+     * Forgets a client that has left, then runs a task after its fan-outs still waiting, whatever the lane's
+     * capacity.
+     *
+     * @param sender The client.
+     * @param then   Runs last in the client's lane.
+     */
+    void remove(ClientData sender, Runnable then) {
+        Lane lane = lanes.remove(sender);
+        if (lane == null) {
+            then.run();
+        } else {
+            lane.add(then);
+        }
+    }
+
+    /**
+     * @return Number of fan-outs waiting, of all senders.
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    private class Lane {
+
+        private final Worker worker;
+        private final Queue<Runnable> fanOuts = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicInteger size = new AtomicInteger();
+        /**
+         * Whether the lane is in its worker's queue or being run by it.
+         */
+        private final AtomicBoolean ready = new AtomicBoolean();
+
+        private Lane(Worker worker) {
+            this.worker = worker;
+        }
+
+        private boolean offer(Runnable fanOut) {
+            if (size.incrementAndGet() > laneCapacity) {
+                size.decrementAndGet();
+                return false;
+            }
+            enqueue(fanOut);
+            return true;
+        }
+
+        private void add(Runnable fanOut) {
+            size.incrementAndGet();
+            enqueue(fanOut);
+        }
+
+        private void enqueue(Runnable fanOut) {
+            waiting.incrementAndGet();
+            fanOuts.add(fanOut);
+            if (ready.compareAndSet(false, true)) {
+                worker.ready.add(this);
+            }
+        }
+
+    }
+
+    private class Worker implements Runnable {
+
+        /**
+         * Lanes with fan-outs waiting, each taking its turn.
+         */
+        private final BlockingQueue<Lane> ready = new LinkedBlockingQueue<Lane>();
+
+        @Override
+        public void run() {
+            while (true) {
+                Lane lane;
+                try {
+                    lane = ready.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Runnable fanOut = lane.fanOuts.poll();
+                if (fanOut != null) {
+                    try {
+                        fanOut.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.SEVERE, "Fan-out failure", e);
+                    }
+                    lane.size.decrementAndGet();
+                    waiting.decrementAndGet();
+                }
+                if (!lane.fanOuts.isEmpty()) {
+                    // Back of the queue, after the lanes of the other senders.
+                    ready.add(lane);
+                } else {
+                    lane.ready.set(false);
+                    // A fan-out offered in the meantime may have found the lane still ready.
+                    if (!lane.fanOuts.isEmpty() && lane.ready.compareAndSet(false, true)) {
+                        ready.add(lane);
+                    }
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,87 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limits of a single client: one token bucket for messages and one for bytes, a message getting through only if
+ * both have enough tokens. It belongs to the engine thread reading from the client, which checks every message before
+ * handing it to the {@link ChatRoom}, see {@link ChatRoom#admit}.
+ */
+public class FloodControl {
+
+    /**
+     * {@code null} when not limited.
+     */
+    private final TokenBucket messages;
+    private final TokenBucket bytes;
+    /**
+     * Whether the last message was dropped.
+     */
+    private boolean throttling;
+
+    FloodControl(long messagesPerSecond, long messageBurst, long bytesPerSecond, long byteBurst) {
+        this.messages = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, messageBurst) : null;
+        this.bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, byteBurst) : null;
+    }
+
+    /**
+     * Takes tokens for a message, if both buckets have enough.
+     *
+     * @param size Size of the message in bytes.
+     * @return Whether the message is within the limits.
+     */
+    boolean admit(int size) {
+        long now = System.nanoTime();
+        if ((messages != null && !messages.has(1, now)) || (bytes != null && !bytes.has(size, now))) {
+            return false;
+        }
+        if (messages != null) {
+            messages.take(1);
+        }
+        if (bytes != null) {
+            bytes.take(size);
+        }
+        throttling = false;
+        return true;
+    }
+
+    /**
+     * Records that a message was dropped.
+     *
+     * @return Whether it's the first one dropped since a message got through.
+     */
+    boolean startThrottling() {
+        boolean started = !throttling;
+        throttling = true;
+        return started;
+    }
+
+    /**
+     * @param size Size of the dropped message in bytes.
+     * @return Time until a message of that size would get through, as of the last check.
+     */
+    long getRetryAfterMillis(int size) {
+        long nanos = 0;
+        if (messages != null) {
+            nanos = messages.nanosUntil(1);
+        }
+        if (bytes != null) {
+            nanos = Math.max(nanos, bytes.nanosUntil(size));
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nanos) + 1;
+    }
+
+    /**
+     * @return Size of a message received with the text codec, close enough to its size on the wire to be limited.
+     */
+    public static int size(Message message) {
+        return length(message.getFrom()) + length(message.getTo()) + length(message.getText());
+    }
+
+    private static int length(String field) {
+        return field != null ? field.length() : 0;
+    }
+
+}
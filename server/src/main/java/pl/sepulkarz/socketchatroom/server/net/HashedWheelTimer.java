@@ -0,0 +1,149 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs many tasks after approximate delays on a single thread. Tasks are kept in a wheel of buckets, one per tick; a
+ * task due in more than a turn of the wheel waits for the right number of turns in its bucket. Scheduling only adds
+ * the task to a queue and every tick touches only the tasks of a single bucket, so the cost doesn't grow with the
+ * number of tasks waiting - unlike a {@code ScheduledExecutorService}, whose heap of tasks is re-ordered on every
+ * insertion. Tasks run up to a tick late and must be short, as they delay each other.
+ */
+class HashedWheelTimer {
+
+    private final static Logger LOGGER = Logger.getLogger(HashedWheelTimer.class.getName());
+
+    private final long tickNanos;
+    private final Timeout[] wheel;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+    private final Thread worker;
+    /**
+     * Number of ticks elapsed since the start. Worker only.
+     */
+    private long tick;
+
+    /**
+     * @param name       Name of the thread.
+     * @param tickMillis Precision of the timer.
+     * @param wheelSize  Number of buckets; tasks due within a turn of the wheel are run without waiting for turns.
+     */
+    HashedWheelTimer(String name, long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Timeout[wheelSize];
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, name);
+        this.worker.setDaemon(true);
+    }
+
+    void start() {
+        worker.start();
+    }
+
+    /**
+     * Schedules a task. Can be called from any thread, including the timer's own from a task.
+     *
+     * @param task        The task.
+     * @param delayMillis Time after which it runs, at least.
+     * @return Handle to cancel the task with.
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    private void work() {
+        long start = System.nanoTime();
+        while (true) {
+            long deadline = start + (tick + 1) * tickNanos;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            transferScheduled(start);
+            expire((int) (tick % wheel.length));
+            tick++;
+        }
+    }
+
+    /**
+     * Puts newly scheduled tasks into their buckets.
+     */
+    private void transferScheduled(long start) {
+        Timeout entry;
+        while ((entry = scheduled.poll()) != null) {
+            // A task already due goes to the current bucket.
+            long ticks = Math.max(tick, (entry.deadline - start) / tickNanos);
+            entry.rounds = (ticks - tick) / wheel.length;
+            int bucket = (int) (ticks % wheel.length);
+            entry.next = wheel[bucket];
+            wheel[bucket] = entry;
+        }
+    }
+
+    /**
+     * Runs the tasks of the bucket whose turn it is, the others wait for one more turn. Cancelled tasks are dropped.
+     */
+    private void expire(int bucket) {
+        Timeout waiting = null;
+        Timeout entry = wheel[bucket];
+        while (entry != null) {
+            Timeout next = entry.next;
+            Runnable task = entry.task;
+            if (task == null) {
+                // Cancelled.
+            } else if (entry.rounds > 0) {
+                entry.rounds--;
+                entry.next = waiting;
+                waiting = entry;
+            } else {
+                entry.task = null;
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "Timer task failure", e);
+                }
+            }
+            entry = next;
+        }
+        wheel[bucket] = waiting;
+    }
+
+    /**
+     * A scheduled task.
+     */
+    static class Timeout {
+
+        private volatile Runnable task;
+        private final long deadline;
+        private long rounds;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Makes sure the task doesn't run, unless it has started already. The task is let go of at once, while the
+         * handle is dropped by the next turn of its bucket.
+         */
+        void cancel() {
+            task = null;
+        }
+
+    }
+
+}
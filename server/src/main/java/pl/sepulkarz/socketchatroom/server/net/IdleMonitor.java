@@ -0,0 +1,188 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+import pl.sepulkarz.socketchatroom.net.transport.Connection;
+import pl.sepulkarz.socketchatroom.net.transport.OutboundMessage;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds connections whose peer is gone without closing them. A connection nothing has been read from for the idle
+ * timeout is sent a {@code Message.Type.PING}; if nothing, the {@code PONG} included, arrives within the read timeout,
+ * the connection is aborted. Clients that haven't logged in are not pinged, as they can't know about pings yet, but
+ * aborted once the much longer login timeout has passed since they connected - a person may spend a while choosing a
+ * name. Logged in clients that don't support pings are never pinged or aborted.
+ * <p>
+ * Every connection has one task in a shared {@link HashedWheelTimer}, due when the connection would become idle.
+ * Reading only records the time, so a busy connection costs nothing until its task runs, finds it wasn't idle after
+ * all and reschedules itself for the rest of the timeout. The task is cancelled when the connection closes, so that
+ * the timer doesn't hold on to the client until the task would have run.
+ */
+class IdleMonitor {
+
+    private final static Logger LOGGER = Logger.getLogger(IdleMonitor.class.getName());
+
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 1024;
+
+    private final ChatRoom chatRoom;
+    private final long idleNanos;
+    private final long readNanos;
+    private final long loginNanos;
+    private final HashedWheelTimer timer;
+    private final Map<ClientData, Watch> watches = new ConcurrentHashMap<ClientData, Watch>();
+    private final OutboundMessage ping = new OutboundMessage(new Message.Builder().type(Message.Type.PING).build());
+    private final AtomicLong aborted = new AtomicLong();
+
+    /**
+     * @param chatRoom          The chat room of the clients.
+     * @param idleTimeoutMillis Time without reading after which a client is pinged, 0 to disable monitoring.
+     * @param readTimeoutMillis Time a pinged client has to answer.
+     * @param loginTimeoutMillis Time a client has to log in, 0 for no limit.
+     */
+    IdleMonitor(ChatRoom chatRoom, long idleTimeoutMillis, long readTimeoutMillis, long loginTimeoutMillis) {
+        this.chatRoom = chatRoom;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.readNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMillis);
+        this.loginNanos = TimeUnit.MILLISECONDS.toNanos(loginTimeoutMillis);
+        if (idleTimeoutMillis > 0) {
+            timer = new HashedWheelTimer("idle-monitor", TICK_MILLIS, WHEEL_SIZE);
+            timer.start();
+        } else {
+            timer = null;
+        }
+    }
+
+    /**
+     * Starts monitoring a newly opened connection. Monitoring stops by itself once the connection is closed.
+     */
+    void watch(ClientData client) {
+        if (timer != null) {
+            Watch watch = new Watch(client);
+            watches.put(client, watch);
+            watch.reschedule(idleNanos);
+        }
+    }
+
+    /**
+     * Stops monitoring a closed connection.
+     */
+    void unwatch(ClientData client) {
+        Watch watch = watches.remove(client);
+        if (watch != null) {
+            watch.cancel();
+        }
+    }
+
+    boolean isEnabled() {
+        return timer != null;
+    }
+
+    long getAborted() {
+        return aborted.get();
+    }
+
+    /**
+     * Timer task of a single connection.
+     */
+    private class Watch implements Runnable {
+
+        private final ClientData client;
+        private final long connectedNanos = System.nanoTime();
+        /**
+         * Whether the client has been pinged and not answered yet. Timer thread only.
+         */
+        private boolean pinged;
+        private long pingedNanos;
+        private volatile HashedWheelTimer.Timeout timeout;
+        /**
+         * Whether the connection has closed. The task may still run once more, if it is running while cancelled, and
+         * find the connection closed.
+         */
+        private volatile boolean cancelled;
+
+        private Watch(ClientData client) {
+            this.client = client;
+        }
+
+        @Override
+        public void run() {
+            Connection connection = client.getConnection();
+            if (!connection.isPossibleToWrite()) {
+                watches.remove(client, this);
+                return;
+            }
+            long now = System.nanoTime();
+            long lastRead = connection.getLastReadNanos();
+            if (pinged) {
+                if (lastRead - pingedNanos < 0) {
+                    abort("No answer to ping");
+                    return;
+                }
+                pinged = false;
+            }
+            if (now - lastRead < idleNanos) {
+                reschedule(lastRead + idleNanos - now);
+            } else if (!chatRoom.isAccepted(client)) {
+                long waiting = now - connectedNanos;
+                if (loginNanos > 0 && waiting >= loginNanos) {
+                    abort("Not logged in");
+                } else {
+                    // Look again after the idle timeout, as the client may log in and stop talking meanwhile.
+                    reschedule(loginNanos > 0 ? Math.min(idleNanos, loginNanos - waiting) : idleNanos);
+                }
+            } else if (!chatRoom.isPingable(client)) {
+                reschedule(idleNanos);
+            } else {
+                try {
+                    connection.send(ping);
+                } catch (IOException e) {
+                    // The engine cleans up after a failed send.
+                    return;
+                }
+                pinged = true;
+                pingedNanos = now;
+                chatRoom.getMetrics().sent(Message.Type.PING, 1);
+                reschedule(readNanos);
+            }
+        }
+
+        private void reschedule(long delayNanos) {
+            if (!cancelled) {
+                timeout = timer.schedule(this, Math.max(0, TimeUnit.NANOSECONDS.toMillis(delayNanos)));
+                // Cancelled while being scheduled, possibly before there was anything to cancel.
+                if (cancelled) {
+                    timeout.cancel();
+                }
+            }
+        }
+
+        private void cancel() {
+            cancelled = true;
+            HashedWheelTimer.Timeout timeout = this.timeout;
+            // Not scheduled yet if the connection closed right after being watched.
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+
+        private void abort(String reason) {
+            LOGGER.info(String.format("%s, aborting %s", reason, client));
+            aborted.incrementAndGet();
+            try {
+                client.getConnection().abort();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not abort " + client, e);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,60 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import pl.sepulkarz.socketchatroom.net.data.PresenceDelta;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects clients joining and leaving the chat room until the next {@link #drain()}, keeping only the last change
+ * of every name. A join and a leave of the same name cancel out, as the recipients of the delta haven't been told
+ * about the first one yet - a client that joins and leaves quickly (or reconnects) isn't mentioned at all.
+ */
+class PresenceAggregator {
+
+    private Map<String, PresenceDelta.Change> pending = new LinkedHashMap<String, PresenceDelta.Change>();
+
+    private long cancelled;
+
+    synchronized void joined(String name, Date date) {
+        change(new PresenceDelta.Change(name, date, true));
+    }
+
+    synchronized void left(String name, Date date) {
+        change(new PresenceDelta.Change(name, date, false));
+    }
+
+    private void change(PresenceDelta.Change change) {
+        PresenceDelta.Change previous = pending.remove(change.getName());
+        if (previous == null) {
+            pending.put(change.getName(), change);
+        } else if (previous.isJoined() == change.isJoined()) {
+            // Can't happen to a single client, but keep the newer one just in case.
+            pending.put(change.getName(), change);
+        } else {
+            cancelled += 2;
+        }
+    }
+
+    /**
+     * @return Changes collected since the last call, {@code null} if there were none.
+     */
+    synchronized PresenceDelta drain() {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        PresenceDelta delta = new PresenceDelta(new ArrayList<PresenceDelta.Change>(pending.values()));
+        pending = new LinkedHashMap<String, PresenceDelta.Change>();
+        return delta;
+    }
+
+    /**
+     * @return Number of changes dropped because they cancelled out.
+     */
+    synchronized long getCancelled() {
+        return cancelled;
+    }
+
+}
@@ -0,0 +1,35 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+/**
+ * Rate limits every client of the chat room gets, as a {@link FloodControl} of its own.
+ */
+public class RateLimits {
+
+    /**
+     * Clients can send as fast as they like.
+     */
+    public static final RateLimits NONE = new RateLimits(0, 0, 0, 0);
+
+    private final long messagesPerSecond;
+    private final long messageBurst;
+    private final long bytesPerSecond;
+    private final long byteBurst;
+
+    /**
+     * @param messagesPerSecond Average number of messages a client can send per second, 0 for no limit.
+     * @param messageBurst      Number of messages a client can send at once after having been quiet.
+     * @param bytesPerSecond    Average number of bytes a client can send per second, 0 for no limit.
+     * @param byteBurst         Number of bytes a client can send at once after having been quiet.
+     */
+    public RateLimits(long messagesPerSecond, long messageBurst, long bytesPerSecond, long byteBurst) {
+        this.messagesPerSecond = messagesPerSecond;
+        this.messageBurst = Math.max(messageBurst, 1);
+        this.bytesPerSecond = bytesPerSecond;
+        this.byteBurst = Math.max(byteBurst, 1);
+    }
+
+    public FloodControl newFloodControl() {
+        return new FloodControl(messagesPerSecond, messageBurst, bytesPerSecond, byteBurst);
+    }
+
+}
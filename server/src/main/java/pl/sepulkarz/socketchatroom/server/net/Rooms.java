@@ -0,0 +1,114 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of rooms and their members. A room exists while it has members: it is created by the first client joining
+ * it and removed when the last one parts. Reading members takes no locks, so sending to a room costs as much as the
+ * number of its members; joining and parting lock only the room concerned.
+ */
+public class Rooms {
+
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+
+    /**
+     * Adds the client to the room, creating the room if needed.
+     *
+     * @return {@code false} if the client was already a member.
+     */
+    public boolean join(String name, ClientData client) {
+        while (true) {
+            Room room = rooms.get(name);
+            if (room == null) {
+                Room newRoom = new Room();
+                room = rooms.putIfAbsent(name, newRoom);
+                if (room == null) {
+                    room = newRoom;
+                }
+            }
+            synchronized (room) {
+                // The last member may have parted in the meantime, taking the room away.
+                if (!room.removed) {
+                    boolean added = room.members.add(client);
+                    client.getRooms().add(name);
+                    return added;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the client from the room, removing the room if it was the last member.
+     *
+     * @return {@code false} if the client wasn't a member.
+     */
+    public boolean part(String name, ClientData client) {
+        Room room = rooms.get(name);
+        if (room == null) {
+            return false;
+        }
+        synchronized (room) {
+            client.getRooms().remove(name);
+            if (!room.members.remove(client)) {
+                return false;
+            }
+            if (room.members.isEmpty()) {
+                room.removed = true;
+                rooms.remove(name, room);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Moves a client's memberships over to another client, taking its place in every room without the room being
+     * removed in between.
+     *
+     * @param from The client leaving its rooms.
+     * @param to   The client joining them.
+     */
+    public void transfer(ClientData from, ClientData to) {
+        for (String name : from.getRooms()) {
+            join(name, to);
+            part(name, from);
+        }
+    }
+
+    /**
+     * @return Live view of the members of the room, empty if there is no such room.
+     */
+    public Collection<ClientData> getMembers(String name) {
+        Room room = rooms.get(name);
+        return room != null ? Collections.unmodifiableSet(room.members) : Collections.<ClientData>emptySet();
+    }
+
+    public boolean isMember(String name, ClientData client) {
+        Room room = rooms.get(name);
+        return room != null && room.members.contains(client);
+    }
+
+    /**
+     * @return Number of rooms.
+     */
+    public int size() {
+        return rooms.size();
+    }
+
+    private static class Room {
+
+        private final Set<ClientData> members = Collections.newSetFromMap(new ConcurrentHashMap<ClientData,
+                Boolean>());
+        /**
+         * Set, under the room's lock, when the last member has parted. Clients can't join a removed room.
+         */
+        private boolean removed;
+
+    }
+
+}
@@ -0,0 +1,305 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+import pl.sepulkarz.socketchatroom.net.transport.Connection;
+import pl.sepulkarz.socketchatroom.net.transport.OutboundMessage;
+import pl.sepulkarz.socketchatroom.net.transport.ReplayBuffer;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resumable sessions of clients supporting {@code Handshake.FEATURE_RESUME}. A session records the last messages
+ * sent to its client. When the client's connection breaks, the client stays in the chat room for the resume window,
+ * messages for it going only to the session's replay buffer; if it comes back on a new connection in time, it is
+ * sent the messages it missed and carries on as if nothing happened. Otherwise it leaves once the window is over.
+ * <p>
+ * Counting messages relies on none being dropped, so the outbound queues should disconnect slow consumers rather
+ * than drop their messages.
+ * <p>
+ * Sessions can also be restored from a {@link Snapshots snapshot} written by the previous server process. Such a
+ * session starts out detached, and as nobody knows how many messages its client received before the restart, its
+ * replay buffer is renumbered to follow them when the client comes back.
+ */
+class Sessions {
+
+    private final static Logger LOGGER = Logger.getLogger(Sessions.class.getName());
+
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512;
+
+    private final ChatRoom chatRoom;
+    private final long resumeWindowMillis;
+    private final int replayMessages;
+    private final HashedWheelTimer timer;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentMap<String, Session> byToken = new ConcurrentHashMap<String, Session>();
+    private final ConcurrentMap<ClientData, Session> byClient = new ConcurrentHashMap<ClientData, Session>();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong restored = new AtomicLong();
+
+    /**
+     * @param chatRoom           The chat room of the clients.
+     * @param resumeWindowMillis How long a client that is gone can come back, 0 to disable sessions.
+     * @param replayMessages     Number of messages a session keeps for its client.
+     */
+    Sessions(ChatRoom chatRoom, long resumeWindowMillis, int replayMessages) {
+        this.chatRoom = chatRoom;
+        this.resumeWindowMillis = resumeWindowMillis;
+        this.replayMessages = replayMessages;
+        if (resumeWindowMillis > 0) {
+            timer = new HashedWheelTimer("sessions", TICK_MILLIS, WHEEL_SIZE);
+            timer.start();
+        } else {
+            timer = null;
+        }
+    }
+
+    boolean isEnabled() {
+        return timer != null;
+    }
+
+    /**
+     * Opens a session of a client that has just been accepted.
+     */
+    Session open(ClientData client) {
+        Session session = new Session(Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()),
+                new ReplayBuffer(replayMessages), client);
+        byToken.put(session.token, session);
+        byClient.put(client, session);
+        return session;
+    }
+
+    Session get(String token) {
+        return byToken.get(token);
+    }
+
+    /**
+     * Restores the session of a client of the previous server process, waiting for the client to come back for the
+     * resume window.
+     *
+     * @param token  Token of the session.
+     * @param client The client, given a detached connection.
+     */
+    void restore(String token, ClientData client) {
+        Session session = new Session(token, new ReplayBuffer(replayMessages), client);
+        DetachedConnection detached = new DetachedConnection(session.replay);
+        client.setConnection(detached);
+        session.detached = detached;
+        session.restored = true;
+        byToken.put(token, session);
+        byClient.put(client, session);
+        restored.incrementAndGet();
+        timer.schedule(new Expiry(session, detached), resumeWindowMillis);
+    }
+
+    /**
+     * Ends the session of a client leaving for good.
+     */
+    void close(ClientData client) {
+        Session session = byClient.remove(client);
+        if (session != null) {
+            byToken.remove(session.token);
+        }
+    }
+
+    /**
+     * Keeps a client whose connection has broken in the chat room, if it has a session, until it comes back or the
+     * resume window is over.
+     *
+     * @return Whether the client stays.
+     */
+    boolean detach(ClientData client) {
+        Session session = byClient.get(client);
+        if (session == null) {
+            return false;
+        }
+        DetachedConnection detached;
+        synchronized (session) {
+            if (session.client != client) {
+                return false;
+            }
+            if (session.detached != null) {
+                // Being taken over by the client coming back.
+                return true;
+            }
+            detached = new DetachedConnection(client.getConnection(), session.replay);
+            client.setConnection(detached);
+            session.detached = detached;
+        }
+        LOGGER.info(String.format("Keeping the session of %s for %d ms", client, resumeWindowMillis));
+        timer.schedule(new Expiry(session, detached), resumeWindowMillis);
+        return true;
+    }
+
+    /**
+     * Takes a session over for its client coming back on a new connection. If the client's old connection still
+     * seems alive, it is aborted. Messages sent to the client from now on go to the new connection, even if they are
+     * sent to its previous self; the new connection should hold them back until it has sent the missed ones, see
+     * {@link Connection#resume}.
+     *
+     * @param session    The session.
+     * @param received   Number of messages the client has received.
+     * @param connection The client's new connection.
+     * @return Messages the client has missed or {@code null} if the session can't be resumed; it is then ended.
+     */
+    List<OutboundMessage> takeOver(Session session, long received, Connection connection) {
+        Connection previous;
+        boolean wasDetached;
+        List<OutboundMessage> missed;
+        synchronized (session) {
+            if (session.resuming || byToken.get(session.token) != session) {
+                return null;
+            }
+            previous = session.client.getConnection();
+            wasDetached = session.detached != null;
+            if (!wasDetached) {
+                session.detached = new DetachedConnection(previous, session.replay);
+                session.client.setConnection(session.detached);
+            }
+            missed = session.detached.handOver(connection, received, session.restored);
+            if (missed != null) {
+                session.resuming = true;
+            } else {
+                byToken.remove(session.token);
+                byClient.remove(session.client);
+            }
+        }
+        if (!wasDetached) {
+            // Its engine notices and cleans up.
+            try {
+                previous.abort();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not abort " + previous, e);
+            }
+        }
+        if (missed == null) {
+            LOGGER.info(String.format("Can't resume the session of %s from message %d", session.client, received));
+            if (wasDetached) {
+                chatRoom.depart(session.client);
+            }
+        }
+        return missed;
+    }
+
+    /**
+     * Hands a session taken over to the client on the new connection, once it has taken its previous self's place.
+     */
+    void moved(Session session, ClientData client) {
+        synchronized (session) {
+            byClient.remove(session.client);
+            session.client = client;
+            session.detached = null;
+            session.resuming = false;
+            session.restored = false;
+            byClient.put(client, session);
+        }
+        resumed.incrementAndGet();
+    }
+
+    /**
+     * @return Live view of all the sessions.
+     */
+    Collection<Session> getAll() {
+        return byToken.values();
+    }
+
+    /**
+     * @return Number of sessions, of clients connected or not.
+     */
+    int size() {
+        return byToken.size();
+    }
+
+    /**
+     * @return Number of sessions resumed so far.
+     */
+    long getResumed() {
+        return resumed.get();
+    }
+
+    /**
+     * @return Number of sessions restored from a snapshot.
+     */
+    long getRestored() {
+        return restored.get();
+    }
+
+    static class Session {
+
+        private final String token;
+        private final ReplayBuffer replay;
+        /**
+         * The client the session belongs to. Guarded by the session's lock, like the fields below.
+         */
+        private ClientData client;
+        /**
+         * Stands in for the client's connection while it is gone, {@code null} while it's connected.
+         */
+        private DetachedConnection detached;
+        /**
+         * Whether the client is coming back right now.
+         */
+        private boolean resuming;
+        /**
+         * Whether the session was restored from a snapshot and its client hasn't come back yet.
+         */
+        private boolean restored;
+
+        private Session(String token, ReplayBuffer replay, ClientData client) {
+            this.token = token;
+            this.replay = replay;
+            this.client = client;
+        }
+
+        String getToken() {
+            return token;
+        }
+
+        ReplayBuffer getReplay() {
+            return replay;
+        }
+
+        synchronized ClientData getClient() {
+            return client;
+        }
+
+    }
+
+    /**
+     * Ends a session whose client hasn't come back in time.
+     */
+    private class Expiry implements Runnable {
+
+        private final Session session;
+        private final DetachedConnection detached;
+
+        private Expiry(Session session, DetachedConnection detached) {
+            this.session = session;
+            this.detached = detached;
+        }
+
+        @Override
+        public void run() {
+            synchronized (session) {
+                if (session.detached != detached || session.resuming) {
+                    return;
+                }
+                byToken.remove(session.token);
+                byClient.remove(session.client);
+                detached.close();
+            }
+            LOGGER.info("Session of " + session.client + " expired");
+            chatRoom.depart(session.client);
+        }
+
+    }
+
+}
@@ -0,0 +1,251 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodic snapshots of the resumable sessions of a {@link ChatRoom}, so that a restarted server can take its clients
+ * back without them logging in again. A background thread writes the snapshot to a new file every interval and
+ * replaces the old one in a single step; the last one is written on shutdown. On startup the file is mapped into
+ * memory and the sessions are restored one after another, detached, until the startup budget runs out - clients
+ * whose sessions didn't make it log in again as usual. The file is:
+ * <pre>
+ * int    {@link #MAGIC}
+ * int    {@link #VERSION}
+ * long   time the snapshot was written, in milliseconds since the epoch
+ * int    number of sessions, each:
+ *   string token
+ *   string name
+ *   long   time the client joined, in milliseconds since the epoch
+ *   int    number of rooms, each a string with the room's name
+ * </pre>
+ * where a string is an {@code int} length followed by that many bytes of UTF-8. Messages are not in the snapshot:
+ * broadcasts are already kept by the history, and the messages the clients missed while the server was down were
+ * never sent.
+ */
+public class Snapshots {
+
+    private final static Logger LOGGER = Logger.getLogger(Snapshots.class.getName());
+
+    private static final int MAGIC = 0x53435253;
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes and restores nothing.
+     */
+    public static final Snapshots DISABLED = new Snapshots(null, 0, 0, 0);
+
+    private final File file;
+    private final long intervalMillis;
+    private final long maxAgeMillis;
+    private final long startupBudgetMillis;
+    private ScheduledExecutorService timer;
+    private ChatRoom chatRoom;
+
+    /**
+     * @param file                Where the snapshot is kept; a file with the same name ending in {@code .tmp} is
+     *                            written first.
+     * @param intervalMillis      Time between snapshots.
+     * @param maxAgeMillis        Age of a snapshot after which its sessions are not restored, as their clients have
+     *                            stopped trying to come back - the session resume window.
+     * @param startupBudgetMillis Time restoring may take, after which the remaining sessions are skipped.
+     */
+    public Snapshots(File file, long intervalMillis, long maxAgeMillis, long startupBudgetMillis) {
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+        this.maxAgeMillis = maxAgeMillis;
+        this.startupBudgetMillis = startupBudgetMillis;
+    }
+
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * Restores the sessions from the last snapshot, if there is a recent enough one. To be called before the chat
+     * room is started.
+     *
+     * @param chatRoom The chat room to restore the sessions to.
+     * @return Number of sessions restored.
+     */
+    public int restore(ChatRoom chatRoom) {
+        if (!isEnabled() || !file.isFile()) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(startupBudgetMillis);
+        int restored = 0;
+        int sessions = 0;
+        try {
+            ByteBuffer buffer = map();
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                LOGGER.warning("Not a snapshot of this version: " + file);
+                return 0;
+            }
+            long age = System.currentTimeMillis() - buffer.getLong();
+            if (age > maxAgeMillis) {
+                LOGGER.info(String.format("Snapshot %s is %d ms old, not restoring it", file, age));
+                return 0;
+            }
+            sessions = buffer.getInt();
+            for (int i = 0; i < sessions && System.nanoTime() < deadline; i++) {
+                String token = getString(buffer);
+                String name = getString(buffer);
+                Date joinedDate = new Date(buffer.getLong());
+                int roomCount = buffer.getInt();
+                List<String> rooms = new ArrayList<String>(roomCount);
+                for (int j = 0; j < roomCount; j++) {
+                    rooms.add(getString(buffer));
+                }
+                if (chatRoom.restore(token, name, joinedDate, rooms)) {
+                    restored++;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read snapshot " + file, e);
+        } catch (BufferUnderflowException e) {
+            LOGGER.log(Level.WARNING, "Snapshot " + file + " is cut short", e);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Snapshot " + file + " is corrupt", e);
+        }
+        LOGGER.info(String.format("Restored %d of %d sessions from %s in %d ms", restored, sessions, file,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        return restored;
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the channel is closed.
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("String of " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Starts writing snapshots of the chat room's sessions in the background.
+     */
+    public void start(ChatRoom chatRoom) {
+        if (!isEnabled()) {
+            return;
+        }
+        this.chatRoom = chatRoom;
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "snapshots");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background thread and writes the last snapshot.
+     */
+    public void close() {
+        if (timer == null) {
+            return;
+        }
+        timer.shutdown();
+        try {
+            timer.awaitTermination(intervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        write();
+    }
+
+    private void write() {
+        long start = System.nanoTime();
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            ByteBuffer buffer = encode();
+            RandomAccessFile randomAccessFile = new RandomAccessFile(temporary, "rw");
+            try {
+                FileChannel channel = randomAccessFile.getChannel();
+                channel.truncate(0);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } finally {
+                randomAccessFile.close();
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write snapshot " + file, e);
+        }
+        chatRoom.getMetrics().snapshotWritten(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    private ByteBuffer encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int sessions = 0;
+        for (Sessions.Session session : chatRoom.getOpenSessions()) {
+            ClientData client = session.getClient();
+            List<String> rooms = new ArrayList<String>(client.getRooms());
+            putString(out, session.getToken());
+            putString(out, client.getName());
+            out.writeLong(client.getJoinedDate().getTime());
+            out.writeInt(rooms.size());
+            for (String room : rooms) {
+                putString(out, room);
+            }
+            sessions++;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 8 + 4 + bytes.size());
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putInt(sessions);
+        buffer.put(bytes.toByteArray());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void putString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+}
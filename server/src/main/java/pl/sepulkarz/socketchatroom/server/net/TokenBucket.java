@@ -0,0 +1,55 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allows an average rate of something, with bursts up to the bucket's capacity. Tokens are added continuously as time
+ * passes - lazily, whenever the bucket is checked - so an idle bucket costs nothing. Not thread-safe, it belongs to
+ * the engine thread serving a single client.
+ */
+class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long refilledNanos;
+
+    /**
+     * @param perSecond Rate of tokens added.
+     * @param capacity  Maximum number of tokens, i.e. the longest burst. The bucket starts full.
+     */
+    TokenBucket(long perSecond, long capacity) {
+        this.tokensPerNano = (double) perSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.refilledNanos = System.nanoTime();
+    }
+
+    /**
+     * @param amount Number of tokens needed. More than the capacity counts as the capacity, so that anything can get
+     *               through a full bucket.
+     * @param now    Current {@code System.nanoTime()}.
+     * @return Whether there are enough tokens.
+     */
+    boolean has(long amount, long now) {
+        tokens = Math.min(capacity, tokens + (now - refilledNanos) * tokensPerNano);
+        refilledNanos = now;
+        return tokens >= Math.min(amount, capacity);
+    }
+
+    /**
+     * Takes tokens known to be there, see {@link #has}.
+     */
+    void take(long amount) {
+        tokens -= Math.min(amount, capacity);
+    }
+
+    /**
+     * @return Time until there will be enough tokens, as of the last check.
+     */
+    long nanosUntil(long amount) {
+        double missing = Math.min(amount, capacity) - tokens;
+        return missing > 0 ? (long) Math.ceil(missing / tokensPerNano) : 0;
+    }
+
+}
@@ -0,0 +1,83 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Everybody in the chat room by name, clients of the other nodes of the federation included. Names are unique by
+ * their key - the name in Unicode compatibility form (NFKC), lower-cased - so "Bob", "bob" and a full-width "bob"
+ * can't be in the chat room at the same time. Registering a name is a single atomic step, so of two clients logging
+ * in with the same name at once only one gets it. The keys are kept sorted, which makes looking up the names starting
+ * with a prefix cost as much as the number of matches, however many users there are.
+ */
+public class UserDirectory {
+
+    private final ConcurrentNavigableMap<String, ClientData> users = new ConcurrentSkipListMap<String, ClientData>();
+
+    /**
+     * @return The key of the name, equal for names that differ only in case or Unicode form.
+     */
+    public static String key(String name) {
+        return Normalizer.normalize(name, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Registers the client under a name. The client should be given the name only once it is registered, and keep it
+     * until it is removed.
+     *
+     * @return {@code false} if the name, or one with the same key, is taken.
+     */
+    public boolean register(String name, ClientData client) {
+        return users.putIfAbsent(key(name), client) == null;
+    }
+
+    /**
+     * Frees the client's name, if it is registered under it.
+     */
+    public void remove(ClientData client) {
+        users.remove(key(client.getName()), client);
+    }
+
+    /**
+     * Registers a client under the name of another one, e.g. the same user coming back on a new connection.
+     */
+    public void replace(ClientData previous, ClientData client) {
+        users.replace(key(previous.getName()), previous, client);
+    }
+
+    /**
+     * @param prefix Beginning of the names, in any case or Unicode form.
+     * @param limit  Maximum number of names.
+     * @return Names starting with the prefix, in the order of their keys.
+     */
+    public List<String> find(String prefix, int limit) {
+        String from = key(prefix);
+        List<String> names = new ArrayList<String>(Math.min(limit, 16));
+        for (Map.Entry<String, ClientData> user : users.tailMap(from).entrySet()) {
+            if (names.size() == limit || !user.getKey().startsWith(from)) {
+                break;
+            }
+            String name = user.getValue().getName();
+            // Not given its name yet, so not quite in the chat room.
+            if (name != null) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return Number of names registered.
+     */
+    public int size() {
+        return users.size();
+    }
+
+}
@@ -0,0 +1,347 @@
+package pl.sepulkarz.socketchatroom.server.nio;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.transport.BinaryMessageCodec;
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+import pl.sepulkarz.socketchatroom.net.transport.Connection;
+import pl.sepulkarz.socketchatroom.net.transport.MessageView;
+import pl.sepulkarz.socketchatroom.net.transport.OutboundMessage;
+import pl.sepulkarz.socketchatroom.net.transport.OutboundQueue;
+import pl.sepulkarz.socketchatroom.server.net.FloodControl;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Connection over a non-blocking channel owned by an {@link EventLoop}. Sending only adds the encoded message to the
+ * {@link OutboundQueue}, so it never blocks and may be called from any thread; the bytes are written by the event
+ * loop when the channel is ready, all the messages waiting with a single gathering write (or, with compression, as a
+ * single compressed block). Reading is driven by the
+ * event loop as well.
+ */
+public class ChannelConnection extends Connection {
+
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final SocketAddress remoteAddress;
+    private final OutboundQueue outbound;
+    private final FloodControl floodControl;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+    /**
+     * Set when the outbound queue overflows and the policy says to disconnect; the event loop then does so.
+     */
+    private volatile boolean overflowed;
+    /**
+     * Set by {@link #abort()}; the event loop then disconnects.
+     */
+    private volatile boolean aborted;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    /**
+     * Messages being written, already taken from the queue, so they can't be dropped half-written. Those before
+     * {@code writingFrom} have been written completely.
+     */
+    private final ByteBuffer[] writing = new ByteBuffer[OutboundQueue.MAX_BATCH_MESSAGES];
+    private int writingFrom;
+    private int writingCount;
+    /**
+     * Compressed messages being written, instead of {@code writing}.
+     */
+    private ByteBuffer writingCompressed;
+    /**
+     * Whether messages are compressed when written. Event loop thread only.
+     */
+    private boolean deflating;
+    /**
+     * Buffer for compressed bytes read, allocated when decompression starts.
+     */
+    private ByteBuffer compressedInput;
+    /**
+     * Set while handling of a message waits for a future, so nothing else is read. Event loop thread only.
+     */
+    private boolean suspended;
+    private SelectionKey key;
+    /**
+     * The client served. The connection stays its own even if the client's connection is replaced, e.g. while its
+     * session waits for it to come back.
+     */
+    private ClientData client;
+
+    ChannelConnection(SocketChannel channel, EventLoop eventLoop, OutboundQueue outbound, FloodControl floodControl)
+            throws IOException {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.outbound = outbound;
+        this.floodControl = floodControl;
+        this.remoteAddress = channel.getRemoteAddress();
+        // The read buffer is kept ready to be read from.
+        this.readBuffer.limit(0);
+    }
+
+    /**
+     * Not supported - the event loop reads from the channel when it is ready and calls {@link #poll()}.
+     */
+    @Override
+    public Message receive() {
+        throw new UnsupportedOperationException("Reading is driven by the event loop");
+    }
+
+    @Override
+    public void send(OutboundMessage message) throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed: " + this);
+        }
+        writeLock.lock();
+        try {
+            ByteBuffer encoded = message.encode(codec);
+            if (deflateAfterNext) {
+                deflateAfterNext = false;
+                outbound.setBarrier(encoded);
+            }
+            if (!outbound.offer(encoded)) {
+                overflowed = true;
+            } else {
+                recordSent(message);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.scheduleFlush(this);
+        }
+        if (overflowed) {
+            throw new IOException("Disconnecting slow consumer " + this);
+        }
+    }
+
+    /**
+     * Doesn't block the event loop: reading from the channel stops until the future completes, then the task is run
+     * by the event loop, followed by the messages read in the meantime.
+     */
+    @Override
+    public void resumeWhenDone(CompletableFuture<?> future, final Runnable task) {
+        if (future.isDone()) {
+            task.run();
+            return;
+        }
+        suspended = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        future.whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object result, Throwable failure) {
+                eventLoop.scheduleResumption(ChannelConnection.this, task);
+            }
+        });
+    }
+
+    @Override
+    protected void startDeflating() {
+        throw new UnsupportedOperationException("Compression can only start after a message sent from the queue");
+    }
+
+    @Override
+    protected void startInflating() throws IOException {
+        compressedInput = ByteBuffer.allocate(INITIAL_BUFFER_SIZE * 8);
+        readBuffer = inflateRemaining(readBuffer);
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    @Override
+    public void shutdownStreams() throws IOException {
+        channel.shutdownInput();
+        channel.shutdownOutput();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        outbound.clear();
+        Arrays.fill(writing, null);
+        writingFrom = writingCount = 0;
+        writingCompressed = null;
+        if (key != null) {
+            key.cancel();
+        }
+        channel.close();
+    }
+
+    /**
+     * Only the event loop may close the channel, so that it also cleans up; it is asked to, like for a flush.
+     */
+    @Override
+    public void abort() {
+        aborted = true;
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.scheduleFlush(this);
+        }
+    }
+
+    @Override
+    public boolean isPossibleToWrite() {
+        return !closed;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    void attach(SelectionKey key, ClientData client) {
+        this.key = key;
+        this.client = client;
+    }
+
+    SelectionKey key() {
+        return key;
+    }
+
+    ClientData client() {
+        return client;
+    }
+
+    /**
+     * @return Rate limits of the client, checked by the event loop before handling its messages.
+     */
+    FloodControl getFloodControl() {
+        return floodControl;
+    }
+
+    boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Reads from the channel again after {@link #resumeWhenDone}. Event loop thread only.
+     */
+    void resume() {
+        suspended = false;
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Reads whatever the channel has available. Event loop thread only.
+     *
+     * @return {@code false} when the peer has closed the connection.
+     * @throws IOException When reading fails.
+     */
+    boolean fill() throws IOException {
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining()) {
+            readBuffer = enlarge(readBuffer);
+        }
+        int read;
+        if (compressedInput == null) {
+            read = channel.read(readBuffer);
+        } else {
+            compressedInput.clear();
+            read = channel.read(compressedInput);
+            if (read > 0) {
+                readBuffer = deflate.inflate(compressedInput.array(), 0, read, readBuffer);
+            }
+        }
+        if (read > 0) {
+            markRead();
+        }
+        readBuffer.flip();
+        return read >= 0;
+    }
+
+    /**
+     * Reconstructs the next message from the bytes read so far. Event loop thread only.
+     *
+     * @return The message or {@code null} if no complete message has arrived yet.
+     * @throws ParseException When the bytes do not form a valid message.
+     */
+    Message poll() throws ParseException {
+        return codec.decode(readBuffer);
+    }
+
+    /**
+     * Locates the next message in the bytes read so far, without decoding it. Only possible when the binary codec is
+     * in use. Event loop thread only.
+     *
+     * @param view The view, valid until the next call to {@link #fill()}.
+     * @return {@code false} if no complete message has arrived yet.
+     * @throws ParseException When the bytes do not form a valid frame.
+     */
+    boolean poll(MessageView view) throws ParseException {
+        return BinaryMessageCodec.INSTANCE.decode(readBuffer, view);
+    }
+
+    /**
+     * Writes as much of the outbound queue as the channel accepts. If the socket buffer fills up, write readiness is
+     * awaited instead. Event loop thread only.
+     *
+     * @throws IOException When writing fails or the outbound queue has overflowed.
+     */
+    void flush() throws IOException {
+        // Reset first, so messages enqueued from now on schedule another flush.
+        flushScheduled.set(false);
+        if (closed) {
+            return;
+        }
+        if (overflowed) {
+            throw new IOException("Outbound queue overflow of " + this);
+        }
+        if (aborted) {
+            throw new IOException("Connection aborted: " + this);
+        }
+        if (writingFrom == writingCount && writingCompressed == null) {
+            takeBatch();
+        }
+        while (writingFrom < writingCount || writingCompressed != null) {
+            if (writingCompressed != null) {
+                channel.write(writingCompressed);
+                if (writingCompressed.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writingCompressed = null;
+            } else {
+                channel.write(writing, writingFrom, writingCount - writingFrom);
+                while (writingFrom < writingCount && !writing[writingFrom].hasRemaining()) {
+                    writing[writingFrom++] = null;
+                }
+                if (writingFrom < writingCount) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            takeBatch();
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Takes the next batch from the outbound queue, compressing it if compression has started. Event loop thread
+     * only.
+     */
+    private void takeBatch() {
+        writingFrom = 0;
+        writingCount = outbound.poll(writing);
+        if (deflating && writingCount > 0) {
+            // The compressed bytes are only valid until the next batch is compressed, which is after they're written.
+            writingCompressed = deflate.deflate(writing, 0, writingCount);
+            Arrays.fill(writing, 0, writingCount, null);
+            writingCount = 0;
+        }
+        if (outbound.isBarrierReached()) {
+            deflating = true;
+        }
+    }
+
+}
@@ -0,0 +1,254 @@
+package pl.sepulkarz.socketchatroom.server.nio;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.transport.BinaryMessageCodec;
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+import pl.sepulkarz.socketchatroom.net.transport.MessageView;
+import pl.sepulkarz.socketchatroom.server.ServerConfig;
+import pl.sepulkarz.socketchatroom.server.net.AllocationMeter;
+import pl.sepulkarz.socketchatroom.server.net.ChatRoom;
+import pl.sepulkarz.socketchatroom.server.net.FloodControl;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single thread multiplexing many client channels with a {@code Selector}. All reads, writes and message handling
+ * of its channels happen on this thread; other threads only hand over new channels, pending writes and handling
+ * that had to wait for something else.
+ */
+public class EventLoop implements Runnable {
+
+    private final static Logger LOGGER = Logger.getLogger(EventLoop.class.getName());
+
+    private final ChatRoom chatRoom;
+    private final ServerConfig config;
+    private final Selector selector;
+    private final AllocationMeter allocationMeter;
+    /**
+     * Messages are handled one at a time, so a single view serves all the channels of this loop.
+     */
+    private final MessageView view;
+    private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<SocketChannel>();
+    private final Queue<ChannelConnection> flushes = new ConcurrentLinkedQueue<ChannelConnection>();
+    private final Queue<Resumption> resumptions = new ConcurrentLinkedQueue<Resumption>();
+    /**
+     * Coalesces wake-ups, so a broadcast to many clients of this loop costs one {@code Selector.wakeup} call.
+     */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    public EventLoop(ChatRoom chatRoom, ServerConfig config) throws IOException {
+        this.chatRoom = chatRoom;
+        this.config = config;
+        this.selector = Selector.open();
+        this.allocationMeter = new AllocationMeter(config.isMeasureAllocations());
+        this.view = new MessageView(chatRoom.getNames());
+    }
+
+    /**
+     * Hands a newly accepted channel over to this loop. Can be called from any thread.
+     *
+     * @param channel The channel.
+     */
+    public void register(SocketChannel channel) {
+        registrations.add(channel);
+        wakeup();
+    }
+
+    /**
+     * Requests writing of the connection's outbound queue. Can be called from any thread.
+     *
+     * @param connection The connection.
+     */
+    void scheduleFlush(ChannelConnection connection) {
+        flushes.add(connection);
+        wakeup();
+    }
+
+    /**
+     * Requests running the rest of a message's handling and reading from the connection again, see
+     * {@link ChannelConnection#resumeWhenDone}. Can be called from any thread.
+     *
+     * @param connection The suspended connection.
+     * @param task       The rest of the handling.
+     */
+    void scheduleResumption(ChannelConnection connection, Runnable task) {
+        resumptions.add(new Resumption(connection, task));
+        wakeup();
+    }
+
+    @Override
+    public void run() {
+        LOGGER.info(Thread.currentThread().getName() + ": Event loop started");
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                wakeupPending.set(false);
+                processRegistrations();
+                processSelectedKeys();
+                processResumptions();
+                processFlushes();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Selector failure", e);
+                break;
+            }
+        }
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void processRegistrations() {
+        SocketChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                ChannelConnection connection = new ChannelConnection(channel, this, config.newOutboundQueue(),
+                        chatRoom.newFloodControl());
+                ClientData client = new ClientData(connection);
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection), client);
+                chatRoom.opened(client);
+                LOGGER.info(String.format("%s: Serving client %s", Thread.currentThread().getName(), client));
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Channel registration failure", e);
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            ChannelConnection connection = (ChannelConnection) key.attachment();
+            ClientData client = connection.client();
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(client, connection);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Network communication error", e);
+                disconnect(connection);
+            } catch (ParseException e) {
+                LOGGER.log(Level.SEVERE, "Incorrect message format", e);
+                disconnect(connection);
+            }
+        }
+    }
+
+    private void read(ClientData client, ChannelConnection connection) throws IOException, ParseException {
+        boolean open = connection.fill();
+        handleReceived(client, connection);
+        if (!open) {
+            disconnect(connection);
+        }
+    }
+
+    /**
+     * Handles the messages read so far, until they run out or handling of one has to wait.
+     */
+    private void handleReceived(ClientData client, ChannelConnection connection) throws ParseException, IOException {
+        while (connection.isPossibleToWrite() && !connection.isSuspended()) {
+            long allocated = allocationMeter.start();
+            if (connection.getCodec() == BinaryMessageCodec.INSTANCE) {
+                if (!connection.poll(view)) {
+                    break;
+                }
+                if (chatRoom.admit(client, connection.getFloodControl(), view.getType(), view.getFrameLength())) {
+                    chatRoom.handle(client, view);
+                }
+            } else {
+                Message message = connection.poll();
+                if (message == null) {
+                    break;
+                }
+                if (chatRoom.admit(client, connection.getFloodControl(), message.getType(), FloodControl.size
+                        (message))) {
+                    chatRoom.handle(client, message);
+                }
+            }
+            allocationMeter.stop(allocated);
+        }
+    }
+
+    private void processResumptions() {
+        Resumption resumption;
+        while ((resumption = resumptions.poll()) != null) {
+            ChannelConnection connection = resumption.connection;
+            connection.resume();
+            resumption.task.run();
+            try {
+                handleReceived(connection.client(), connection);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Network communication error", e);
+                disconnect(connection);
+            } catch (ParseException e) {
+                LOGGER.log(Level.SEVERE, "Incorrect message format", e);
+                disconnect(connection);
+            }
+        }
+    }
+
+    private void processFlushes() {
+        ChannelConnection connection;
+        while ((connection = flushes.poll()) != null) {
+            try {
+                connection.flush();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Network communication error", e);
+                disconnect(connection);
+            }
+        }
+    }
+
+    private void disconnect(ChannelConnection connection) {
+        if (!connection.isPossibleToWrite()) {
+            return;
+        }
+        LOGGER.log(Level.INFO, "Stopping serving " + connection.client());
+        chatRoom.leave(connection.client());
+        chatRoom.getMetrics().connectionClosed();
+        try {
+            connection.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Connection closing failure", e);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Channel closing failure", e);
+        }
+    }
+
+    private static class Resumption {
+
+        private final ChannelConnection connection;
+        private final Runnable task;
+
+        private Resumption(ChannelConnection connection, Runnable task) {
+            this.connection = connection;
+            this.task = task;
+        }
+
+    }
+
+}
@@ -0,0 +1,59 @@
+package pl.sepulkarz.socketchatroom.server.nio;
+
+import pl.sepulkarz.socketchatroom.server.ServerConfig;
+import pl.sepulkarz.socketchatroom.server.net.ChatRoom;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Logger;
+
+/**
+ * Server engine based on non-blocking channels. A fixed number of {@link EventLoop} threads serve all the clients, so
+ * idle clients cost only their buffers, not a thread each.
+ */
+public class NioServer {
+
+    private final static Logger LOGGER = Logger.getLogger(NioServer.class.getName());
+
+    private final ChatRoom chatRoom;
+    private final int port;
+    private final EventLoop[] eventLoops;
+
+    public NioServer(ChatRoom chatRoom, int port, ServerConfig config) throws IOException {
+        this.chatRoom = chatRoom;
+        this.port = port;
+        this.eventLoops = new EventLoop[config.getEventLoops()];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(chatRoom, config);
+        }
+    }
+
+    /**
+     * Starts the event loops and accepts new connections on the calling thread, distributing them among the loops
+     * in round-robin fashion. Never returns unless accepting fails.
+     *
+     * @throws IOException When the server socket cannot be opened or accepting fails.
+     */
+    public void serve() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            new Thread(eventLoops[i], "event-loop-" + i).start();
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            LOGGER.info(String.format("Waiting for clients on %s with %d event loops, %d ms after start", serverChannel
+                    .getLocalAddress(), eventLoops.length, chatRoom.getMetrics().accepting()));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        } finally {
+            serverChannel.close();
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package pl.sepulkarz.socketchatroom.server.history;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentTest {
+
+    private static final int SIZE = 64 * 1024;
+    private static final long BASE_NUMBER = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("history");
+    }
+
+    @Test
+    public void reopenedSegmentHasAllRecords() throws IOException {
+        Segment segment = Segment.create(directory, BASE_NUMBER, SIZE);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(segment.append(1000 + i, frame(10, i)));
+        }
+        segment.force();
+
+        Segment reopened = Segment.open(segmentFile());
+        assertEquals(BASE_NUMBER + 3, reopened.getEndNumber());
+        assertEquals(1002, reopened.getLastTime());
+        assertFrames(reopened, BASE_NUMBER, 0, 1, 2);
+    }
+
+    @Test
+    public void recordWithoutTimeIsDropped() throws IOException {
+        Segment segment = Segment.create(directory, BASE_NUMBER, SIZE);
+        segment.append(1000, frame(10, 0));
+        segment.append(1001, frame(10, 1));
+        segment.force();
+        // A crash after the frame of the third record was written, but before its time was.
+        byte[] bytes = Files.readAllBytes(segmentFile().toPath());
+        ByteBuffer.wrap(bytes, 2 * recordSize(10) + 8, 14).put(frame(10, 2));
+        File copy = copy(bytes, bytes.length);
+
+        Segment recovered = Segment.open(copy);
+        assertEquals(BASE_NUMBER + 2, recovered.getEndNumber());
+        assertEquals(1001, recovered.getLastTime());
+        assertFrames(recovered, BASE_NUMBER, 0, 1);
+    }
+
+    @Test
+    public void truncatedRecordIsDroppedAndOverwritten() throws IOException {
+        Segment segment = Segment.create(directory, BASE_NUMBER, SIZE);
+        for (int i = 0; i < 3; i++) {
+            segment.append(1000 + i, frame(100, i));
+        }
+        segment.force();
+        // The file ends in the middle of the third record.
+        byte[] bytes = Files.readAllBytes(segmentFile().toPath());
+        File copy = copy(bytes, 2 * recordSize(100) + 50);
+
+        Segment recovered = Segment.open(copy);
+        assertEquals(BASE_NUMBER + 2, recovered.getEndNumber());
+        assertFrames(recovered, BASE_NUMBER, 0, 1);
+        assertTrue(recovered.append(2000, frame(10, 9)));
+        assertEquals(BASE_NUMBER + 3, recovered.getEndNumber());
+        assertFrames(recovered, BASE_NUMBER, 0, 1, 9);
+    }
+
+    @Test
+    public void recordWithCorruptLengthEndsRecovery() throws IOException {
+        Segment segment = Segment.create(directory, BASE_NUMBER, SIZE);
+        segment.append(1000, frame(10, 0));
+        segment.append(1001, frame(10, 1));
+        segment.force();
+        byte[] bytes = Files.readAllBytes(segmentFile().toPath());
+        ByteBuffer.wrap(bytes).putInt(recordSize(10) + 8, -5);
+        File copy = copy(bytes, bytes.length);
+
+        Segment recovered = Segment.open(copy);
+        assertEquals(BASE_NUMBER + 1, recovered.getEndNumber());
+        assertFrames(recovered, BASE_NUMBER, 0);
+    }
+
+    @Test
+    public void emptySegmentRecoversEmpty() throws IOException {
+        Segment.create(directory, BASE_NUMBER, SIZE).force();
+
+        Segment reopened = Segment.open(segmentFile());
+        assertEquals(BASE_NUMBER, reopened.getEndNumber());
+        assertEquals(0, reopened.getLastTime());
+        assertFrames(reopened, BASE_NUMBER);
+    }
+
+    /**
+     * @return A binary frame: its length, then the payload filled with the given byte.
+     */
+    private static ByteBuffer frame(int payloadLength, int fill) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + payloadLength);
+        frame.putInt(payloadLength);
+        byte[] payload = new byte[payloadLength];
+        Arrays.fill(payload, (byte) fill);
+        frame.put(payload).flip();
+        return frame;
+    }
+
+    private static int recordSize(int payloadLength) {
+        return 8 + 4 + payloadLength;
+    }
+
+    private File segmentFile() {
+        return new File(directory, String.format("%020d.log", BASE_NUMBER));
+    }
+
+    /**
+     * Writes the bytes to a segment file of its own, leaving the mapped original alone.
+     */
+    private File copy(byte[] bytes, int length) throws IOException {
+        File file = new File(folder.newFolder(), segmentFile().getName());
+        Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+        return file;
+    }
+
+    private static void assertFrames(Segment segment, long fromNumber, int... fills) {
+        List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+        segment.read(fromNumber, frames);
+        assertEquals(fills.length, frames.size());
+        for (int i = 0; i < fills.length; i++) {
+            ByteBuffer frame = frames.get(i);
+            assertEquals(frame.remaining() - 4, frame.getInt(0));
+            assertEquals((byte) fills[i], frame.get(4));
+        }
+    }
+
+}
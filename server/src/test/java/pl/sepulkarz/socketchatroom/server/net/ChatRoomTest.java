@@ -0,0 +1,198 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+import pl.sepulkarz.socketchatroom.net.transport.Connection;
+import pl.sepulkarz.socketchatroom.net.transport.Handshake;
+import pl.sepulkarz.socketchatroom.net.transport.OutboundMessage;
+import pl.sepulkarz.socketchatroom.server.audit.AuditLog;
+import pl.sepulkarz.socketchatroom.server.federation.Federation;
+import pl.sepulkarz.socketchatroom.server.history.History;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChatRoomTest {
+
+    private ChatRoom chatRoom;
+
+    @Before
+    public void setUp() {
+        chatRoom = new ChatRoom(AuditLog.DISABLED, History.DISABLED, 0, false, Federation.DISABLED, 0, 0, 0,
+                RateLimits.NONE, FanOutScheduler.DIRECT, 60000, 16);
+    }
+
+    @Test
+    public void secondHelloKeepsTheFirstName() throws IOException {
+        ClientData alice = logIn("Alice");
+
+        chatRoom.handle(alice, hello("Mallory"));
+        assertEquals("Alice", alice.getName());
+        assertEquals(1, sent(alice).size());
+        assertEquals(Message.Type.REJECTED_USER_NAME, sent(hello(client(), "alice")).get(0).getType());
+        assertEquals(Message.Type.LOGIN_SUCCESSFUL, sent(hello(client(), "Mallory")).get(0).getType());
+    }
+
+    @Test
+    public void nameIsFreedWhenItsClientLeavesAfterSayingHelloAgain() throws IOException {
+        ClientData alice = logIn("Alice");
+        chatRoom.handle(alice, hello("Mallory"));
+
+        chatRoom.leave(alice);
+        assertEquals(Message.Type.LOGIN_SUCCESSFUL, sent(hello(client(), "alice")).get(0).getType());
+    }
+
+    @Test
+    public void rejectedClientCanTryAnotherName() throws IOException {
+        logIn("Alice");
+        ClientData client = hello(client(), "ALICE");
+
+        assertNull(client.getName());
+        chatRoom.handle(client, hello("Bob"));
+        assertEquals("Bob", client.getName());
+        assertEquals(Message.Type.REJECTED_USER_NAME, sent(client).get(0).getType());
+        assertEquals(Message.Type.LOGIN_SUCCESSFUL, sent(client).get(1).getType());
+    }
+
+    @Test
+    public void resumedClientGetsMissedMessagesBeforeAnyOther() throws IOException {
+        ClientData alice = logIn("Alice");
+        ClientData bob = logIn("Bob", Handshake.FEATURE_RESUME);
+        String token = Handshake.parse(sent(bob).get(0).getText()).get(Handshake.SESSION);
+        int received = sent(bob).size() - 1;
+        bob.getConnection().close();
+        chatRoom.leave(bob);
+        chatRoom.handle(alice, privately("Alice", "Bob", "Missed"));
+
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        options.put(Handshake.SESSION, token);
+        options.put(Handshake.SEQUENCE, Long.toString(received));
+        ClientData resumed = client();
+        chatRoom.handle(resumed, new Message.Builder().type(Message.Type.HELLO).from("Bob").text(Handshake.format
+                (options)).build());
+        // Both to the client and to its previous self, which a fan-out may still hold on to.
+        chatRoom.handle(alice, privately("Alice", "Bob", "Routed"));
+        bob.getConnection().send(privately("Alice", "Bob", "Forwarded"));
+
+        List<Message> sent = sent(resumed);
+        assertEquals(4, sent.size());
+        assertEquals(Message.Type.LOGIN_SUCCESSFUL, sent.get(0).getType());
+        assertEquals("Missed", sent.get(1).getText());
+        assertEquals("Routed", sent.get(2).getText());
+        assertEquals("Forwarded", sent.get(3).getText());
+        assertEquals("Bob", resumed.getName());
+        // Nobody noticed Bob was gone.
+        for (Message message : sent(alice)) {
+            assertTrue(message.toString(), message.getType() != Message.Type.LEFT);
+        }
+        assertEquals(1, chatRoom.getResumedSessions());
+    }
+
+    private ClientData logIn(String name, String... features) throws IOException {
+        ClientData client = client();
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        if (features.length > 0) {
+            List<String> list = new ArrayList<String>();
+            Collections.addAll(list, features);
+            options.put(Handshake.FEATURES, Handshake.formatFeatures(list));
+        }
+        chatRoom.handle(client, new Message.Builder().type(Message.Type.HELLO).from(name).text(Handshake.format
+                (options)).build());
+        assertEquals(Message.Type.LOGIN_SUCCESSFUL, sent(client).get(0).getType());
+        return client;
+    }
+
+    private ClientData hello(ClientData client, String name) throws IOException {
+        chatRoom.handle(client, hello(name));
+        return client;
+    }
+
+    private static Message hello(String name) {
+        return new Message.Builder().type(Message.Type.HELLO).from(name).build();
+    }
+
+    private static Message privately(String from, String to, String text) {
+        return new Message.Builder().type(Message.Type.NORMAL).from(from).to(to).text(text).build();
+    }
+
+    private static ClientData client() {
+        return new ClientData(new RecordingConnection());
+    }
+
+    private static List<Message> sent(ClientData client) {
+        return ((RecordingConnection) client.getConnection()).sent;
+    }
+
+    /**
+     * Keeps the messages sent instead of writing them anywhere.
+     */
+    private static class RecordingConnection extends Connection {
+
+        private final List<Message> sent = new ArrayList<Message>();
+        private volatile boolean open = true;
+
+        @Override
+        public Message receive() throws IOException, ParseException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void send(OutboundMessage message) throws IOException {
+            writeLock.lock();
+            try {
+                if (!open) {
+                    throw new IOException("Connection closed");
+                }
+                sent.add(message.getMessage());
+                recordSent(message);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void shutdownStreams() {
+            open = false;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        @Override
+        public boolean isPossibleToWrite() {
+            return open;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        protected void startDeflating() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void startInflating() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
@@ -0,0 +1,149 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HashedWheelTimerTest {
+
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 8;
+    /**
+     * A turn of the wheel.
+     */
+    private static final long TURN_MILLIS = TICK_MILLIS * WHEEL_SIZE;
+
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setUp() {
+        timer = new HashedWheelTimer("test-timer", TICK_MILLIS, WHEEL_SIZE);
+        timer.start();
+    }
+
+    @Test
+    public void taskDueAfterSeveralTurnsWaitsForThem() throws InterruptedException {
+        long delayMillis = 2 * TURN_MILLIS + 3 * TICK_MILLIS;
+        Recorder recorder = new Recorder(1);
+        long start = System.nanoTime();
+        timer.schedule(recorder, delayMillis);
+
+        assertTrue(recorder.await());
+        assertTrue(recorder.elapsedMillis(start) >= delayMillis);
+    }
+
+    @Test
+    public void tasksSharingBucketRunInTheirOwnTurns() throws InterruptedException {
+        // All in the same bucket, a turn apart.
+        Recorder first = new Recorder(1);
+        Recorder second = new Recorder(1);
+        Recorder third = new Recorder(1);
+        long start = System.nanoTime();
+        timer.schedule(third, 2 * TURN_MILLIS + TICK_MILLIS);
+        timer.schedule(first, TICK_MILLIS);
+        timer.schedule(second, TURN_MILLIS + TICK_MILLIS);
+
+        assertTrue(third.await());
+        assertTrue(first.elapsedMillis(start) >= TICK_MILLIS);
+        assertTrue(second.elapsedMillis(start) >= TURN_MILLIS + TICK_MILLIS);
+        assertTrue(third.elapsedMillis(start) >= 2 * TURN_MILLIS + TICK_MILLIS);
+        assertTrue(first.ranNanos.get() < second.ranNanos.get());
+        assertTrue(second.ranNanos.get() < third.ranNanos.get());
+    }
+
+    @Test
+    public void taskAlreadyDueRunsOnNextTick() throws InterruptedException {
+        Recorder recorder = new Recorder(1);
+        timer.schedule(recorder, 0);
+
+        assertTrue(recorder.await());
+    }
+
+    @Test
+    public void cancelledTaskDoesNotRun() throws InterruptedException {
+        Recorder cancelled = new Recorder(1);
+        Recorder waitingTurns = new Recorder(1);
+        Recorder sentinel = new Recorder(1);
+        timer.schedule(cancelled, 2 * TICK_MILLIS).cancel();
+        HashedWheelTimer.Timeout timeout = timer.schedule(waitingTurns, TURN_MILLIS + 2 * TICK_MILLIS);
+        timer.schedule(sentinel, 2 * TURN_MILLIS + 2 * TICK_MILLIS);
+        // Cancelled while waiting in its bucket for another turn.
+        Thread.sleep(TURN_MILLIS / 2);
+        timeout.cancel();
+
+        assertTrue(sentinel.await());
+        assertEquals(0, cancelled.runs.get());
+        assertEquals(0, waitingTurns.runs.get());
+    }
+
+    @Test
+    public void taskCanRescheduleAndCancelItself() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch twice = new CountDownLatch(2);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                twice.countDown();
+                HashedWheelTimer.Timeout next = timer.schedule(this, TICK_MILLIS);
+                if (runs.get() == 2) {
+                    next.cancel();
+                }
+            }
+        };
+        timer.schedule(task, TICK_MILLIS);
+
+        assertTrue(twice.await(5, TimeUnit.SECONDS));
+        Thread.sleep(TURN_MILLIS);
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTheTimer() throws InterruptedException {
+        Recorder recorder = new Recorder(1);
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Expected by the test");
+            }
+        }, TICK_MILLIS);
+        timer.schedule(recorder, 3 * TICK_MILLIS);
+
+        assertTrue(recorder.await());
+    }
+
+    private static class Recorder implements Runnable {
+
+        private final CountDownLatch latch;
+        private final AtomicInteger runs = new AtomicInteger();
+        private final AtomicLong ranNanos = new AtomicLong();
+
+        private Recorder(int count) {
+            this.latch = new CountDownLatch(count);
+        }
+
+        @Override
+        public void run() {
+            ranNanos.set(System.nanoTime());
+            runs.incrementAndGet();
+            latch.countDown();
+        }
+
+        private boolean await() throws InterruptedException {
+            return latch.await(5, TimeUnit.SECONDS);
+        }
+
+        private long elapsedMillis(long startNanos) {
+            return TimeUnit.NANOSECONDS.toMillis(ranNanos.get() - startNanos);
+        }
+
+    }
+
+}
@@ -0,0 +1,150 @@
+package pl.sepulkarz.socketchatroom.server.net;
+
+import pl.sepulkarz.socketchatroom.net.transport.ClientData;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UserDirectoryTest {
+
+    private UserDirectory directory;
+
+    @Before
+    public void setUp() {
+        directory = new UserDirectory();
+    }
+
+    @Test
+    public void keyIgnoresCase() {
+        assertEquals("bob", UserDirectory.key("Bob"));
+        assertEquals("bob", UserDirectory.key("BOB"));
+    }
+
+    @Test
+    public void keyIsInCompatibilityForm() {
+        // Full-width letters.
+        assertEquals("bob", UserDirectory.key("\uFF22\uFF4F\uFF42"));
+        // The "fi" ligature.
+        assertEquals("fiona", UserDirectory.key("\uFB01ona"));
+        // A precomposed and a combining diaeresis.
+        assertEquals(UserDirectory.key("Zo\u00EB"), UserDirectory.key("Zoe\u0308"));
+    }
+
+    @Test
+    public void namesWithTheSameKeyAreTaken() {
+        assertTrue(register("Bob"));
+        assertFalse(register("bob"));
+        assertFalse(register("\uFF22\uFF4F\uFF42"));
+        assertTrue(register("Bobby"));
+        assertEquals(2, directory.size());
+    }
+
+    @Test
+    public void removeFreesOnlyItsOwnName() {
+        ClientData bob = client("Bob");
+        register(bob);
+
+        directory.remove(client("bob"));
+        assertFalse(register("BOB"));
+        directory.remove(bob);
+        assertTrue(register("BOB"));
+    }
+
+    @Test
+    public void replaceKeepsTheName() {
+        ClientData previous = client("Bob");
+        ClientData resumed = client("Bob");
+        register(previous);
+
+        directory.replace(previous, resumed);
+        directory.remove(previous);
+        assertEquals(1, directory.size());
+        directory.remove(resumed);
+        assertEquals(0, directory.size());
+    }
+
+    @Test
+    public void findMatchesPrefixInAnyForm() {
+        for (String name : Arrays.asList("alice", "Bob", "bobby", "Boris", "carol", "\uFB01ona", "Fiedler")) {
+            register(name);
+        }
+
+        assertEquals(Arrays.asList("Bob", "bobby"), directory.find("BOB", 10));
+        assertEquals(Arrays.asList("Bob", "bobby", "Boris"), directory.find("\uFF42\uFF4F", 10));
+        assertEquals(Arrays.asList("Fiedler", "\uFB01ona"), directory.find("fi", 10));
+        assertEquals(Collections.<String>emptyList(), directory.find("dave", 10));
+    }
+
+    @Test
+    public void findStopsAtLimit() {
+        for (String name : Arrays.asList("bob", "bobby", "boris", "alice")) {
+            register(name);
+        }
+
+        assertEquals(Arrays.asList("bob", "bobby"), directory.find("b", 2));
+        assertEquals(Arrays.asList("alice", "bob", "bobby"), directory.find("", 3));
+    }
+
+    @Test
+    public void findSkipsClientsNotGivenTheirNameYet() {
+        register("bob");
+        directory.register("bobby", new ClientData(null));
+
+        assertEquals(Arrays.asList("bob"), directory.find("b", 10));
+    }
+
+    @Test
+    public void onlyOneOfConcurrentRegistrationsWins() throws InterruptedException {
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger registered = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            final String name = i % 2 == 0 ? "Bob" : "bob";
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (register(name)) {
+                        registered.incrementAndGet();
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, registered.get());
+    }
+
+    private boolean register(String name) {
+        return register(client(name));
+    }
+
+    private boolean register(ClientData client) {
+        return directory.register(client.getName(), client);
+    }
+
+    private static ClientData client(String name) {
+        ClientData client = new ClientData(null);
+        client.setName(name);
+        return client;
+    }
+
+}
@@ -0,0 +1,144 @@
+package pl.sepulkarz.socketchatroom.server.nio;
+
+import pl.sepulkarz.socketchatroom.net.data.Message;
+import pl.sepulkarz.socketchatroom.net.transport.TextMessageCodec;
+import pl.sepulkarz.socketchatroom.server.ServerConfig;
+import pl.sepulkarz.socketchatroom.server.net.ChatRoom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class EventLoopTest {
+
+    /**
+     * Small socket buffers, so that writing a few messages to a client that doesn't read fills them up.
+     */
+    private static final int SOCKET_BUFFER_SIZE = 4096;
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private final TextMessageCodec codec = TextMessageCodec.INSTANCE;
+    private EventLoop eventLoop;
+    private ServerSocketChannel serverChannel;
+
+    @Before
+    public void setUp() throws IOException {
+        eventLoop = new EventLoop(new ChatRoom(), new ServerConfig());
+        Thread thread = new Thread(eventLoop, "test-event-loop");
+        thread.setDaemon(true);
+        thread.start();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        serverChannel.close();
+    }
+
+    @Test
+    public void messageSplitAcrossReadsIsHandledOnceComplete() throws IOException, ParseException,
+            InterruptedException {
+        Client client = connect();
+        ByteBuffer hello = codec.encode(new Message.Builder().type(Message.Type.HELLO).from("Alice").build());
+
+        // One byte at a time, each in a segment of its own.
+        while (hello.hasRemaining()) {
+            client.output.write(hello.get());
+            client.output.flush();
+            Thread.sleep(1);
+        }
+
+        assertEquals(Message.Type.LOGIN_SUCCESSFUL, client.receive().getType());
+    }
+
+    @Test
+    public void backlogIsWrittenWhenTheClientReads() throws IOException, ParseException {
+        Client slow = connect();
+        slow.send(new Message.Builder().type(Message.Type.HELLO).from("Slow").build());
+        assertEquals(Message.Type.LOGIN_SUCCESSFUL, slow.receive().getType());
+        Client fast = connect();
+        fast.send(new Message.Builder().type(Message.Type.HELLO).from("Fast").build());
+        assertEquals(Message.Type.LOGIN_SUCCESSFUL, fast.receive().getType());
+        assertEquals(Message.Type.JOINED, slow.receive().getType());
+
+        // Far more than the socket buffers hold, so the loop has to write them bit by bit as the client reads.
+        int count = 200;
+        char[] padding = new char[1000];
+        Arrays.fill(padding, '.');
+        for (int i = 0; i < count; i++) {
+            fast.send(new Message.Builder().type(Message.Type.NORMAL).from("Fast").to(Message.BROADCAST).text(i +
+                    new String(padding)).build());
+        }
+
+        for (int i = 0; i < count; i++) {
+            Message message = slow.receive();
+            assertEquals(Message.Type.NORMAL, message.getType());
+            assertEquals(i + new String(padding), message.getText());
+        }
+    }
+
+    /**
+     * Connects a client, handing the server side over to the event loop.
+     */
+    private Client connect() throws IOException {
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        socket.connect(serverChannel.getLocalAddress());
+        SocketChannel channel = serverChannel.accept();
+        channel.socket().setSendBufferSize(SOCKET_BUFFER_SIZE);
+        eventLoop.register(channel);
+        return new Client(socket);
+    }
+
+    private class Client {
+
+        private final InputStream input;
+        private final OutputStream output;
+        private ByteBuffer received = ByteBuffer.allocate(64 * 1024);
+
+        private Client(Socket socket) throws IOException {
+            this.input = socket.getInputStream();
+            this.output = socket.getOutputStream();
+            received.flip();
+        }
+
+        private void send(Message message) throws IOException {
+            ByteBuffer encoded = codec.encode(message);
+            output.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+            output.flush();
+        }
+
+        private Message receive() throws IOException, ParseException {
+            Message message;
+            while ((message = codec.decode(received)) == null) {
+                received.compact();
+                int read = input.read(received.array(), received.position(), received.remaining());
+                if (read < 0) {
+                    throw new IOException("Connection closed");
+                }
+                received.position(received.position() + read);
+                received.flip();
+            }
+            return message;
+        }
+
+    }
+
+}